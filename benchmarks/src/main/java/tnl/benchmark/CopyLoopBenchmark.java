@@ -0,0 +1,201 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tnl.DataTransferException;
+import tnl.FileTransferEngine;
+import tnl.TransferStatistics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+
+// File to socket copy over loopback: the buffered copy loop at several buffer sizes, and the two download paths
+// of FileTransferEngine (zero-copy through a socket channel, buffered through a plain socket). A background
+// thread reads and discards everything sent. One operation copies the whole file: MB/s = fileSizeMB / time
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+public class CopyLoopBenchmark {
+
+    // File, drain server and connections, set up once per fork
+    @State(Scope.Thread)
+    public static class Transfer {
+        @Param({"64"})
+        public int fileSizeMB;
+
+        public long fileSize;
+        public Path file;
+        public FileChannel fileChannel;
+
+        public ServerSocket drainServer;
+        public Socket plainSocket;
+        public SocketChannel socketChannel;
+
+        public FileTransferEngine engine;
+
+        @Setup
+        public void setUp() throws IOException {
+            fileSize = fileSizeMB * 1024L * 1024L;
+            file = createFile(fileSize);
+            fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+
+            drainServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            startDrain(drainServer);
+
+            plainSocket = new Socket(InetAddress.getLoopbackAddress(), drainServer.getLocalPort());
+            socketChannel = SocketChannel.open(drainServer.getLocalSocketAddress());
+
+            engine = new FileTransferEngine(new TransferStatistics());
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            plainSocket.close();
+            socketChannel.close();
+            drainServer.close();
+
+            fileChannel.close();
+            Files.delete(file);
+        }
+    }
+
+
+
+    // Buffer of the plain copy loop
+    @State(Scope.Thread)
+    public static class LoopBuffer {
+        @Param({"4096", "16384", "65536", "262144", "1048576"})
+        public int bufferSize;
+
+        public ByteBuffer buffer;
+
+        @Setup
+        public void setUp() {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+    }
+
+
+
+    // Same loop as the buffered download path, with the buffer size as a parameter
+    @Benchmark
+    public long bufferedLoop(Transfer transfer, LoopBuffer loopBuffer) throws IOException {
+        FileChannel fileChannel = transfer.fileChannel;
+        ByteBuffer buffer = loopBuffer.buffer;
+        OutputStream outputStream = transfer.plainSocket.getOutputStream();
+
+        long position = 0;
+        int count;
+
+        buffer.clear();
+
+        while ((count = fileChannel.read(buffer, position)) > 0) {
+            outputStream.write(buffer.array(), 0, count);
+
+            position += count;
+            buffer.clear();
+        }
+
+        outputStream.flush();
+
+        return position;
+    }
+
+    @Benchmark
+    public long engineBuffered(Transfer transfer) throws DataTransferException {
+        return transfer.engine.sendFile(transfer.fileChannel, 0, transfer.fileSize, transfer.plainSocket).getBytes();
+    }
+
+    @Benchmark
+    public long engineZeroCopy(Transfer transfer) throws DataTransferException {
+        return transfer.engine.sendFile(
+                transfer.fileChannel, 0, transfer.fileSize, transfer.socketChannel.socket()
+        ).getBytes();
+    }
+
+    private static Path createFile(long fileSize) throws IOException {
+        Path file = Files.createTempFile("ftpserver-copy-bench", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+
+        ThreadLocalRandom.current().nextBytes(chunk);
+
+        try (RandomAccessFile output = new RandomAccessFile(file.toFile(), "rw")) {
+            for (long written = 0; written < fileSize; written += chunk.length) {
+                output.write(chunk, 0, (int) Math.min(chunk.length, fileSize - written));
+            }
+
+        }
+
+        return file;
+    }
+
+    // Accept every connection and discard what it receives
+    private static void startDrain(ServerSocket drainServer) {
+        Thread drainThread = new Thread(() -> {
+            while (true) {
+                Socket socket;
+
+                try {
+                    socket = drainServer.accept();
+                } catch (IOException e) {
+                    return;
+                }
+
+                Thread reader = new Thread(() -> {
+                    byte[] buffer = new byte[1024 * 1024];
+
+                    try (InputStream inputStream = socket.getInputStream()) {
+                        while (inputStream.read(buffer) != -1) {
+                            // Discard
+                        }
+
+                    } catch (IOException e) {
+                        // Connection closed
+                    }
+
+                }, "copy-bench-drain");
+
+                reader.setDaemon(true);
+                reader.start();
+            }
+
+        }, "copy-bench-accept");
+
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+}
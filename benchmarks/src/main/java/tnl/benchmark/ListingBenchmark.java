@@ -0,0 +1,109 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tnl.DataTransferException;
+import tnl.DirectoryLister;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+
+// LIST and MLSD output generation, as done for serveListDirectoryContentRequest, for directories of 10 entries
+// and more: the sorted listing (cached by the server, so built only once per change), the streamed listing used
+// for directories above the sort limit, and the streamed MLSD facts. The output is discarded. Above the sort
+// limit (-Dftpserver.listingSortLimit in the forked JVM, through -jvmArgs), sortedList only measures the refusal.
+//
+// The directory is created in a temporary directory once per fork and deleted afterwards. -p entries=1000000
+// needs as many free inodes and some minutes to set up
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ListingBenchmark {
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int entries;
+
+
+
+    private Path root;
+    private Path directory;
+
+    private ByteBuffer buffer;
+    private DirectoryLister.ListingSink discard;
+
+
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("ftpserver-listing-bench");
+        directory = createDirectory(root, entries);
+
+        buffer = ByteBuffer.allocate(32 * 1024);
+        discard = output -> output.position(output.limit());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(entry -> entry.toFile().delete());
+        }
+
+    }
+
+    @Benchmark
+    public byte[] sortedList() throws IOException {
+        return DirectoryLister.buildSortedListing(directory);
+    }
+
+    @Benchmark
+    public long streamedList() throws IOException, DataTransferException {
+        return DirectoryLister.streamListing(directory, buffer, discard);
+    }
+
+    @Benchmark
+    public long streamedMachineList() throws IOException, DataTransferException {
+        return DirectoryLister.streamFacts(directory, buffer, discard);
+    }
+
+    // One directory in ten, the rest empty files
+    private static Path createDirectory(Path root, int entries) throws IOException {
+        Path directory = Files.createDirectory(root.resolve("entries-" + entries));
+
+        for (int i = 0; i < entries; ++i) {
+            if (i % 10 == 0) {
+                Files.createDirectory(directory.resolve(String.format("directory-%07d", i)));
+            } else {
+                Files.createFile(directory.resolve(String.format("file-%07d.txt", i)));
+            }
+
+        }
+
+        return directory;
+    }
+
+}
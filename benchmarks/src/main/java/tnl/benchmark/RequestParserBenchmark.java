@@ -0,0 +1,85 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tnl.FTPServerThread;
+import tnl.RequestLine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+
+// Parsing of request lines by RequestLine, from the bytes received: commands without arguments, unquoted and
+// quoted arguments, with and without decoding the arguments, and the command lookup done for every line in NIO
+// mode. Parsing alone is expected to allocate nothing, which -prof gc shows.
+//
+// Lines arrive with their carriage return, as read from the control connection
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+    @Param({
+            "LIST",
+            "RETR report-2016-04.txt",
+            "PORT 127.0.0.1 50000",
+            "STORE \"quarterly report 2016.txt\"",
+            "cwd \"my documents\""
+    })
+    public String request;
+
+
+
+    private byte[] bytes;
+    private RequestLine requestLine;
+
+    // Parsed once, for the lookup alone
+    private RequestLine parsedLine;
+
+
+
+    @Setup
+    public void setUp() {
+        bytes = (request + "\r").getBytes(StandardCharsets.UTF_8);
+        requestLine = new RequestLine();
+
+        parsedLine = new RequestLine();
+        parsedLine.parse(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public int parse() {
+        return requestLine.parse(bytes, 0, bytes.length) ? requestLine.size() : -1;
+    }
+
+    @Benchmark
+    public int parseAndDecode() {
+        requestLine.parse(bytes, 0, bytes.length);
+
+        return requestLine.size() == 0 ? 0 : requestLine.get(0).length();
+    }
+
+    @Benchmark
+    public boolean isBlockingRequest() {
+        return FTPServerThread.isBlockingRequest(parsedLine);
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Limits on concurrent sessions (in total and per client address) and concurrent data transfers.
+// A limit of 0 means unlimited
+public class AdmissionController {
+    public static final String MAX_SESSIONS = "maxSessions";
+    public static final String MAX_SESSIONS_PER_ADDRESS = "maxSessionsPerAddress";
+    public static final String MAX_DATA_TRANSFERS = "maxDataTransfers";
+    public static final String WAIT_QUEUE_SIZE = "admissionQueueSize";
+    public static final String WAIT_TIMEOUT = "admissionTimeoutMillis";
+
+    public static final int ADMITTED = 0;
+    public static final int REJECTED_SERVER_FULL = 1;
+    public static final int REJECTED_ADDRESS_FULL = 2;
+
+
+
+    private int maxSessions;
+    private int maxSessionsPerAddress;
+    private int maxDataTransfers;
+
+    private int waitQueueSize;
+    private long waitTimeoutMillis;
+
+    private AtomicInteger activeSessions;
+    private ConcurrentHashMap<String, Integer> activeSessionsPerAddress;
+
+    private Semaphore dataTransferPermits;
+
+    private AtomicLong rejectedSessions;
+    private AtomicLong rejectedDataTransfers;
+
+
+
+    public AdmissionController(
+            int maxSessions, int maxSessionsPerAddress, int maxDataTransfers, int waitQueueSize, long waitTimeoutMillis
+    ) {
+        this.maxSessions = maxSessions;
+        this.maxSessionsPerAddress = maxSessionsPerAddress;
+        this.maxDataTransfers = maxDataTransfers;
+
+        this.waitQueueSize = waitQueueSize;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+
+        activeSessions = new AtomicInteger();
+        activeSessionsPerAddress = new ConcurrentHashMap<String, Integer>();
+
+        dataTransferPermits = maxDataTransfers > 0 ? new Semaphore(maxDataTransfers) : null;
+
+        rejectedSessions = new AtomicLong();
+        rejectedDataTransfers = new AtomicLong();
+    }
+
+    public static AdmissionController fromConfig() {
+        return new AdmissionController(
+                ServerConfig.getInt(MAX_SESSIONS, 0),
+                ServerConfig.getInt(MAX_SESSIONS_PER_ADDRESS, 0),
+                ServerConfig.getInt(MAX_DATA_TRANSFERS, 0),
+                ServerConfig.getInt(WAIT_QUEUE_SIZE, 0),
+                ServerConfig.getLong(WAIT_TIMEOUT, 5000)
+        );
+    }
+
+    // Reserve a session slot for a client address. On success, releaseSession() must be called later
+    public int tryAdmitSession(String hostAddress) {
+        if (maxSessionsPerAddress > 0 && !tryAdmitAddress(hostAddress)) {
+            return REJECTED_ADDRESS_FULL;
+        }
+
+        if (maxSessions > 0) {
+            while (true) {
+                int current = activeSessions.get();
+
+                if (current >= maxSessions) {
+                    if (maxSessionsPerAddress > 0) {
+                        releaseAddress(hostAddress);
+                    }
+
+                    return REJECTED_SERVER_FULL;
+                }
+
+                if (activeSessions.compareAndSet(current, current + 1)) {
+                    break;
+                }
+
+            }
+
+        } else {
+            activeSessions.incrementAndGet();
+        }
+
+        return ADMITTED;
+    }
+
+    public void releaseSession(String hostAddress) {
+        activeSessions.decrementAndGet();
+
+        if (maxSessionsPerAddress > 0) {
+            releaseAddress(hostAddress);
+        }
+
+    }
+
+    public void recordRejectedSession() {
+        rejectedSessions.incrementAndGet();
+    }
+
+    // Wait up to the admission timeout for a data transfer slot. On success, releaseDataTransfer() must be called
+    public boolean acquireDataTransfer() {
+        if (dataTransferPermits == null) {
+            return true;
+        }
+
+        try {
+            if (dataTransferPermits.tryAcquire(waitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        rejectedDataTransfers.incrementAndGet();
+        return false;
+    }
+
+    public void releaseDataTransfer() {
+        if (dataTransferPermits != null) {
+            dataTransferPermits.release();
+        }
+
+    }
+
+    public int getWaitQueueSize() {
+        return waitQueueSize;
+    }
+
+    public long getWaitTimeoutMillis() {
+        return waitTimeoutMillis;
+    }
+
+    public String describe() {
+        return String.format(
+                "Sessions %d/%s, per address limit %s, data transfers %s, rejected %d sessions and %d transfers",
+                activeSessions.get(), limitToString(maxSessions), limitToString(maxSessionsPerAddress),
+                dataTransferPermits == null
+                        ? "unlimited"
+                        : (maxDataTransfers - dataTransferPermits.availablePermits()) + "/" + maxDataTransfers,
+                rejectedSessions.get(), rejectedDataTransfers.get()
+        );
+    }
+
+    private boolean tryAdmitAddress(String hostAddress) {
+        final boolean[] admitted = new boolean[] { false };
+
+        // compute() is atomic for one address, and does not block other addresses
+        activeSessionsPerAddress.compute(hostAddress, (key, count) -> {
+            int current = count == null ? 0 : count;
+
+            if (current >= maxSessionsPerAddress) {
+                return count;
+            }
+
+            admitted[0] = true;
+            return current + 1;
+        });
+
+        return admitted[0];
+    }
+
+    private void releaseAddress(String hostAddress) {
+        // Drop the counter of addresses without sessions, so that the map does not grow forever
+        activeSessionsPerAddress.computeIfPresent(hostAddress, (key, count) -> count <= 1 ? null : count - 1);
+    }
+
+    private static String limitToString(int limit) {
+        return limit > 0 ? String.valueOf(limit) : "unlimited";
+    }
+
+}
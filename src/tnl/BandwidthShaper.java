@@ -0,0 +1,170 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+
+// Hierarchical rate limit of file data: every transfer is limited by the bucket of its session, of its user
+// (shared by all sessions of the user) and of the whole server. A grant is only what all three allow, so the
+// slowest level sets the pace. Limits are in bytes per second, 0 for unlimited, and can be changed at runtime
+// from the console. Each level applies to every bucket of that level
+public class BandwidthShaper {
+    public static final String GLOBAL_RATE = "globalBytesPerSecond";
+    public static final String USER_RATE = "userBytesPerSecond";
+    public static final String SESSION_RATE = "sessionBytesPerSecond";
+
+    public static final String GLOBAL = "global";
+    public static final String USER = "user";
+    public static final String SESSION = "session";
+
+
+
+    // Buckets of one session. Used by the session's FileTransferEngine only
+    public class Throttle {
+        private long sessionId;
+        private TokenBucket sessionBucket;
+        private volatile TokenBucket userBucket;
+
+        private Throttle(long sessionId, TokenBucket sessionBucket) {
+            this.sessionId = sessionId;
+            this.sessionBucket = sessionBucket;
+            this.userBucket = null;
+        }
+
+        // Transfers before login, if any, are only limited by the session and global buckets
+        public void setUser(String username) {
+            userBucket = userBuckets.computeIfAbsent(
+                    username, key -> new TokenBucket("User " + key, userBytesPerSecond)
+            );
+        }
+
+        // Wait until some of wanted bytes may be transferred. Return how many, at least 1 and at most one batch
+        public long acquire(long wanted) throws InterruptedIOException {
+            TokenBucket user = userBucket;
+
+            long sessionGranted = sessionBucket.acquire(wanted);
+            long userGranted = user == null ? sessionGranted : user.acquire(sessionGranted);
+            long granted = globalBucket.acquire(userGranted);
+
+            // A higher level may have granted less, give the difference back to the lower ones
+            sessionBucket.release(sessionGranted - granted);
+
+            if (user != null) {
+                user.release(userGranted - granted);
+            }
+
+            return granted;
+        }
+
+        // Give back the part of a grant which was not transferred
+        public void release(long unused) {
+            TokenBucket user = userBucket;
+
+            sessionBucket.release(unused);
+
+            if (user != null) {
+                user.release(unused);
+            }
+
+            globalBucket.release(unused);
+        }
+
+        // Wait until exactly count bytes may be transferred, e.g. a block whose size is already known
+        public void acquireFully(long count) throws InterruptedIOException {
+            while (count > 0) {
+                count -= acquire(count);
+            }
+
+        }
+
+        public void close() {
+            sessionBuckets.remove(sessionId);
+        }
+    }
+
+
+
+    private volatile long userBytesPerSecond;
+    private volatile long sessionBytesPerSecond;
+
+    private TokenBucket globalBucket;
+    private ConcurrentHashMap<String, TokenBucket> userBuckets;
+    private ConcurrentHashMap<Long, TokenBucket> sessionBuckets;
+
+
+
+    public BandwidthShaper(long globalBytesPerSecond, long userBytesPerSecond, long sessionBytesPerSecond) {
+        this.userBytesPerSecond = userBytesPerSecond;
+        this.sessionBytesPerSecond = sessionBytesPerSecond;
+
+        globalBucket = new TokenBucket("Global", globalBytesPerSecond);
+        userBuckets = new ConcurrentHashMap<String, TokenBucket>();
+        sessionBuckets = new ConcurrentHashMap<Long, TokenBucket>();
+    }
+
+    public static BandwidthShaper fromConfig() {
+        return new BandwidthShaper(
+                ServerConfig.getLong(GLOBAL_RATE, 0),
+                ServerConfig.getLong(USER_RATE, 0),
+                ServerConfig.getLong(SESSION_RATE, 0)
+        );
+    }
+
+    public Throttle newThrottle(long sessionId) {
+        TokenBucket sessionBucket = new TokenBucket("Session " + sessionId, sessionBytesPerSecond);
+
+        sessionBuckets.put(sessionId, sessionBucket);
+
+        return new Throttle(sessionId, sessionBucket);
+    }
+
+    // Change the limit of a level (GLOBAL, USER or SESSION), for the transfers running and the following ones
+    public void setRate(String level, long bytesPerSecond) {
+        if (level.equals(GLOBAL)) {
+            globalBucket.setRate(bytesPerSecond);
+        } else if (level.equals(USER)) {
+            userBytesPerSecond = bytesPerSecond;
+
+            for (TokenBucket bucket : userBuckets.values()) {
+                bucket.setRate(bytesPerSecond);
+            }
+
+        } else if (level.equals(SESSION)) {
+            sessionBytesPerSecond = bytesPerSecond;
+
+            for (TokenBucket bucket : sessionBuckets.values()) {
+                bucket.setRate(bytesPerSecond);
+            }
+
+        } else {
+            throw new IllegalArgumentException("Unknown bandwidth level: " + level);
+        }
+
+    }
+
+    public String[] describe() {
+        ArrayList<String> lines = new ArrayList<String>();
+
+        lines.add(globalBucket.describe());
+
+        for (TokenBucket bucket : new TreeMap<String, TokenBucket>(userBuckets).values()) {
+            lines.add(bucket.describe());
+        }
+
+        for (TokenBucket bucket : new TreeMap<Long, TokenBucket>(sessionBuckets).values()) {
+            lines.add(bucket.describe());
+        }
+
+        return lines.toArray(new String[0]);
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+public class ByteBufferPool {
+    private int bufferSize;
+    private int maxPooledBuffers;
+
+    private ConcurrentLinkedQueue<ByteBuffer> freeBuffers;
+    private AtomicInteger freeBufferCount;
+
+
+
+    public ByteBufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+
+        freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+        freeBufferCount = new AtomicInteger();
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+
+        freeBufferCount.decrementAndGet();
+        buffer.clear();
+
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        // Keep at most maxPooledBuffers idle buffers, the rest are left to the garbage collector
+        if (freeBufferCount.incrementAndGet() > maxPooledBuffers) {
+            freeBufferCount.decrementAndGet();
+            return;
+        }
+
+        freeBuffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+// Dispatch table from packed command codes (see RequestLine.packCode) to their handlers. Filled once, then only
+// read, so that it can be shared by every session without locking. Looking up a code allocates nothing.
+// S is the session type the handlers run on
+public class CommandTable<S> {
+    // Flags of a command. A data transfer, or a command touching the file system (which may be a slow disk or
+    // a network file system), is also blocking
+    public static final int DATA_TRANSFER = 1;
+    public static final int BLOCKING = 2;
+    public static final int FILE_SYSTEM = 4;
+
+
+
+    public interface Handler<S> {
+        public void handle(S session, RequestLine request) throws InvalidRequestException, ServerUnrecoverableException;
+    }
+
+
+
+    public static class Command<S> {
+        private String code;
+        private int flags;
+        private Handler<S> handler;
+
+        public Command(String code, int flags, Handler<S> handler) {
+            this.code = code;
+            this.flags = (flags & (DATA_TRANSFER | FILE_SYSTEM)) != 0 ? flags | BLOCKING : flags;
+            this.handler = handler;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        // Whether the command needs a data connection
+        public boolean isDataTransfer() {
+            return (flags & DATA_TRANSFER) != 0;
+        }
+
+        // Whether handling the command may keep its thread busy for a while
+        public boolean isBlocking() {
+            return (flags & BLOCKING) != 0;
+        }
+
+        public Handler<S> getHandler() {
+            return handler;
+        }
+    }
+
+
+
+    // Open addressing, linear probing. Kept at most half full
+    private long[] keys;
+    private Command<S>[] commands;
+    private int size;
+
+
+
+    public CommandTable() {
+        allocate(32);
+    }
+
+    public void register(String code, int flags, Handler<S> handler) {
+        long key = RequestLine.packCode(code);
+
+        if (key == RequestLine.INVALID_CODE) {
+            throw new IllegalArgumentException("Invalid command code: " + code);
+        }
+
+        if (lookup(key) != null) {
+            throw new IllegalArgumentException("Command already registered: " + code);
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            long[] oldKeys = keys;
+            Command<S>[] oldCommands = commands;
+
+            allocate(keys.length * 2);
+
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldCommands[i] != null) {
+                    insert(oldKeys[i], oldCommands[i]);
+                }
+
+            }
+
+        }
+
+        insert(key, new Command<S>(code.toUpperCase(), flags, handler));
+        ++size;
+    }
+
+    // The command of a packed code, or null if there is no such command
+    public Command<S> lookup(long key) {
+        int mask = keys.length - 1;
+
+        for (int slot = indexOf(key, mask); commands[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return commands[slot];
+            }
+
+        }
+
+        return null;
+    }
+
+    private void insert(long key, Command<S> command) {
+        int mask = keys.length - 1;
+        int slot = indexOf(key, mask);
+
+        while (commands[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        commands[slot] = command;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        commands = (Command<S>[]) new Command<?>[capacity];
+    }
+
+    private static int indexOf(long key, int mask) {
+        // Spread the letters of the code over the low bits
+        long hash = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (hash >>> 32) & mask;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+
+
+// One event loop owning a share of the control connections of a NioFTPServer
+public class ControlSelectorLoop extends Thread {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+
+
+    private Selector selector;
+
+    private ConcurrentLinkedQueue<Runnable> pendingTasks;
+
+    // Shared by every connection of this loop, since only one connection is read at a time
+    private ByteBuffer readBuffer;
+
+    private ByteBufferPool lineBufferPool;
+    private ExecutorService transferWorkers;
+
+    private volatile boolean wantToClose;
+
+
+
+    public ControlSelectorLoop(String name, ByteBufferPool lineBufferPool, ExecutorService transferWorkers)
+            throws IOException
+    {
+        super(name);
+
+        this.selector = Selector.open();
+        this.pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        this.lineBufferPool = lineBufferPool;
+        this.transferWorkers = transferWorkers;
+
+        this.wantToClose = false;
+    }
+
+    public void run() {
+        while (!wantToClose) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                ServerLog.warn("%s: I/O error occur while waiting for events.", getName());
+                break;
+            }
+
+            runPendingTasks();
+
+            Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+
+            while (keyIterator.hasNext()) {
+                SelectionKey key = keyIterator.next();
+                keyIterator.remove();
+
+                NioControlConnection connection = (NioControlConnection) key.attachment();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isWritable()) {
+                    connection.onWritable();
+                }
+
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable(readBuffer);
+                }
+
+            }
+
+        }
+
+        // Sessions closed during shutdown have queued their last responses and close requests
+        runPendingTasks();
+
+        for (SelectionKey key : selector.keys()) {
+            ((NioControlConnection) key.attachment()).closeNow();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Silently ignore the exception
+        }
+
+    }
+
+    // Run a task on this loop's thread
+    public void execute(Runnable task) {
+        pendingTasks.offer(task);
+        selector.wakeup();
+    }
+
+    public void register(NioControlConnection connection) {
+        execute(() -> connection.register(selector));
+    }
+
+    public void close() {
+        wantToClose = true;
+        selector.wakeup();
+    }
+
+    public ByteBufferPool getLineBufferPool() {
+        return lineBufferPool;
+    }
+
+    public ExecutorService getTransferWorkers() {
+        return transferWorkers;
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                ServerLog.warn("%s: Error handling event: %s", getName(), e.getMessage());
+            }
+
+        }
+
+    }
+
+}
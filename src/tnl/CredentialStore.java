@@ -0,0 +1,412 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Users of the server, loaded once and shared by every session. Passwords are stored as salted PBKDF2 hashes.
+// A successful verification is remembered for a while (a fast salted digest, never the password), so that
+// clients logging in again and again do not pay for the slow hash each time. Slow verifications are rate
+// limited per client address, so that a flood of guesses cannot keep the CPU busy hashing.
+//
+// Users file (-Dftpserver.usersFile), one user per line, # for comments:
+//     username:                                        no password
+//     username:pbkdf2-sha256:iterations:salt:hash      salt and hash in Base64
+// Lines are printed by: java tnl.CredentialStore <username> <password>
+// Without a users file, the built-in demo users are used
+public class CredentialStore {
+    public static final String USERS_FILE = "usersFile";
+    public static final String HASH_ITERATIONS = "passwordHashIterations";
+    public static final String CACHE_SIZE = "credentialCacheSize";
+    public static final String CACHE_MILLIS = "credentialCacheMillis";
+    public static final String LOGIN_BURST = "loginBurst";
+    public static final String LOGIN_ATTEMPTS_PER_MINUTE = "loginAttemptsPerMinute";
+
+    public static final int VERIFIED = 0;
+    public static final int REJECTED = 1;
+    public static final int RATE_LIMITED = 2;
+
+
+
+    private static class User {
+        public int iterations;
+        public byte[] salt;
+        public byte[] hash;
+
+        public User(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        public boolean hasPassword() {
+            return hash != null;
+        }
+    }
+
+    private static class CachedVerification {
+        public byte[] digest;
+        public long expiresAt;
+
+        public CachedVerification(byte[] digest, long expiresAt) {
+            this.digest = digest;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Token bucket of one client address. Guarded by itself
+    private static class AttemptBucket {
+        public double tokens;
+        public long lastRefillNanos;
+
+        public AttemptBucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefillNanos = now;
+        }
+    }
+
+
+
+    private static final String HASH_ALGORITHM = "pbkdf2-sha256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+
+    // Buckets are swept once there are this many client addresses
+    private static final int MAX_IDLE_BUCKETS = 10000;
+
+
+
+    private HashMap<String, User> users;
+
+    private int cacheSize;
+    private long cacheMillis;
+
+    // Access ordered, least recently used first. Guarded by itself
+    private LinkedHashMap<String, CachedVerification> verificationCache;
+
+    private double loginBurst;
+    private double loginAttemptsPerNano;
+    private ConcurrentHashMap<String, AttemptBucket> attemptBuckets;
+
+    private AtomicLong cachedVerifications;
+    private AtomicLong slowVerifications;
+    private AtomicLong rejectedLogins;
+    private AtomicLong rateLimitedLogins;
+
+
+
+    private CredentialStore(
+            HashMap<String, User> users, int cacheSize, long cacheMillis, int loginBurst, int loginAttemptsPerMinute
+    ) {
+        this.users = users;
+
+        this.cacheSize = cacheSize;
+        this.cacheMillis = cacheMillis;
+        this.verificationCache = new LinkedHashMap<String, CachedVerification>(16, 0.75f, true);
+
+        this.loginBurst = Math.max(1, loginBurst);
+        this.loginAttemptsPerNano = loginAttemptsPerMinute / 60e9;
+        this.attemptBuckets = new ConcurrentHashMap<String, AttemptBucket>();
+
+        cachedVerifications = new AtomicLong();
+        slowVerifications = new AtomicLong();
+        rejectedLogins = new AtomicLong();
+        rateLimitedLogins = new AtomicLong();
+    }
+
+    public static CredentialStore fromConfig() {
+        String usersFile = ServerConfig.getString(USERS_FILE, null);
+        HashMap<String, User> users;
+
+        try {
+            users = usersFile == null ? demoUsers() : loadUsers(usersFile);
+        } catch (IOException | IllegalArgumentException e) {
+            // Starting with nobody able to log in would only hide the mistake
+            throw new IllegalStateException("Cannot load users file " + usersFile + ": " + e.getMessage(), e);
+        }
+
+        return new CredentialStore(
+                users,
+                ServerConfig.getInt(CACHE_SIZE, 1024),
+                ServerConfig.getLong(CACHE_MILLIS, 10 * 60 * 1000),
+                ServerConfig.getInt(LOGIN_BURST, 10),
+                ServerConfig.getInt(LOGIN_ATTEMPTS_PER_MINUTE, 20)
+        );
+    }
+
+    public boolean hasUser(String username) {
+        return users.containsKey(username);
+    }
+
+    public boolean requiresPassword(String username) {
+        User user = users.get(username);
+
+        return user != null && user.hasPassword();
+    }
+
+    // Check the password of a user, logging in from hostAddress. Return VERIFIED, REJECTED or RATE_LIMITED
+    public int verify(String username, String password, String hostAddress) {
+        User user = users.get(username);
+
+        if (user == null || !user.hasPassword()) {
+            rejectedLogins.incrementAndGet();
+            return REJECTED;
+        }
+
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        byte[] digest = digest(user.salt, passwordBytes);
+
+        if (isCachedVerification(username, digest)) {
+            cachedVerifications.incrementAndGet();
+            return VERIFIED;
+        }
+
+        if (!tryAcquireAttempt(hostAddress)) {
+            rateLimitedLogins.incrementAndGet();
+            return RATE_LIMITED;
+        }
+
+        slowVerifications.incrementAndGet();
+
+        byte[] hash = hash(password, user.salt, user.iterations);
+
+        if (!MessageDigest.isEqual(hash, user.hash)) {
+            rejectedLogins.incrementAndGet();
+            return REJECTED;
+        }
+
+        cacheVerification(username, digest);
+
+        return VERIFIED;
+    }
+
+    public String describe() {
+        int cachedUsers;
+
+        synchronized (verificationCache) {
+            cachedUsers = verificationCache.size();
+        }
+
+        return String.format(
+                "Users %d, %d verifications cached, logins verified %d from cache and %d hashed, rejected %d, "
+                        + "rate limited %d",
+                users.size(), cachedUsers, cachedVerifications.get(), slowVerifications.get(), rejectedLogins.get(),
+                rateLimitedLogins.get()
+        );
+    }
+
+    // Print a users file line: CredentialStore <username> <password>
+    public static void main(String[] argv) {
+        if (argv.length != 2) {
+            System.out.println("Usage: java tnl.CredentialStore <username> <password>");
+            return;
+        }
+
+        System.out.println(argv[0] + ":" + format(newUser(argv[1], ServerConfig.getInt(HASH_ITERATIONS, 100000))));
+    }
+
+    private boolean isCachedVerification(String username, byte[] digest) {
+        synchronized (verificationCache) {
+            CachedVerification cached = verificationCache.get(username);
+
+            if (cached == null) {
+                return false;
+            }
+
+            if (cached.expiresAt < System.currentTimeMillis()) {
+                verificationCache.remove(username);
+                return false;
+            }
+
+            return MessageDigest.isEqual(cached.digest, digest);
+        }
+
+    }
+
+    private void cacheVerification(String username, byte[] digest) {
+        if (cacheSize <= 0) {
+            return;
+        }
+
+        synchronized (verificationCache) {
+            verificationCache.put(username, new CachedVerification(digest, System.currentTimeMillis() + cacheMillis));
+
+            Iterator<Map.Entry<String, CachedVerification>> iterator = verificationCache.entrySet().iterator();
+
+            while (verificationCache.size() > cacheSize && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+
+        }
+
+    }
+
+    private boolean tryAcquireAttempt(String hostAddress) {
+        long now = System.nanoTime();
+
+        if (attemptBuckets.size() > MAX_IDLE_BUCKETS) {
+            sweepFullBuckets(now);
+        }
+
+        AttemptBucket bucket = attemptBuckets.computeIfAbsent(hostAddress, key -> new AttemptBucket(loginBurst, now));
+
+        synchronized (bucket) {
+            refill(bucket, now);
+
+            if (bucket.tokens < 1) {
+                return false;
+            }
+
+            bucket.tokens -= 1;
+            return true;
+        }
+
+    }
+
+    private void refill(AttemptBucket bucket, long now) {
+        bucket.tokens = Math.min(loginBurst, bucket.tokens + (now - bucket.lastRefillNanos) * loginAttemptsPerNano);
+        bucket.lastRefillNanos = now;
+    }
+
+    // Forget the addresses which have not tried anything for long enough to be back to a full bucket
+    private void sweepFullBuckets(long now) {
+        for (Iterator<AttemptBucket> iterator = attemptBuckets.values().iterator(); iterator.hasNext(); ) {
+            AttemptBucket bucket = iterator.next();
+
+            synchronized (bucket) {
+                refill(bucket, now);
+
+                if (bucket.tokens >= loginBurst) {
+                    iterator.remove();
+                }
+
+            }
+
+        }
+
+    }
+
+    private static HashMap<String, User> loadUsers(String usersFile) throws IOException {
+        HashMap<String, User> users = new HashMap<String, User>();
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(usersFile), StandardCharsets.UTF_8)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.equals("") || line.startsWith("#")) {
+                    continue;
+                }
+
+                int index = line.indexOf(':');
+
+                if (index <= 0) {
+                    throw new IllegalArgumentException("Invalid line: " + line);
+                }
+
+                users.put(line.substring(0, index), parse(line.substring(index + 1)));
+            }
+
+        }
+
+        return users;
+    }
+
+    // The users of the original server, so that it still runs without a users file
+    private static HashMap<String, User> demoUsers() {
+        HashMap<String, User> users = new HashMap<String, User>();
+        int iterations = ServerConfig.getInt(HASH_ITERATIONS, 100000);
+
+        users.put("usernopass", new User(0, null, null));
+
+        for (String username : new String[] { "user1", "user2", "user3", "user4" }) {
+            users.put(username, newUser(username, iterations));
+        }
+
+        return users;
+    }
+
+    private static User newUser(String password, int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+
+        return new User(iterations, salt, hash(password, salt, iterations));
+    }
+
+    private static User parse(String entry) {
+        if (entry.equals("")) {
+            return new User(0, null, null);
+        }
+
+        String[] parts = entry.split(":");
+
+        if (parts.length != 4 || !parts[0].equals(HASH_ALGORITHM)) {
+            throw new IllegalArgumentException("Unsupported password entry: " + entry);
+        }
+
+        Base64.Decoder decoder = Base64.getDecoder();
+
+        return new User(Integer.parseInt(parts[1]), decoder.decode(parts[2]), decoder.decode(parts[3]));
+    }
+
+    private static String format(User user) {
+        Base64.Encoder encoder = Base64.getEncoder();
+
+        return String.format(
+                "%s:%d:%s:%s",
+                HASH_ALGORITHM, user.iterations, encoder.encodeToString(user.salt), encoder.encodeToString(user.hash)
+        );
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(keySpec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            // Available in every Java 8 or later runtime
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+    // Fast salted digest identifying a password already verified
+    private static byte[] digest(byte[] salt, byte[] password) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+
+            messageDigest.update(salt);
+            messageDigest.update(password);
+
+            return messageDigest.digest();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+public class DataTransferException extends Exception {
+    public static final int FILE_ACCESS_ERROR = 1;
+    public static final int TRANSMISSION_ERROR = 2;
+
+
+
+    private int errorSource;
+
+
+
+    public DataTransferException(int errorSource, Throwable cause) {
+        super(cause);
+
+        this.errorSource = errorSource;
+    }
+
+    public int getErrorSource() {
+        return errorSource;
+    }
+
+}
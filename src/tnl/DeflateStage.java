@@ -0,0 +1,136 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+
+
+// Compressing stage of MODE Z transfers: everything written to it leaves through the sink as one zlib stream.
+// The first SAMPLE_SIZE bytes are compressed at the configured level. If they do not shrink below BYPASS_RATIO
+// of their size, the data is taken for already compressed (archives, media...) and the rest of the stream only
+// goes into stored blocks, which costs about as much as a copy. The client receives a valid stream either way
+public class DeflateStage {
+    public static final String LEVEL_NAME = "compressionLevel";
+
+    // 1 (fastest) to 9 (smallest)
+    public static final int LEVEL = Math.max(1, Math.min(9, ServerConfig.getInt(LEVEL_NAME, 6)));
+
+    // Input compressed before deciding whether compression is worth it
+    public static final int SAMPLE_SIZE = 256 * 1024;
+
+    // Compressed / original size of the sample above which the rest is not compressed
+    public static final double BYPASS_RATIO = 0.9;
+
+    public static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+
+
+    public interface Sink {
+        // Write the whole buffer to the data connection
+        public void write(ByteBuffer buffer) throws IOException;
+    }
+
+
+
+    private Deflater deflater;
+    private Sink sink;
+    private byte[] output;
+
+    private long bytesIn;
+    private long bytesOut;
+
+    private boolean sampled;
+    private boolean bypassed;
+
+
+
+    public DeflateStage(int level, Sink sink) {
+        this.deflater = new Deflater(level);
+        this.sink = sink;
+        this.output = new byte[OUTPUT_BUFFER_SIZE];
+
+        this.bytesIn = 0;
+        this.bytesOut = 0;
+
+        this.sampled = false;
+        this.bypassed = false;
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        deflater.setInput(data, offset, length);
+
+        while (!deflater.needsInput()) {
+            drain(Deflater.NO_FLUSH);
+        }
+
+        bytesIn += length;
+
+        if (!sampled && bytesIn >= SAMPLE_SIZE) {
+            sample();
+        }
+
+    }
+
+    // End the stream. The stage cannot be written to afterwards
+    public void finish() throws IOException {
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            drain(Deflater.NO_FLUSH);
+        }
+
+    }
+
+    // Release the native memory of the compressor, whether the stream was finished or not
+    public void end() {
+        deflater.end();
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public boolean isBypassed() {
+        return bypassed;
+    }
+
+    private void sample() throws IOException {
+        sampled = true;
+
+        // Flush what the compressor holds back, so that the output of the sample is complete
+        while (drain(Deflater.SYNC_FLUSH) == output.length) {
+            // Output buffer was full, there may be more
+        }
+
+        if (bytesOut > bytesIn * BYPASS_RATIO) {
+            // Takes effect on the next input
+            deflater.setLevel(Deflater.NO_COMPRESSION);
+            bypassed = true;
+        }
+
+    }
+
+    // Compress what the input allows into the output buffer and pass it on. Return the number of bytes produced
+    private int drain(int flush) throws IOException {
+        int count = deflater.deflate(output, 0, output.length, flush);
+
+        if (count > 0) {
+            sink.write(ByteBuffer.wrap(output, 0, count));
+            bytesOut += count;
+        }
+
+        return count;
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+
+
+
+// LIST and MLSD output. LIST shows directories (with a trailing separator) and then files, one name per line,
+// the two groups separated by an empty line. Directories with at most SORT_LIMIT entries are sorted by name.
+// Larger ones are streamed unsorted, encoding names straight into the output buffer, so memory does not grow
+// with their size
+public class DirectoryLister {
+    public static final String SORT_LIMIT_NAME = "listingSortLimit";
+
+    // 0 lists every directory unsorted
+    public static final int SORT_LIMIT = ServerConfig.getInt(SORT_LIMIT_NAME, 10000);
+
+    // Listing formats. NAMES is the LIST output, FACTS the MLSD output (RFC 3659)
+    public static final String NAMES = "names";
+    public static final String FACTS = "facts";
+
+    // The staging directory of uploads in progress is not listed (see UploadCommitter)
+    private static final DirectoryStream.Filter<Path> VISIBLE =
+            entry -> !UploadCommitter.isReserved(entry.getFileName());
+
+
+
+    // Receives the encoded listing, one buffer at a time. The buffer is flipped, and is reused once write returns
+    public interface ListingSink {
+        public void write(ByteBuffer buffer) throws DataTransferException;
+    }
+
+
+
+    private static final byte LINE_FEED = '\n';
+    private static final byte[] DIRECTORY_SUFFIX = File.separator.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LINE_END = new byte[] { '\r', '\n' };
+
+    // The server has no access control of its own, so every entry allows everything MLSD can express
+    private static final String FILE_PERMISSIONS = "adfrw";
+    private static final String DIRECTORY_PERMISSIONS = "cdeflmp";
+
+    private static final DateTimeFormatter MODIFY_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+
+
+
+    // Sorted listing, or null if the directory has more than SORT_LIMIT entries
+    public static byte[] buildSortedListing(Path directory) throws IOException {
+        ArrayList<String> fileList = new ArrayList<String>();
+        ArrayList<String> directoryList = new ArrayList<String>();
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, VISIBLE)) {
+            for (Path entry : entries) {
+                if (fileList.size() + directoryList.size() >= SORT_LIMIT) {
+                    return null;
+                }
+
+                if (Files.isDirectory(entry)) {
+                    directoryList.add(entry.getFileName().toString() + File.separator);
+                } else {
+                    fileList.add(entry.getFileName().toString());
+                }
+
+            }
+
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        Collections.sort(fileList);
+        Collections.sort(directoryList);
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        writeLines(result, directoryList);
+
+        if (fileList.size() != 0) {
+            if (directoryList.size() != 0) {
+                result.write(LINE_FEED);
+                result.write(LINE_FEED);
+            }
+
+            writeLines(result, fileList);
+        }
+
+        return result.toByteArray();
+    }
+
+    // Unsorted listing, written to sink through buffer. The directory is read twice, once for the directories and
+    // once for the files, so that nothing but the buffer is held. Return the number of bytes written
+    public static long streamListing(Path directory, ByteBuffer buffer, ListingSink sink)
+            throws IOException, DataTransferException
+    {
+        CharsetEncoder encoder = newEncoder();
+
+        long byteWritten = 0;
+        boolean hasDirectory = false;
+        boolean hasFile = false;
+
+        buffer.clear();
+
+        for (boolean listDirectories : new boolean[] { true, false }) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, VISIBLE)) {
+                for (Path entry : entries) {
+                    // Entries created or deleted between the two reads may be missed or listed twice
+                    if (Files.isDirectory(entry) != listDirectories) {
+                        continue;
+                    }
+
+                    if (hasDirectory || hasFile) {
+                        byteWritten += put(buffer, sink, LINE_FEED);
+                    }
+
+                    // Empty line between the directories and the first file
+                    if (!listDirectories && hasDirectory && !hasFile) {
+                        byteWritten += put(buffer, sink, LINE_FEED);
+                    }
+
+                    byteWritten += encode(buffer, sink, encoder, entry.getFileName().toString());
+
+                    if (listDirectories) {
+                        byteWritten += put(buffer, sink, DIRECTORY_SUFFIX);
+
+                        hasDirectory = true;
+                    } else {
+                        hasFile = true;
+                    }
+
+                }
+
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+
+        }
+
+        if (buffer.position() > 0) {
+            flush(buffer, sink);
+        }
+
+        return byteWritten;
+    }
+
+    // Unsorted MLSD listing, one line of facts per entry, the listed directory itself first (type=cdir). Each
+    // entry costs a single attribute read. Return the number of bytes written
+    public static long streamFacts(Path directory, ByteBuffer buffer, ListingSink sink)
+            throws IOException, DataTransferException
+    {
+        CharsetEncoder encoder = newEncoder();
+        StringBuilder line = new StringBuilder(128);
+
+        long byteWritten = 0;
+
+        buffer.clear();
+
+        BasicFileAttributes directoryAttributes = Files.readAttributes(directory, BasicFileAttributes.class);
+        byteWritten += encode(buffer, sink, encoder, formatFacts(line, "cdir", directoryAttributes, "."));
+        byteWritten += put(buffer, sink, LINE_END);
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, VISIBLE)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes;
+
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Deleted since the directory was read, or a broken link. Skip it
+                    continue;
+                }
+
+                String type = attributes.isDirectory() ? "dir" : "file";
+
+                byteWritten += encode(buffer, sink, encoder, formatFacts(
+                        line, type, attributes, entry.getFileName().toString()
+                ));
+                byteWritten += put(buffer, sink, LINE_END);
+            }
+
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        if (buffer.position() > 0) {
+            flush(buffer, sink);
+        }
+
+        return byteWritten;
+    }
+
+    // MLST/MLSD entry: "type=...;size=...;modify=...;perm=...; name", written into the reused line
+    public static StringBuilder formatFacts(
+            StringBuilder line, String type, BasicFileAttributes attributes, String name
+    ) {
+        line.setLength(0);
+
+        line.append("type=").append(type).append(';');
+
+        if (!attributes.isDirectory()) {
+            line.append("size=").append(attributes.size()).append(';');
+        }
+
+        line.append("modify=");
+        MODIFY_FORMAT.formatTo(attributes.lastModifiedTime().toInstant(), line);
+        line.append(';');
+
+        line.append("perm=").append(attributes.isDirectory() ? DIRECTORY_PERMISSIONS : FILE_PERMISSIONS).append(';');
+
+        line.append(' ').append(name);
+
+        return line;
+    }
+
+    // Same replacement as String.getBytes() for names which are not valid Unicode
+    private static CharsetEncoder newEncoder() {
+        return StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static void writeLines(ByteArrayOutputStream result, ArrayList<String> lines) {
+        for (int i = 0; i < lines.size(); ++i) {
+            if (i > 0) {
+                result.write(LINE_FEED);
+            }
+
+            byte[] line = lines.get(i).getBytes(StandardCharsets.UTF_8);
+            result.write(line, 0, line.length);
+        }
+
+    }
+
+    private static int put(ByteBuffer buffer, ListingSink sink, byte b) throws DataTransferException {
+        if (!buffer.hasRemaining()) {
+            flush(buffer, sink);
+        }
+
+        buffer.put(b);
+
+        return 1;
+    }
+
+    private static int put(ByteBuffer buffer, ListingSink sink, byte[] bytes) throws DataTransferException {
+        for (byte b : bytes) {
+            put(buffer, sink, b);
+        }
+
+        return bytes.length;
+    }
+
+    // Encode a name without building its byte array
+    private static int encode(ByteBuffer buffer, ListingSink sink, CharsetEncoder encoder, CharSequence name)
+            throws DataTransferException
+    {
+        CharBuffer chars = CharBuffer.wrap(name);
+        int start = buffer.position();
+        int byteWritten = 0;
+
+        encoder.reset();
+
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+
+            if (result.isOverflow()) {
+                byteWritten += buffer.position() - start;
+                flush(buffer, sink);
+                start = 0;
+                continue;
+            }
+
+            break;
+        }
+
+        return byteWritten + buffer.position() - start;
+    }
+
+    private static void flush(ByteBuffer buffer, ListingSink sink) throws DataTransferException {
+        buffer.flip();
+        sink.write(buffer);
+        buffer.clear();
+    }
+
+}
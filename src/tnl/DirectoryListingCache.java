@@ -0,0 +1,273 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Encoded LIST output of recently listed directories, shared by every session and keyed by the real directory
+// path. Entries are dropped when a WatchService reports a change in the directory, when a session changes the
+// directory itself, or when the cache is over its size limit (least recently used first)
+public class DirectoryListingCache {
+    public static final String MAX_BYTES = "listingCacheBytes";
+
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+
+
+    private static class Entry {
+        public byte[] listing;
+        public WatchKey watchKey;
+
+        public Entry(byte[] listing, WatchKey watchKey) {
+            this.listing = listing;
+            this.watchKey = watchKey;
+        }
+    }
+
+
+
+    private long maxBytes;
+
+    // Access ordered, so that the first entry is the least recently used one. Guarded by itself
+    private LinkedHashMap<Path, Entry> entries;
+    private long cachedBytes;
+
+    // Bumped by every invalidation. A listing built while it changed may be stale and is not cached
+    private AtomicLong generation;
+
+    private WatchService watchService;
+    private Thread watchThread;
+
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong invalidations;
+
+
+
+    public DirectoryListingCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+
+        entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+        cachedBytes = 0;
+
+        generation = new AtomicLong();
+
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        invalidations = new AtomicLong();
+
+        if (maxBytes <= 0) {
+            return;
+        }
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            // Without change notifications, a cached listing could be stale forever. Disable the cache
+            ServerLog.warn("Directory watching is not available, listing cache disabled");
+
+            this.maxBytes = 0;
+            return;
+        }
+
+        watchThread = SessionThreads.newDaemonThreadFactory("listing-watch-").newThread(() -> watchChanges());
+        watchThread.start();
+    }
+
+    public static DirectoryListingCache fromConfig() {
+        return new DirectoryListingCache(ServerConfig.getLong(MAX_BYTES, DEFAULT_MAX_BYTES));
+    }
+
+    // Encoded listing of a directory, from the cache if possible. directory must be a real path. Return null if
+    // the directory is too large to be sorted, such directories are streamed by the caller and never cached
+    public byte[] getListing(Path directory) throws IOException {
+        if (maxBytes <= 0) {
+            return DirectoryLister.buildSortedListing(directory);
+        }
+
+        synchronized (entries) {
+            Entry entry = entries.get(directory);
+
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.listing;
+            }
+
+        }
+
+        misses.incrementAndGet();
+
+        long stamp = generation.get();
+
+        // Watch before listing, so that a change made while listing is not missed
+        WatchKey watchKey;
+        try {
+            watchKey = directory.register(
+                    watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE
+            );
+        } catch (Exception e) {
+            return DirectoryLister.buildSortedListing(directory);
+        }
+
+        byte[] listing;
+        try {
+            listing = DirectoryLister.buildSortedListing(directory);
+        } catch (IOException e) {
+            unwatch(directory, watchKey);
+            throw e;
+        }
+
+        if (listing != null && listing.length <= maxBytes) {
+            put(directory, new Entry(listing, watchKey), stamp);
+        } else {
+            unwatch(directory, watchKey);
+        }
+
+        return listing;
+    }
+
+    // Drop the cached listing of a directory changed by this server
+    public void invalidate(Path directory) {
+        if (maxBytes <= 0) {
+            return;
+        }
+
+        Path key;
+        try {
+            key = directory.toRealPath();
+        } catch (IOException e) {
+            // The directory is gone. Its entry is dropped when its watch key is cancelled
+            key = directory.toAbsolutePath().normalize();
+        }
+
+        remove(key);
+    }
+
+    public void close() {
+        if (watchService == null) {
+            return;
+        }
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // Silently ignore the exception
+        }
+
+    }
+
+    public String describe() {
+        int entryCount;
+        long bytes;
+
+        synchronized (entries) {
+            entryCount = entries.size();
+            bytes = cachedBytes;
+        }
+
+        return String.format(
+                "%-24s %d directories, %d/%d bytes, %d hits, %d misses, %d invalidations",
+                "Listing cache", entryCount, bytes, maxBytes, hits.get(), misses.get(), invalidations.get()
+        );
+    }
+
+    // Watch keys are cancelled with the lock held, so that an entry is never cached with a cancelled key
+    private void put(Path directory, Entry entry, long stamp) {
+        synchronized (entries) {
+            if (generation.get() != stamp || !entry.watchKey.isValid()) {
+                return;
+            }
+
+            Entry previous = entries.put(directory, entry);
+
+            if (previous != null) {
+                // Registering a directory again returns the same watch key, which is still in use
+                cachedBytes -= previous.listing.length;
+            }
+
+            cachedBytes += entry.listing.length;
+
+            Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+
+            while (cachedBytes > maxBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+
+                iterator.remove();
+                cachedBytes -= eldest.listing.length;
+
+                eldest.watchKey.cancel();
+            }
+
+        }
+
+    }
+
+    // Cancel the watch of a directory which has not been cached. Other sessions may have cached it meanwhile,
+    // with the same watch key
+    private void unwatch(Path directory, WatchKey watchKey) {
+        synchronized (entries) {
+            if (!entries.containsKey(directory)) {
+                watchKey.cancel();
+            }
+
+        }
+
+    }
+
+    private void remove(Path directory) {
+        Entry entry;
+
+        synchronized (entries) {
+            generation.incrementAndGet();
+
+            entry = entries.remove(directory);
+
+            if (entry != null) {
+                cachedBytes -= entry.listing.length;
+                entry.watchKey.cancel();
+            }
+
+        }
+
+        if (entry != null) {
+            invalidations.incrementAndGet();
+        }
+
+    }
+
+    private void watchChanges() {
+        while (true) {
+            WatchKey watchKey;
+
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            // Any event, including an overflow, means the listing may have changed
+            watchKey.pollEvents();
+            remove((Path) watchKey.watchable());
+
+            watchKey.reset();
+        }
+
+    }
+
+}
@@ -8,31 +8,86 @@ package tnl;
 
 import java.io.*;
 import java.net.*;
-import java.nio.file.Path;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 
 
 
 public class FTPServer extends Thread implements onFTPThreadTerminateListener {
+    private static class WaitingConnection {
+        public Socket socket;
+        public String hostAddress;
+        public String connectionMapKey;
+
+        public WaitingConnection(Socket socket, String hostAddress, String connectionMapKey) {
+            this.socket = socket;
+            this.hostAddress = hostAddress;
+            this.connectionMapKey = connectionMapKey;
+        }
+    }
+
+
+
+    private static final int FORCED_LOGGED_OUT = 421;
+
+
+
     private ServerSocket serverSocket;
-    private Path serverDirectory;
 
-    private boolean wantToClose;
+    private volatile boolean wantToClose;
+
+    protected ServerContext serverContext;
+    protected SessionRegistry sessionRegistry;
+
+    // Creates the thread running each session, or each data transfer in NIO mode
+    protected ThreadFactory sessionThreadFactory;
 
-    private TreeMap<String, FTPServerThread> currentConnectionMap;
+    private AdmissionController admissionController;
+
+    // Connections waiting for a free session slot, oldest first. Guarded by itself
+    private ArrayDeque<WaitingConnection> waitQueue;
+    private ScheduledExecutorService waitQueueTimer;
 
 
 
     public FTPServer(int port, String serverDirectory) throws Exception {
-        this.serverSocket = new ServerSocket(port);
+        this(port, serverDirectory, SessionThreads.PLATFORM);
+    }
+
+    // threadMode is SessionThreads.PLATFORM or SessionThreads.VIRTUAL
+    public FTPServer(int port, String serverDirectory, String threadMode) throws Exception {
+        this(new ServerSocket(port), serverDirectory, threadMode);
+    }
+
+    protected FTPServer(ServerSocket serverSocket, String serverDirectory, String threadMode) throws Exception {
+        this.serverSocket = serverSocket;
         this.wantToClose = false;
 
-        this.serverDirectory = Paths.get(serverDirectory).toRealPath();
+        this.sessionThreadFactory = SessionThreads.newThreadFactory(threadMode, "session-");
+
+        serverContext = new ServerContext(Paths.get(serverDirectory).toRealPath());
+        sessionRegistry = new SessionRegistry();
+
+        serverContext.getServerMetrics().register(serverSocket.getLocalPort());
+
+        admissionController = serverContext.getAdmissionController();
+
+        waitQueue = new ArrayDeque<WaitingConnection>();
+
+        if (admissionController.getWaitQueueSize() > 0) {
+            waitQueueTimer = Executors.newSingleThreadScheduledExecutor(
+                    SessionThreads.newDaemonThreadFactory("admission-timer-")
+            );
+        }
 
-        currentConnectionMap = new TreeMap<String, FTPServerThread>();
     }
 
     public void run() {
@@ -40,11 +95,11 @@ public class FTPServer extends Thread implements onFTPThreadTerminateListener {
             Socket socket = null;
             try {
                 socket = serverSocket.accept();
-            } catch (SocketException e) {
+            } catch (SocketException | ClosedChannelException e) {
                 // The closeAll() command is issued. Silently ignore as
                 // it will be handled later on
             } catch (IOException e) {
-                System.out.println("I/O error occur while waiting for connection. ");
+                ServerLog.warn("I/O error occur while waiting for connection.");
             }
 
             // If closeAll command is issued
@@ -55,30 +110,199 @@ public class FTPServer extends Thread implements onFTPThreadTerminateListener {
                     // Silently ignore the exception
                 }
 
-                for (Map.Entry<String, FTPServerThread> entry : currentConnectionMap.entrySet()) {
-                    entry.getValue().close();
+                rejectWaitingConnections();
+
+                for (SessionInfo sessionInfo : sessionRegistry.snapshot()) {
+                    sessionInfo.getSession().close();
                 }
 
+                serverContext.close();
+
                 return;
             }
 
-            // Create new connection
-            String connectionMapKey = socket.getInetAddress().getHostAddress() + ":" + String.valueOf(socket.getPort());
-            FTPServerThread ftpThread = null;
+            if (socket != null) {
+                acceptConnection(socket);
+            }
 
-            System.out.println("New connection from " + connectionMapKey);
+        }
 
-            try {
-                ftpThread = new FTPServerThread(socket, connectionMapKey, serverDirectory, this);
-                currentConnectionMap.put(connectionMapKey, ftpThread);
+    }
+
+    private void acceptConnection(Socket socket) {
+        String hostAddress = socket.getInetAddress().getHostAddress();
+        String connectionMapKey = hostAddress + ":" + String.valueOf(socket.getPort());
 
-                ftpThread.start();
-            } catch (Exception e) {
-                System.out.println(String.format("%s: Error establishing connection. Terminate immediately", connectionMapKey));
+        // Connections already waiting go first
+        int admission;
+        synchronized (waitQueue) {
+            admission = waitQueue.isEmpty()
+                    ? admissionController.tryAdmitSession(hostAddress)
+                    : AdmissionController.REJECTED_SERVER_FULL;
+
+            if (admission == AdmissionController.REJECTED_SERVER_FULL
+                    && waitQueue.size() < admissionController.getWaitQueueSize()) {
+                enqueueWaitingConnection(new WaitingConnection(socket, hostAddress, connectionMapKey));
+                return;
             }
 
         }
 
+        if (admission == AdmissionController.REJECTED_SERVER_FULL) {
+            rejectConnection(socket, connectionMapKey, "Too many connections");
+            return;
+        }
+
+        if (admission == AdmissionController.REJECTED_ADDRESS_FULL) {
+            rejectConnection(socket, connectionMapKey, "Too many connections from your address");
+            return;
+        }
+
+        startAdmittedConnection(socket, hostAddress, connectionMapKey);
+    }
+
+    private void startAdmittedConnection(Socket socket, String hostAddress, String connectionMapKey) {
+        ServerLog.info("New connection from %s", connectionMapKey);
+
+        SessionInfo sessionInfo = sessionRegistry.newSessionInfo(hostAddress, connectionMapKey);
+
+        try {
+            startConnection(socket, sessionInfo);
+        } catch (Exception e) {
+            ServerLog.warn("%s: Error establishing connection. Terminate immediately", connectionMapKey);
+
+            abortConnection(socket, sessionInfo);
+        }
+
+    }
+
+    // Undo a startConnection() that failed part way. The session may have been created and registered already,
+    // with its idle timeout scheduled
+    private void abortConnection(Socket socket, SessionInfo sessionInfo) {
+        FTPServerThread session = sessionInfo.getSession();
+
+        if (session != null) {
+            // Cancels the idle timeout, and unregisters the session if it was registered
+            session.terminate(true);
+        }
+
+        sessionRegistry.remove(sessionInfo.getSessionId());
+
+        try {
+            socket.close();
+        } catch (Exception e) {
+            // Silently ignore the exception
+        }
+
+        if (sessionInfo.markSlotReleased()) {
+            admissionController.releaseSession(sessionInfo.getHostAddress());
+        }
+
+    }
+
+    // Reply straight away, without creating any session state
+    private void rejectConnection(Socket socket, String connectionMapKey, String reason) {
+        admissionController.recordRejectedSession();
+
+        ServerLog.warn("%s: %s. Connection rejected.", connectionMapKey, reason);
+
+        try {
+            socket.getOutputStream().write(
+                    (FORCED_LOGGED_OUT + " " + reason + ", try again later\n").getBytes(StandardCharsets.UTF_8)
+            );
+        } catch (Exception e) {
+            // Silently ignore the exception
+        }
+
+        try {
+            socket.close();
+        } catch (Exception e) {
+            // Silently ignore the exception
+        }
+
+    }
+
+    // Caller holds the waitQueue lock
+    private void enqueueWaitingConnection(final WaitingConnection waitingConnection) {
+        waitQueue.offer(waitingConnection);
+
+        ServerLog.info("%s: Server full. Connection queued.", waitingConnection.connectionMapKey);
+
+        waitQueueTimer.schedule(() -> {
+            boolean expired;
+
+            synchronized (waitQueue) {
+                expired = waitQueue.remove(waitingConnection);
+            }
+
+            if (expired) {
+                rejectConnection(waitingConnection.socket, waitingConnection.connectionMapKey, "Too many connections");
+            }
+
+        }, admissionController.getWaitTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // Called when a session slot has been released
+    private void admitWaitingConnections() {
+        while (true) {
+            WaitingConnection waitingConnection;
+            int admission;
+
+            synchronized (waitQueue) {
+                waitingConnection = waitQueue.peek();
+
+                if (waitingConnection == null) {
+                    return;
+                }
+
+                admission = admissionController.tryAdmitSession(waitingConnection.hostAddress);
+
+                if (admission == AdmissionController.REJECTED_SERVER_FULL) {
+                    return;
+                }
+
+                waitQueue.poll();
+            }
+
+            if (admission == AdmissionController.ADMITTED) {
+                startAdmittedConnection(
+                        waitingConnection.socket, waitingConnection.hostAddress, waitingConnection.connectionMapKey
+                );
+            } else {
+                rejectConnection(
+                        waitingConnection.socket, waitingConnection.connectionMapKey,
+                        "Too many connections from your address"
+                );
+            }
+
+        }
+
+    }
+
+    private void rejectWaitingConnections() {
+        ArrayList<WaitingConnection> waitingConnections;
+
+        synchronized (waitQueue) {
+            waitingConnections = new ArrayList<WaitingConnection>(waitQueue);
+            waitQueue.clear();
+        }
+
+        for (WaitingConnection waitingConnection : waitingConnections) {
+            rejectConnection(waitingConnection.socket, waitingConnection.connectionMapKey, "Server closing");
+        }
+
+        if (waitQueueTimer != null) {
+            waitQueueTimer.shutdownNow();
+        }
+
+    }
+
+    // Start serving a newly accepted connection with a dedicated (platform or virtual) thread
+    protected void startConnection(Socket socket, SessionInfo sessionInfo) throws Exception {
+        FTPServerThread ftpThread = new FTPServerThread(socket, sessionInfo, serverContext, this);
+        sessionRegistry.add(sessionInfo, ftpThread);
+
+        sessionThreadFactory.newThread(ftpThread).start();
     }
 
     public void closeAll() {
@@ -92,32 +316,110 @@ public class FTPServer extends Thread implements onFTPThreadTerminateListener {
 
     }
 
-    public void closeIndividualConnection(String connectionKey) throws Exception {
-        FTPServerThread ftpServerThread = currentConnectionMap.get(connectionKey);
+    public void closeIndividualConnection(long sessionId) throws Exception {
+        SessionInfo sessionInfo = sessionRegistry.get(sessionId);
 
-        if (ftpServerThread == null) {
+        if (sessionInfo == null) {
             throw new Exception("Connection does not exist!");
         }
 
-        System.out.println(String.format("%s: Closing.", connectionKey));
+        ServerLog.info("%s: Closing.", sessionInfo.getConnectionKey());
 
-        ftpServerThread.close();
+        sessionInfo.getSession().close();
     }
 
-    public String[] getCurrentConnectionMap() {
-        return currentConnectionMap.keySet().toArray(new String[currentConnectionMap.size()]);
+    public ArrayList<SessionInfo> getCurrentConnections() {
+        return sessionRegistry.snapshot();
     }
 
-    public void onConnectionAutoTerminated(String connectionKey) {
-        System.out.println(String.format("%s: Error happened. Connection terminated.", connectionKey));
+    public int getCurrentConnectionCount() {
+        return sessionRegistry.size();
+    }
+
+    public int getWaitingConnectionCount() {
+        synchronized (waitQueue) {
+            return waitQueue.size();
+        }
+
+    }
 
-        currentConnectionMap.remove(connectionKey);
+    public TransferStatistics getTransferStatistics() {
+        return serverContext.getTransferStatistics();
     }
 
-    public void onConnectionTerminated(String connectionKey) {
-        System.out.println(String.format("%s: Connection terminated.", connectionKey));
+    public ServerMetrics getServerMetrics() {
+        return serverContext.getServerMetrics();
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    public CredentialStore getCredentialStore() {
+        return serverContext.getCredentialStore();
+    }
+
+    public IdleSessionReaper getIdleSessionReaper() {
+        return serverContext.getIdleSessionReaper();
+    }
+
+    public BandwidthShaper getBandwidthShaper() {
+        return serverContext.getBandwidthShaper();
+    }
+
+    public UploadCommitter getUploadCommitter() {
+        return serverContext.getUploadCommitter();
+    }
+
+    public PassivePortPool getPassivePortPool() {
+        return serverContext.getPassivePortPool();
+    }
+
+    public DirectoryListingCache getDirectoryListingCache() {
+        return serverContext.getDirectoryListingCache();
+    }
+
+    public FileContentCache getFileContentCache() {
+        return serverContext.getFileContentCache();
+    }
+
+    public MappedFileRegistry getMappedFileRegistry() {
+        return serverContext.getMappedFileRegistry();
+    }
+
+    public void onConnectionAutoTerminated(long sessionId) {
+        SessionInfo sessionInfo = sessionRegistry.remove(sessionId);
+
+        if (sessionInfo != null) {
+            ServerLog.warn("%s: Error happened. Connection terminated.", sessionInfo.getConnectionKey());
+
+            releaseSession(sessionInfo);
+        }
+
+    }
+
+    public void onConnectionTerminated(long sessionId) {
+        SessionInfo sessionInfo = sessionRegistry.remove(sessionId);
+
+        if (sessionInfo != null) {
+            ServerLog.info("%s: Connection terminated.", sessionInfo.getConnectionKey());
+
+            releaseSession(sessionInfo);
+        }
+
+    }
+
+    private void releaseSession(SessionInfo sessionInfo) {
+        if (!sessionInfo.markSlotReleased()) {
+            return;
+        }
+
+        admissionController.releaseSession(sessionInfo.getHostAddress());
+
+        if (!wantToClose) {
+            admitWaitingConnections();
+        }
 
-        currentConnectionMap.remove(connectionKey);
     }
 
 }
\ No newline at end of file
@@ -8,12 +8,16 @@ package tnl;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Scanner;
 
 
 public class FTPServerConsole {
     private static final int DEFAULT_PORT = 6788;
 
+    private static final String MODE_THREAD = "thread";
+    private static final String MODE_NIO = "nio";
+
 
 
     private static Scanner scanConsole = new Scanner(System.in);
@@ -59,8 +63,40 @@ public class FTPServerConsole {
             return;
         }
 
+        System.out.print("Server mode (leave blank for default: thread, nio for selector-based): ");
+
+        String serverMode = scanConsole.nextLine().trim().toLowerCase();
+        if (!serverMode.equals("") && !serverMode.equals(MODE_THREAD) && !serverMode.equals(MODE_NIO)) {
+            System.out.println("\nInvalid server mode! Terminated.");
+            return;
+        }
+
+        System.out.print("Session threads (leave blank for default: platform, virtual for virtual threads): ");
+
+        String threadMode = scanConsole.nextLine().trim().toLowerCase();
+        if (threadMode.equals("")) {
+            threadMode = SessionThreads.PLATFORM;
+        }
+
+        if (!threadMode.equals(SessionThreads.PLATFORM) && !threadMode.equals(SessionThreads.VIRTUAL)) {
+            System.out.println("\nInvalid thread mode! Terminated.");
+            return;
+        }
+
+        if (threadMode.equals(SessionThreads.VIRTUAL) && !SessionThreads.isVirtualThreadSupported()) {
+            System.out.println(
+                    "\nVirtual threads are not supported by this JVM (Java 21 or later required)! Terminated."
+            );
+            return;
+        }
+
         try {
-            ftpServer = new FTPServer(port, serverDirectory);
+            if (serverMode.equals(MODE_NIO)) {
+                ftpServer = new NioFTPServer(port, serverDirectory, NioFTPServer.DEFAULT_SELECTOR_COUNT, threadMode);
+            } else {
+                ftpServer = new FTPServer(port, serverDirectory, threadMode);
+            }
+
         } catch (Exception e) {
             System.out.println(String.format("\nCannot start FTP Server at port %d! Terminated.", port));
         }
@@ -93,13 +129,33 @@ public class FTPServerConsole {
                 continue;
             }
 
+            if (command.equals("s") || command.equals("S")) {
+                showTransferStatistics();
+                continue;
+            }
+
+            if (command.equals("m") || command.equals("M")) {
+                showServerMetrics();
+                continue;
+            }
+
+            if (command.equals("b") || command.equals("B")) {
+                showBandwidth();
+                continue;
+            }
+
+            if (command.length() >= 3 && (command.charAt(0) == 'b' || command.charAt(0) == 'B')) {
+                setBandwidth(command.substring(2).trim());
+                continue;
+            }
+
             if (command.length() >= 3 && (command.charAt(0) == 'c' || command.charAt(0) == 'C')) {
-                String connectionKey = command.substring(2).trim();
+                String sessionId = command.substring(2).trim();
 
                 try {
-                    ftpServer.closeIndividualConnection(connectionKey);
+                    ftpServer.closeIndividualConnection(Long.parseLong(sessionId));
                 } catch (Exception e) {
-                    System.out.println(String.format("%s: This connection does not exist.", connectionKey));
+                    System.out.println(String.format("%s: This connection does not exist.", sessionId));
                 }
 
                 continue;
@@ -113,16 +169,80 @@ public class FTPServerConsole {
 
     private static void showHelp() {
         System.out.println("l/L                 List all current connection.");
-        System.out.println("c/C <connection>    Close a connection.");
+        System.out.println("c/C <session id>    Close a connection.");
+        System.out.println("s/S                 Show data transfer, upload, passive port, cache and log statistics.");
+        System.out.println("m/M                 Show command latencies, transfer sizes and failed replies.");
+        System.out.println("b/B                 Show bandwidth limits and their use.");
+        System.out.println("b/B <level> <KB/s>  Limit global, user or session bandwidth, 0 for unlimited.");
         System.out.println("q/Q                 Stop the whole server.");
         System.out.println("h/H                 Get help.");
     }
 
     private static void listCurrentConnection() {
-        for (String conn : ftpServer.getCurrentConnectionMap()) {
-            System.out.println(conn);
+        long now = System.currentTimeMillis();
+        ArrayList<SessionInfo> connections = ftpServer.getCurrentConnections();
+
+        for (SessionInfo conn : connections) {
+            System.out.println(conn.describe(now));
+        }
+
+        System.out.println(String.format(
+                "%d connection(s), %d waiting", connections.size(), ftpServer.getWaitingConnectionCount()
+        ));
+        System.out.println(ftpServer.getAdmissionController().describe());
+        System.out.println(ftpServer.getCredentialStore().describe());
+
+        for (String line : ftpServer.getIdleSessionReaper().describe()) {
+            System.out.println(line);
+        }
+
+    }
+
+    private static void showTransferStatistics() {
+        for (String line : ftpServer.getTransferStatistics().describe()) {
+            System.out.println(line);
+        }
+
+        System.out.println(ftpServer.getUploadCommitter().describe());
+        System.out.println(ftpServer.getPassivePortPool().describe());
+        System.out.println(ftpServer.getDirectoryListingCache().describe());
+        System.out.println(ftpServer.getFileContentCache().describe());
+        System.out.println(ftpServer.getMappedFileRegistry().describe());
+        System.out.println(String.format("%-24s %d messages dropped", "Log", ServerLog.getDroppedCount()));
+    }
+
+    private static void showBandwidth() {
+        for (String line : ftpServer.getBandwidthShaper().describe()) {
+            System.out.println(line);
+        }
+
+    }
+
+    private static void setBandwidth(String arguments) {
+        String[] parts = arguments.split("\\s+");
+
+        try {
+            long kilobytesPerSecond = Long.parseLong(parts[1]);
+
+            if (parts.length != 2 || kilobytesPerSecond < 0) {
+                throw new IllegalArgumentException();
+            }
+
+            ftpServer.getBandwidthShaper().setRate(parts[0].toLowerCase(), kilobytesPerSecond * 1024);
+            System.out.println(String.format(
+                    "%s bandwidth: %s", parts[0], kilobytesPerSecond == 0 ? "unlimited" : kilobytesPerSecond + " KB/s"
+            ));
+        } catch (Exception e) {
+            System.out.println("Usage: b <global|user|session> <KB/s>");
+        }
+
+    }
+
+    private static void showServerMetrics() {
+        for (String line : ftpServer.getServerMetrics().describe()) {
+            System.out.println(line);
         }
 
     }
 
-}
\ No newline at end of file
+}
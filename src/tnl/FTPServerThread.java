@@ -10,87 +10,38 @@ import java.io.*;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 
 
-public class FTPServerThread extends Thread {
-    private class FTPRequest {
-        public String code;
-        public ArrayList<String> arguments;
-
-        public FTPRequest(String request) throws Exception {
-            arguments = new ArrayList<String>();
-
-            int index = request.indexOf(" ");
-
-            if (index == -1) {
-                code = request;
-                if (!FTPRequestCode.isValidCode(code)) {
-                    throw new Exception("Invalid request");
-                }
-
-                return;
-            }
-
-            code = request.substring(0, index).toUpperCase();
-            if (!FTPRequestCode.isValidCode(code)) {
-                throw new Exception("Invalid request");
-            }
-
-            request = request.substring(index + 1).trim();
-
-            index = 0;
-            int len = request.length();
-            int prev;
-
-            while (index < len) {
-                prev = index;
-
-                if (request.charAt(index) == '\"') {
-                    ++index;
-                    while (index < len && request.charAt(index) != '\"') {
-                        ++index;
-                    }
-
-                    if (index == len) {
-                        throw new Exception("Invalid request");
-                    }
-
-                    arguments.add(request.substring(prev + 1, index));
-
-                    ++index;
-                } else {
-                    while (index < len && request.charAt(index) != ' ') {
-                        ++index;
-                    }
-
-                    arguments.add(request.substring(prev, index));
-                }
-
-                while (index < len && request.charAt(index) == ' ') {
-                    ++index;
-                }
-
-            }
-
-        }
-
-    }
-
-
-
+public class FTPServerThread implements Runnable {
     private static class FTPRequestCode {
         public static final String USERNAME = "USER";
         public static final String PASSWORD = "PASS";
 
         public static final String OPEN_DATA_CONNECTION = "PORT";
+        public static final String PASSIVE_DATA_CONNECTION = "PASV";
+        public static final String EXTENDED_PASSIVE_DATA_CONNECTION = "EPSV";
+        public static final String TRANSFER_MODE = "MODE";
+
+        public static final String RESTART = "REST";
+        public static final String BYTE_RANGE = "RANG";
+        public static final String SEGMENTS = "SEGM";
+        public static final String FILE_SIZE = "SIZE";
 
         public static final String MAKE_NEW_DIRECTORY = "MKD";
         public static final String LIST_FILE_DIRECTORY = "LIST";
+        public static final String MACHINE_LIST_DIRECTORY = "MLSD";
+        public static final String MACHINE_LIST_PATH = "MLST";
         public static final String GOTO_DIRECTORY = "CWD";
 
         public static final String DELETE = "DELE";
@@ -100,26 +51,20 @@ public class FTPServerThread extends Thread {
         public static final String UPLOAD_FILE_OVERWRITE = "STORE";
 
         public static final String LOGOUT = "QUIT";
-
-        private static final List<String> REQUEST_CODES = Arrays.asList(new String[] {
-            "USER", "PASS",
-            "PORT",
-            "MKD", "LIST", "CWD",
-            "DELE",
-            "RETR", "STOU", "STORE",
-            "QUIT"
-        });
+    }
 
 
 
-        public static boolean isValidCode(String code) {
-            return REQUEST_CODES.contains(code);
-        }
+    private static class FTPTransferMode {
+        public static final String STREAM = "S";
+        public static final String BLOCK = "B";
+        public static final String COMPRESSED = "Z";
     }
 
 
 
     private static class FTPResponseCode {
+        public static final int DATA_CONNECTION_ALREADY_OPEN = 125;
         public static final int SIGNAL_DATA_CONNECTION_OPEN = 150;
 
         public static final int LOGGED_IN = 230;
@@ -127,8 +72,12 @@ public class FTPServerThread extends Thread {
         public static final int REQUEST_ACTION_DONE = 250;
         public static final int DATA_TRANSFER_COMPLETED = 226;
         public static final int DATA_CONNECTION_OPEN_DONE = 200;
+        public static final int ENTERING_PASSIVE_MODE = 227;
+        public static final int ENTERING_EXTENDED_PASSIVE_MODE = 229;
+        public static final int FILE_STATUS = 213;
 
         public static final int ENTER_PASS = 331;
+        public static final int PENDING_FURTHER_INFORMATION = 350;
 
         public static final int FORCED_LOGGED_OUT = 421;
         public static final int DATA_CONNECTION_OPEN_FAILED = 425;
@@ -137,161 +86,347 @@ public class FTPServerThread extends Thread {
         public static final int REQUEST_ACTION_FAILED = 451;
 
         public static final int SYNTAX_ERROR = 501;
+        public static final int PARAMETER_NOT_IMPLEMENTED = 504;
+        public static final int ACCESS_DENIED = 550;
+        public static final int INVALID_RESTART_OFFSET = 554;
     }
 
 
 
-    private HashMap<String, String> USERS;
-    private final int BUFFER_SIZE = 1024;
-    private final int READ_TIMEOUT = 8000;
     private final Charset ENCODING_UTF8 = Charset.forName("UTF-8");
 
+    // Time allowed for the data connection to be made, in both active and passive mode
+    private static final int DATA_CONNECTION_TIMEOUT = ServerConfig.getInt("dataConnectionTimeoutMillis", 10000);
+
+    // Most data connections a segmented download (SEGM) may use
+    private static final int MAX_SEGMENTS = ServerConfig.getInt("maxSegments", 16);
+
+    // Handler of every request code, shared by all sessions. New commands are registered in newCommandTable()
+    private static final CommandTable<FTPServerThread> COMMANDS = newCommandTable();
+
 
 
-    private boolean wantToClose;
+    private volatile boolean wantToClose;
 
     private Socket socket;
-    private BufferedReader inputStream;
+    private RequestLineReader requestReader;
     private PrintWriter outputStream;
 
+    // Reused by every request read by run()
+    private RequestLine request;
+
     private String clientDataAddress;
     private int clientDataPort;
 
+    // Control connection address of the server, given to the client in passive mode
+    private InetAddress serverAddress;
+
+    // Listening port borrowed from the passive port pool by PASV/EPSV, until the next data transfer. Guarded by this
+    private ServerSocketChannel passiveDataChannel;
+
+    // In block mode, one data connection carries every transfer until the mode or the data port changes
+    private boolean blockMode;
+    private volatile Socket persistentDataSocket;
+
+    // In compressed mode (MODE Z), files and listings go through a deflate stream, one connection each as in
+    // stream mode
+    private boolean compressedMode;
+
+    // Set by REST or RANG, and used by the next RETR, STOU or STORE only. The range end is inclusive, -1 if none
+    private long restartOffset;
+    private long rangeEnd;
+
+    // Set by SEGM, and used by the next RETR only. Number of data connections carrying the file, 0 if not set
+    private int segmentCount;
+
+    private ServerContext serverContext;
     private Path serverDirectory;
     private Path currentAccessDirectory;
 
+    // Real path of serverDirectory, which every path a client reaches must be in
+    private Path rootDirectory;
+
     private onFTPThreadTerminateListener connectionClosedListener;
 
+    private FileTransferEngine fileTransferEngine;
+    private BandwidthShaper.Throttle throttle;
+
+    private SessionInfo sessionInfo;
     private String connectionKey;
 
     private String statusHeader;
 
-    private boolean hasLoggedIn;
+    private volatile boolean hasLoggedIn;
     private String username;
 
-    private boolean isRunning;
+    private volatile boolean isRunning;
+    private volatile boolean isHandlingRequest;
+
+    // Written under the lock of this, read by the idle reaper without it
+    private volatile boolean terminationAnnounced;
 
+    // Set once the idle reaper has asked the session's thread to close the connection
+    private volatile boolean timedOut;
 
+    // Idle and login timeout of the session, null if disabled
+    private TimerWheel.Timeout idleTimeout;
 
-    public FTPServerThread(Socket socket, String connectionKey, Path serverDirectory, onFTPThreadTerminateListener autoTerminateListener)
-            throws Exception
+
+
+    public FTPServerThread(
+            Socket socket, SessionInfo sessionInfo, ServerContext serverContext,
+            onFTPThreadTerminateListener autoTerminateListener
+    ) throws Exception
     {
+        this(sessionInfo, serverContext, autoTerminateListener);
+
         this.socket = socket;
-        this.connectionKey = connectionKey;
-        this.serverDirectory = serverDirectory;
+        this.serverAddress = socket.getLocalAddress();
+
+        try {
+            // Replies are small writes, often following one another. Do not hold them back for the client's
+            // delayed acknowledgement (Nagle's algorithm)
+            socket.setTcpNoDelay(true);
+
+            this.requestReader = new RequestLineReader(this.socket.getInputStream());
+            this.request = new RequestLine();
+            this.outputStream = new PrintWriter(this.socket.getOutputStream(), true);
+        } catch (Exception e) {
+            // Nobody holds this session to terminate it, its idle timeout must not fire
+            idleTimeout.cancel();
+            throw e;
+        }
+
+    }
+
+    // Session driven by an external event loop (see NioFTPServer) instead of its own run() loop.
+    // Request lines are passed in through processRequest(), and responses are written to controlOutStream
+    public FTPServerThread(
+            OutputStream controlOutStream, InetAddress serverAddress, SessionInfo sessionInfo,
+            ServerContext serverContext, onFTPThreadTerminateListener autoTerminateListener
+    ) throws Exception
+    {
+        this(sessionInfo, serverContext, autoTerminateListener);
+
+        this.serverAddress = serverAddress;
+        this.outputStream = new PrintWriter(new OutputStreamWriter(controlOutStream, ENCODING_UTF8), true);
+    }
+
+    private FTPServerThread(
+            SessionInfo sessionInfo, ServerContext serverContext, onFTPThreadTerminateListener autoTerminateListener
+    ) throws Exception
+    {
+        this.sessionInfo = sessionInfo;
+        this.connectionKey = sessionInfo.getConnectionKey();
+
+        this.serverContext = serverContext;
+        this.serverDirectory = serverContext.getServerDirectory();
+
+        this.fileTransferEngine = new FileTransferEngine(serverContext.getTransferStatistics());
+        this.throttle = serverContext.getBandwidthShaper().newThrottle(sessionInfo.getSessionId());
+        this.fileTransferEngine.setThrottle(throttle);
 
         this.clientDataAddress = null;
         this.clientDataPort = -1;
 
+        this.passiveDataChannel = null;
+
+        this.blockMode = false;
+        this.persistentDataSocket = null;
+
+        this.compressedMode = false;
+
+        this.restartOffset = 0;
+        this.rangeEnd = -1;
+
+        this.segmentCount = 0;
+
         this.connectionClosedListener = autoTerminateListener;
 
-        this.currentAccessDirectory = this.serverDirectory.toRealPath();
+        this.rootDirectory = this.serverDirectory.toRealPath();
+        this.currentAccessDirectory = this.rootDirectory;
 
         hasLoggedIn = false;
         username = null;
 
         statusHeader = this.connectionKey;
 
-        try {
-            socket.setSoTimeout(READ_TIMEOUT);
-
-            this.inputStream = new BufferedReader((new InputStreamReader(this.socket.getInputStream())));
-            this.outputStream = new PrintWriter(this.socket.getOutputStream(), true);
-        } catch (Exception e) {
-            throw e;
-        }
-
-        initializeUSERS();
-
         wantToClose = false;
         isRunning = false;
+        isHandlingRequest = false;
+        terminationAnnounced = false;
+        timedOut = false;
+
+        idleTimeout = serverContext.getIdleSessionReaper().watch(this);
     }
 
     public void run() {
         isRunning = true;
 
-        String request = null;
-        boolean closedHasBeenAnnouced = false;
-
-        boolean readTimeout;
-
+        // Reads block without a timeout. close() and the idle reaper wake this loop up through the socket
         while (!wantToClose) {
-            readTimeout = false;
-
             try {
-                request = inputStream.readLine();
-            } catch (SocketTimeoutException e) {
-                // Timeout due to waiting. Continue as usual
+                if (!requestReader.readLine(request)) {
+                    // Client disconnected, unless the console user closed the connection
+                    if (!wantToClose) {
+                        terminate(true);
+                    }
+
+                    break;
+                }
 
-                readTimeout = true;
             } catch (IOException e) {
-                // Input stream error. Cannot recoverable. Terminate
-                closeSocket(true);
-                connectionClosedListener.onConnectionAutoTerminated(connectionKey);
+                // Input stream error, or the socket closed on a timeout. Cannot recoverable. Terminate
+                terminate(true);
 
                 break;
             }
 
             // Console user wants to close this connection
             if (wantToClose) {
-                closeSocket(false);
-                connectionClosedListener.onConnectionTerminated(connectionKey);
+                break;
+            }
 
-                closedHasBeenAnnouced = true;
+            if (!processRequest(request)) {
                 break;
             }
 
-            if (readTimeout) {
-                continue;
+        }
+
+        isRunning = false;
+
+        terminate(false);
+    }
+
+    // Handle one parsed request line. Return false if the connection has been terminated because of this request
+    public boolean processRequest(RequestLine request) {
+        isHandlingRequest = true;
+        sessionInfo.touch();
+        sessionInfo.incrementCommandsServed();
+
+        try {
+            if (ServerLog.isEnabled(ServerLog.DEBUG)) {
+                ServerLog.log(ServerLog.DEBUG, statusHeader, request.toString());
             }
 
-            System.out.println(String.format("%s: %s", statusHeader, request));
+            CommandTable.Command<FTPServerThread> command = COMMANDS.lookup(request.getCode());
 
-            FTPRequest ftpRequest;
-            try {
-                ftpRequest = new FTPRequest(request);
-            } catch (Exception e) {
+            if (command == null) {
                 // Invalid request, will close the connection immediately
-                System.out.println(String.format("%s: Invalid request!", statusHeader));
+                ServerLog.warn("%s: Invalid request!", statusHeader);
 
-                closeSocket(true);
-                connectionClosedListener.onConnectionAutoTerminated(connectionKey);
-
-                closedHasBeenAnnouced = true;
-                break;
+                terminate(true);
+                return false;
             }
 
             // Right now, there is no different between the ways to handle InvalidRequest
             // and ServerUnrecoverableException. We just simply close this connection
             try {
-                handleRequest(ftpRequest);
+                handleRequest(command, request);
 
             } catch (InvalidRequestException e) {
-                System.out.println(String.format("%s: Invalid request!.", statusHeader));
-
-                closeSocket(true);
-                connectionClosedListener.onConnectionAutoTerminated(connectionKey);
+                ServerLog.warn("%s: Invalid request!", statusHeader);
 
-                closedHasBeenAnnouced = true;
-                break;
+                terminate(true);
+                return false;
 
             } catch (ServerUnrecoverableException e) {
-                System.out.println(String.format("%s: %s!", statusHeader, e.getMessage()));
-
-                closeSocket(true);
-                connectionClosedListener.onConnectionAutoTerminated(connectionKey);
+                ServerLog.warn("%s: %s!", statusHeader, e.getMessage());
 
-                closedHasBeenAnnouced = true;
-                break;
+                terminate(true);
+                return false;
             }
 
+            return true;
+        } finally {
+            sessionInfo.touch();
+            isHandlingRequest = false;
         }
 
-        isRunning = false;
+    }
+
+    // True if the client has logged out or the console user wants to close this connection
+    public boolean isClosing() {
+        return wantToClose;
+    }
 
-        if (!closedHasBeenAnnouced) {
-            connectionClosedListener.onConnectionTerminated(connectionKey);
-            closeSocket(false);
+    public boolean isHandlingRequest() {
+        return isHandlingRequest;
+    }
+
+    public boolean isLoggedIn() {
+        return hasLoggedIn;
+    }
+
+    public SessionInfo getSessionInfo() {
+        return sessionInfo;
+    }
+
+    // Called by the idle reaper, from the timer thread, which must not block. A session with its own thread is
+    // woken up to send the reply and close the connection itself, as a client which does not read would block
+    // the reply. Sessions driven by an event loop only queue their replies
+    public void closeOnTimeout(String reason) {
+        ServerLog.info("%s: %s, connection closed", statusHeader, reason);
+
+        if (socket == null) {
+            terminate(true);
+            return;
+        }
+
+        timedOut = true;
+
+        try {
+            // run() sees the end of the stream and terminates the session
+            socket.shutdownInput();
+        } catch (IOException e) {
+            abortOnTimeout();
+        }
+
+    }
+
+    // Called by the idle reaper if the session has not terminated some time after closeOnTimeout(): its thread is
+    // stuck sending the reply. Closing the socket fails the write
+    public void abortOnTimeout() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Silently ignore exception
+        }
+
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public boolean isTerminated() {
+        return terminationAnnounced;
+    }
+
+    // Close the connection and notify the listener. Only the first call has effect
+    public synchronized void terminate(boolean forced) {
+        if (terminationAnnounced) {
+            return;
+        }
+
+        terminationAnnounced = true;
+
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+
+        throttle.close();
+
+        closeSocket(forced);
+
+        // A passive port taken by a running transfer is released by the transfer itself
+        releasePassiveDataChannel();
+        closePersistentDataConnection();
+
+        if (forced) {
+            connectionClosedListener.onConnectionAutoTerminated(sessionInfo.getSessionId());
+        } else {
+            connectionClosedListener.onConnectionTerminated(sessionInfo.getSessionId());
         }
 
     }
@@ -299,21 +434,77 @@ public class FTPServerThread extends Thread {
     public void close() {
         wantToClose = true;
 
-        if (!isRunning) {
-            closeSocket(false);
+        if (!isRunning && !isHandlingRequest) {
+            terminate(false);
+            return;
+        }
+
+        if (socket != null) {
+            // Wake up run() waiting for the next request. A request being handled is finished first
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                // Silently ignore exception
+            }
+
         }
 
     }
 
-    private void initializeUSERS() {
-        USERS = new HashMap<String, String>();
+    // Whether handling the request may keep the thread busy for a while, such as a data transfer or a file system
+    // call
+    public static boolean isBlockingRequest(RequestLine request) {
+        CommandTable.Command<FTPServerThread> command = COMMANDS.lookup(request.getCode());
+
+        return command != null && command.isBlocking();
+    }
 
-        USERS.put("usernopass", "");
-        
-        USERS.put("user1", "user1");
-        USERS.put("user2", "user2");
-        USERS.put("user3", "user3");
-        USERS.put("user4", "user4");
+    private static CommandTable<FTPServerThread> newCommandTable() {
+        CommandTable<FTPServerThread> table = new CommandTable<FTPServerThread>();
+
+        table.register(FTPRequestCode.USERNAME, 0, (session, request) -> session.loginWithUsername(request));
+        // Verifying a password may hash it
+        table.register(FTPRequestCode.PASSWORD, CommandTable.BLOCKING,
+                (session, request) -> session.loginWithPassword(request));
+        table.register(FTPRequestCode.LOGOUT, 0, (session, request) -> session.wantToClose = true);
+
+        table.register(FTPRequestCode.OPEN_DATA_CONNECTION, 0,
+                (session, request) -> session.saveDataConnectionArguments(request));
+        table.register(FTPRequestCode.PASSIVE_DATA_CONNECTION, 0,
+                (session, request) -> session.enterPassiveMode(request, false));
+        table.register(FTPRequestCode.EXTENDED_PASSIVE_DATA_CONNECTION, 0,
+                (session, request) -> session.enterPassiveMode(request, true));
+        table.register(FTPRequestCode.TRANSFER_MODE, 0, (session, request) -> session.changeTransferMode(request));
+
+        table.register(FTPRequestCode.RESTART, 0, (session, request) -> session.saveRestartOffset(request));
+        table.register(FTPRequestCode.BYTE_RANGE, 0, (session, request) -> session.saveByteRange(request));
+        table.register(FTPRequestCode.SEGMENTS, 0, (session, request) -> session.saveSegmentCount(request));
+
+        // Commands touching the file system
+        table.register(FTPRequestCode.FILE_SIZE, CommandTable.FILE_SYSTEM,
+                (session, request) -> session.serveFileSizeRequest(request));
+        table.register(FTPRequestCode.MAKE_NEW_DIRECTORY, CommandTable.FILE_SYSTEM,
+                (session, request) -> session.serveMakeNewDirectoryRequest(request));
+        table.register(FTPRequestCode.GOTO_DIRECTORY, CommandTable.FILE_SYSTEM,
+                (session, request) -> session.serveChangeDirectoryRequest(request));
+        table.register(FTPRequestCode.MACHINE_LIST_PATH, CommandTable.FILE_SYSTEM,
+                (session, request) -> session.serveMachineListPathRequest(request));
+        table.register(FTPRequestCode.DELETE, CommandTable.FILE_SYSTEM,
+                (session, request) -> session.serveDeleteRequest(request));
+
+        // Commands using a data connection
+        table.register(FTPRequestCode.LIST_FILE_DIRECTORY, CommandTable.DATA_TRANSFER,
+                (session, request) -> session.serveListDirectoryContentRequest(request));
+        table.register(FTPRequestCode.MACHINE_LIST_DIRECTORY, CommandTable.DATA_TRANSFER,
+                (session, request) -> session.serveMachineListDirectoryRequest(request));
+        table.register(FTPRequestCode.DOWNLOAD_FILE, CommandTable.DATA_TRANSFER,
+                (session, request) -> session.serveDownloadRequest(request));
+        table.register(FTPRequestCode.UPLOAD_FILE_NO_OVERWITE, CommandTable.DATA_TRANSFER,
+                (session, request) -> session.serverUploadRequest(request, false));
+        table.register(FTPRequestCode.UPLOAD_FILE_OVERWRITE, CommandTable.DATA_TRANSFER,
+                (session, request) -> session.serverUploadRequest(request, true));
+
+        return table;
     }
 
     private void closeSocket(boolean forced) {
@@ -329,10 +520,14 @@ public class FTPServerThread extends Thread {
         }
 
         try {
-            inputStream.close();
+            // Sessions driven by an event loop have no socket of their own. Closing the output stream
+            // lets the event loop close the connection once the pending responses are sent
             outputStream.close();
 
-            socket.close();
+            if (socket != null) {
+                socket.close();
+            }
+
         } catch (Exception e) {
             // Silently ignore exception
         }
@@ -340,7 +535,8 @@ public class FTPServerThread extends Thread {
     }
 
     private void sendResponse(String response) throws ServerUnrecoverableException {
-        System.out.println(String.format("%s: %s", statusHeader, response));
+        ServerLog.log(ServerLog.DEBUG, statusHeader, response);
+        serverContext.getServerMetrics().recordResponse(response);
 
         outputStream.println(response);
 
@@ -350,47 +546,43 @@ public class FTPServerThread extends Thread {
 
     }
 
-    private void handleRequest(FTPRequest request)
+    // Timed from the start of the request to its last reply, including any wait for a data transfer slot
+    private void handleRequest(CommandTable.Command<FTPServerThread> command, RequestLine request)
             throws InvalidRequestException, ServerUnrecoverableException {
-        if (request.code.equals(FTPRequestCode.USERNAME)) {
-            loginWithUsername(request.arguments);
+        long startTime = System.nanoTime();
 
-        } else if (request.code.equals(FTPRequestCode.PASSWORD)) {
-            loginWithPassword(request.arguments);
-
-        } else if (request.code.equals(FTPRequestCode.LOGOUT)) {
-            wantToClose = true;
-
-        } else if (request.code.equals(FTPRequestCode.OPEN_DATA_CONNECTION)) {
-            saveDataConnectionArguments(request.arguments);
-
-        } else if (request.code.equals(FTPRequestCode.DOWNLOAD_FILE)) {
-            serveDownloadRequest(request.arguments);
-
-        } else if (request.code.equals(FTPRequestCode.UPLOAD_FILE_NO_OVERWITE)) {
-            serverUploadRequest(request.arguments, false);
+        try {
+            admitRequest(command, request);
+        } finally {
+            serverContext.getServerMetrics().recordCommand(command.getCode(), System.nanoTime() - startTime);
+        }
 
-        } else if (request.code.equals(FTPRequestCode.UPLOAD_FILE_OVERWRITE)) {
-            serverUploadRequest(request.arguments, true);
+    }
 
-        } else if (request.code.equals(FTPRequestCode.DELETE)) {
-            serveDeleteRequest(request.arguments);
+    private void admitRequest(CommandTable.Command<FTPServerThread> command, RequestLine request)
+            throws InvalidRequestException, ServerUnrecoverableException {
+        if (!command.isDataTransfer()) {
+            command.getHandler().handle(this, request);
+            return;
+        }
 
-        } else if (request.code.equals(FTPRequestCode.MAKE_NEW_DIRECTORY)) {
-            serveMakeNewDirectoryRequest(request.arguments);
+        // Wait for a free data transfer slot, when the number of concurrent data transfers is limited
+        AdmissionController admissionController = serverContext.getAdmissionController();
 
-        } else if (request.code.equals(FTPRequestCode.GOTO_DIRECTORY)) {
-            serveChangeDirectoryRequest(request.arguments);
-        } else if (request.code.equals(FTPRequestCode.LIST_FILE_DIRECTORY)) {
-            serveListDirectoryContentRequest(request.arguments);
+        if (!admissionController.acquireDataTransfer()) {
+            sendResponse(FTPResponseCode.DATA_CONNECTION_OPEN_FAILED + " Too many data transfers, try again later");
+            return;
+        }
 
-        } else {
-            throw new InvalidRequestException();
+        try {
+            command.getHandler().handle(this, request);
+        } finally {
+            admissionController.releaseDataTransfer();
         }
 
     }
 
-    private void loginWithUsername(ArrayList<String> requestArguments)
+    private void loginWithUsername(RequestLine requestArguments)
             throws InvalidRequestException, ServerUnrecoverableException
     {
         if (requestArguments.size() != 1) {
@@ -401,22 +593,24 @@ public class FTPServerThread extends Thread {
             throw new InvalidRequestException();
         }
 
-        String password = USERS.get(requestArguments.get(0));
+        CredentialStore credentialStore = serverContext.getCredentialStore();
 
-        if (password == null) {
+        if (!credentialStore.hasUser(requestArguments.get(0))) {
             throw new ServerUnrecoverableException("User does not exist");
         }
 
         username = requestArguments.get(0);
 
-        if (password.equals("")) {
+        if (!credentialStore.requiresPassword(username)) {
             // No password required, logged in successfully
             sendResponse(FTPResponseCode.LOGGED_IN + " Logged in successfully");
             hasLoggedIn = true;
+            sessionInfo.setUsername(username);
+            throttle.setUser(username);
 
             statusHeader = username + "@" + connectionKey;
 
-            System.out.println(String.format("%s: User %s logged in successfully", statusHeader, username));
+            ServerLog.info("%s: User %s logged in successfully", statusHeader, username);
         } else {
             // Password required
             sendResponse(FTPResponseCode.ENTER_PASS + " Enter password");
@@ -424,67 +618,531 @@ public class FTPServerThread extends Thread {
 
     }
 
-    private void loginWithPassword(ArrayList<String> requestArguments)
+    private void loginWithPassword(RequestLine requestArguments)
             throws InvalidRequestException, ServerUnrecoverableException
     {
         if (requestArguments.size() != 1) {
             throw new InvalidRequestException();
         }
 
-        if (hasLoggedIn || username == null) {
-            throw new InvalidRequestException();
-        }
+        if (hasLoggedIn || username == null) {
+            throw new InvalidRequestException();
+        }
+
+        int result = serverContext.getCredentialStore().verify(
+                username, requestArguments.get(0), sessionInfo.getHostAddress()
+        );
+
+        if (result == CredentialStore.RATE_LIMITED) {
+            throw new ServerUnrecoverableException("Too many login attempts");
+        }
+
+        if (result == CredentialStore.VERIFIED) {
+            // Logged in successfully
+            sendResponse(FTPResponseCode.LOGGED_IN + " Logged in successfully");
+            hasLoggedIn = true;
+            sessionInfo.setUsername(username);
+            throttle.setUser(username);
+
+            statusHeader = username + "@" + connectionKey;
+
+            ServerLog.info("%s: User %s logged in successfully", statusHeader, username);
+
+        } else {
+            // Logged in unsuccessfully
+            throw new ServerUnrecoverableException("Invalid password");
+        }
+
+    }
+
+    private void saveDataConnectionArguments(RequestLine requestArguments)
+            throws InvalidRequestException, ServerUnrecoverableException
+    {
+        if (requestArguments.size() != 2) {
+            throw new InvalidRequestException();
+        }
+
+        clientDataAddress = requestArguments.get(0);
+
+        try {
+            clientDataPort = Integer.parseInt(requestArguments.get(1));
+        } catch (Exception e) {
+            throw new InvalidRequestException();
+        }
+
+        // Back to active mode
+        releasePassiveDataChannel();
+        closePersistentDataConnection();
+
+        sendResponse(FTPResponseCode.DATA_CONNECTION_OPEN_DONE + " Data connection parameters saved");
+    }
+
+    private void enterPassiveMode(RequestLine requestArguments, boolean extended)
+            throws InvalidRequestException, ServerUnrecoverableException
+    {
+        // EPSV may name the network protocol, which is ignored as the reply only carries the port
+        if (requestArguments.size() > (extended ? 1 : 0)) {
+            throw new InvalidRequestException();
+        }
+
+        // The PASV reply can only carry an IPv4 address
+        if (!extended && !(serverAddress instanceof Inet4Address)) {
+            sendResponse(FTPResponseCode.DATA_CONNECTION_OPEN_FAILED + " Passive mode needs IPv4, use EPSV");
+            return;
+        }
+
+        // A new PASV/EPSV replaces the port given by the previous one
+        releasePassiveDataChannel();
+        closePersistentDataConnection();
+
+        ServerSocketChannel dataChannel = serverContext.getPassivePortPool().allocate();
+
+        if (dataChannel == null) {
+            sendResponse(FTPResponseCode.DATA_CONNECTION_OPEN_FAILED + " No passive port available, try again later");
+            return;
+        }
+
+        synchronized (this) {
+            passiveDataChannel = dataChannel;
+        }
+
+        int port = dataChannel.socket().getLocalPort();
+
+        if (extended) {
+            sendResponse(String.format(
+                    "%d Entering Extended Passive Mode (|||%d|)", FTPResponseCode.ENTERING_EXTENDED_PASSIVE_MODE, port
+            ));
+        } else {
+            byte[] address = serverAddress.getAddress();
+
+            sendResponse(String.format(
+                    "%d Entering Passive Mode (%d,%d,%d,%d,%d,%d)", FTPResponseCode.ENTERING_PASSIVE_MODE,
+                    address[0] & 0xff, address[1] & 0xff, address[2] & 0xff, address[3] & 0xff, port >> 8, port & 0xff
+            ));
+        }
+
+    }
+
+    private void changeTransferMode(RequestLine requestArguments)
+            throws InvalidRequestException, ServerUnrecoverableException
+    {
+        if (requestArguments.size() != 1) {
+            throw new InvalidRequestException();
+        }
+
+        String mode = requestArguments.get(0).toUpperCase();
+
+        if (mode.equals(FTPTransferMode.STREAM) || mode.equals(FTPTransferMode.COMPRESSED)) {
+            blockMode = false;
+            compressedMode = mode.equals(FTPTransferMode.COMPRESSED);
+
+            // Stream and compressed modes mark the end of each file by closing the connection
+            closePersistentDataConnection();
+        } else if (mode.equals(FTPTransferMode.BLOCK)) {
+            blockMode = true;
+            compressedMode = false;
+        } else {
+            sendResponse(FTPResponseCode.PARAMETER_NOT_IMPLEMENTED + " Only modes S, B and Z are supported");
+            return;
+        }
+
+        sendResponse(FTPResponseCode.DATA_CONNECTION_OPEN_DONE + " Mode set to " + mode);
+    }
+
+    private void saveRestartOffset(RequestLine requestArguments)
+            throws InvalidRequestException, ServerUnrecoverableException
+    {
+        if (requestArguments.size() != 1) {
+            throw new InvalidRequestException();
+        }
+
+        restartOffset = parseOffset(requestArguments.get(0));
+        rangeEnd = -1;
+
+        sendResponse(String.format(
+                "%d Restarting at %d. Send RETR, STOU or STORE to initiate transfer",
+                FTPResponseCode.PENDING_FURTHER_INFORMATION, restartOffset
+        ));
+    }
+
+    // RANG <start> <end>, both inclusive. Only RETR supports byte ranges. RANG 1 0 clears the range
+    private void saveByteRange(RequestLine requestArguments)
+            throws InvalidRequestException, ServerUnrecoverableException
+    {
+        if (requestArguments.size() != 2) {
+            throw new InvalidRequestException();
+        }
+
+        long start = parseOffset(requestArguments.get(0));
+        long end = parseOffset(requestArguments.get(1));
+
+        if (start == 1 && end == 0) {
+            restartOffset = 0;
+            rangeEnd = -1;
+
+            sendResponse(FTPResponseCode.PENDING_FURTHER_INFORMATION + " Byte range cleared");
+            return;
+        }
+
+        if (end < start) {
+            sendResponse(FTPResponseCode.SYNTAX_ERROR + " Byte range end before start");
+            return;
+        }
+
+        restartOffset = start;
+        rangeEnd = end;
+
+        sendResponse(String.format(
+                "%d Restarting at %d. End byte range at %d", FTPResponseCode.PENDING_FURTHER_INFORMATION, start, end
+        ));
+    }
+
+    // SEGM <count>: the next RETR sends its file, or byte range, over count data connections at the same time,
+    // each carrying one segment (see FileTransferEngine.sendFileSegments). Stream mode only
+    private void saveSegmentCount(RequestLine requestArguments)
+            throws InvalidRequestException, ServerUnrecoverableException
+    {
+        if (requestArguments.size() != 1) {
+            throw new InvalidRequestException();
+        }
+
+        int count;
+
+        try {
+            count = Integer.parseInt(requestArguments.get(0));
+        } catch (Exception e) {
+            throw new InvalidRequestException();
+        }
+
+        if (count < 1 || count > MAX_SEGMENTS) {
+            sendResponse(FTPResponseCode.SYNTAX_ERROR + " Segment count must be between 1 and " + MAX_SEGMENTS);
+            return;
+        }
+
+        if (blockMode || compressedMode) {
+            sendResponse(FTPResponseCode.PARAMETER_NOT_IMPLEMENTED + " Segmented download needs stream mode");
+            return;
+        }
+
+        segmentCount = count;
+
+        sendResponse(String.format(
+                "%d Next RETR sent over %d data connections", FTPResponseCode.DATA_CONNECTION_OPEN_DONE, count
+        ));
+    }
+
+    private long parseOffset(String argument) throws InvalidRequestException {
+        long offset;
+
+        try {
+            offset = Long.parseLong(argument);
+        } catch (Exception e) {
+            throw new InvalidRequestException();
+        }
+
+        if (offset < 0) {
+            throw new InvalidRequestException();
+        }
+
+        return offset;
+    }
+
+    private void serveFileSizeRequest(RequestLine requestArguments)
+            throws InvalidRequestException, ServerUnrecoverableException
+    {
+        if (requestArguments.size() != 1) {
+            throw new InvalidRequestException();
+        }
+
+        Path filePath;
+        try {
+            filePath = resolveInRoot(requestArguments.get(0));
+        } catch (IOException e) {
+            sendResponse(FTPResponseCode.REQUEST_FILE_ACTION_FAILED + " File not exist");
+            return;
+        }
+
+        if (filePath == null) {
+            sendResponse(FTPResponseCode.ACCESS_DENIED + " Path is outside the root directory");
+            return;
+        }
+
+        if (!Files.isRegularFile(filePath)) {
+            sendResponse(FTPResponseCode.REQUEST_FILE_ACTION_FAILED + " File not exist");
+            return;
+        }
+
+        try {
+            sendResponse(FTPResponseCode.FILE_STATUS + " " + Files.size(filePath));
+        } catch (IOException e) {
+            sendResponse(FTPResponseCode.REQUEST_FILE_ACTION_FAILED + " Error reading file size");
+        }
+
+    }
+
+    // Real path of a path argument, or null if it leads outside the root directory, by its name or through a link.
+    // A name leading outside is refused before the file is looked up, so that nothing is told about files there
+    private Path resolveInRoot(String argument) throws IOException {
+        Path path = currentAccessDirectory.resolve(argument).normalize();
+
+        if (!path.startsWith(rootDirectory)) {
+            return null;
+        }
+
+        path = path.toRealPath();
+
+        return path.startsWith(rootDirectory) ? path : null;
+    }
+
+    private boolean hasDataConnectionArguments() {
+        if (persistentDataSocket != null) {
+            return true;
+        }
+
+        synchronized (this) {
+            if (passiveDataChannel != null) {
+                return true;
+            }
+
+        }
+
+        return clientDataAddress != null && clientDataPort != -1;
+    }
+
+    // Passive ports are given back to the pool, unless a transfer has already taken it
+    private void releasePassiveDataChannel() {
+        ServerSocketChannel dataChannel = takePassiveDataChannel();
+
+        if (dataChannel != null) {
+            serverContext.getPassivePortPool().release(dataChannel);
+        }
+
+    }
+
+    private synchronized ServerSocketChannel takePassiveDataChannel() {
+        ServerSocketChannel dataChannel = passiveDataChannel;
+        passiveDataChannel = null;
+
+        return dataChannel;
+    }
+
+    private String describeDataConnection() {
+        Socket dataSocket = persistentDataSocket;
+
+        if (dataSocket != null) {
+            return "open data connection " + dataSocket.getRemoteSocketAddress();
+        }
+
+        synchronized (this) {
+            if (passiveDataChannel != null) {
+                return "passive port " + passiveDataChannel.socket().getLocalPort();
+            }
+
+        }
+
+        return clientDataAddress + ":" + clientDataPort;
+    }
+
+    // Data sockets are opened through channels so that file transfers can use zero-copy
+    private Socket establishDataConnection() throws Exception {
+        if (persistentDataSocket != null) {
+            return persistentDataSocket;
+        }
+
+        long startTime = System.nanoTime();
+
+        Socket dataSocket = openDataConnection();
+
+        serverContext.getServerMetrics().recordDataConnectionSetup(System.nanoTime() - startTime);
+
+        if (blockMode) {
+            persistentDataSocket = dataSocket;
+        }
+
+        return dataSocket;
+    }
+
+    private Socket openDataConnection() throws Exception {
+        ServerSocketChannel dataChannel = takePassiveDataChannel();
+
+        if (dataChannel == null) {
+            return connectDataConnection();
+        }
+
+        // Passive mode. Passive ports are used for one data transfer only
+        try {
+            return acceptPassiveDataConnection(dataChannel);
+        } finally {
+            serverContext.getPassivePortPool().release(dataChannel);
+        }
+
+    }
+
+    // Data connections of a segmented download, all open before any data is sent. In passive mode the client
+    // connects count times to the same passive port, in active mode it accepts count connections
+    private Socket[] openDataConnections(int count) throws Exception {
+        long startTime = System.nanoTime();
+
+        Socket[] dataSockets = new Socket[count];
+        ServerSocketChannel dataChannel = takePassiveDataChannel();
+
+        try {
+            for (int i = 0; i < count; ++i) {
+                dataSockets[i] = dataChannel == null
+                        ? connectDataConnection()
+                        : acceptPassiveDataConnection(dataChannel);
+            }
+
+        } catch (Exception e) {
+            for (Socket dataSocket : dataSockets) {
+                if (dataSocket != null) {
+                    finishDataConnection(dataSocket, true);
+                }
+
+            }
+
+            throw e;
+        } finally {
+            if (dataChannel != null) {
+                serverContext.getPassivePortPool().release(dataChannel);
+            }
+
+        }
+
+        serverContext.getServerMetrics().recordDataConnectionSetup(System.nanoTime() - startTime);
+
+        return dataSockets;
+    }
+
+    // Active mode. Bounded, so that an unreachable client cannot hold the session forever
+    private Socket connectDataConnection() throws Exception {
+        SocketChannel socketChannel = SocketChannel.open();
+
+        try {
+            socketChannel.socket().connect(
+                    new InetSocketAddress(clientDataAddress, clientDataPort), DATA_CONNECTION_TIMEOUT
+            );
+        } catch (Exception e) {
+            socketChannel.close();
+            throw e;
+        }
+
+        return socketChannel.socket();
+    }
+
+    // Reply announcing a transfer, depending on whether the data connection is already there
+    private String dataConnectionOpeningResponse() {
+        if (persistentDataSocket != null) {
+            return FTPResponseCode.DATA_CONNECTION_ALREADY_OPEN + " Data connection already open, transfer starting";
+        }
+
+        return FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN + " Data connection about to open";
+    }
+
+    // Reply of a successful transfer. In block mode the data connection stays open for the next one
+    private String dataTransferCompletedResponse() {
+        if (blockMode) {
+            return FTPResponseCode.REQUEST_ACTION_DONE + " Data transmission completed, data connection kept open";
+        }
+
+        return FTPResponseCode.DATA_TRANSFER_COMPLETED + " Data transmission completed";
+    }
+
+    // Close the data connection after a transfer, unless block mode keeps it open. A failed transfer leaves
+    // the block stream in an unknown state, so its connection is always closed
+    private void finishDataConnection(Socket dataSocket, boolean failed) {
+        if (blockMode && !failed && dataSocket == persistentDataSocket) {
+            return;
+        }
+
+        if (dataSocket == persistentDataSocket) {
+            persistentDataSocket = null;
+        }
+
+        try {
+            dataSocket.close();
+        } catch (Exception e) {
+            // Silently ignore the exception
+        }
+
+    }
+
+    private void closePersistentDataConnection() {
+        Socket dataSocket = persistentDataSocket;
+        persistentDataSocket = null;
+
+        if (dataSocket != null) {
+            try {
+                dataSocket.close();
+            } catch (Exception e) {
+                // Silently ignore the exception
+            }
+
+        }
+
+    }
+
+    private Socket acceptPassiveDataConnection(ServerSocketChannel dataChannel) throws Exception {
+        long deadline = System.currentTimeMillis() + DATA_CONNECTION_TIMEOUT;
+        ServerSocket serverSocket = dataChannel.socket();
+
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                serverContext.getPassivePortPool().recordAcceptTimeout();
+                throw new SocketTimeoutException("No passive data connection");
+            }
 
-        String userPassword = USERS.get(username);
+            serverSocket.setSoTimeout((int) remaining);
 
-        if (userPassword.equals(requestArguments.get(0))) {
-            // Logged in successfully
-            sendResponse(FTPResponseCode.LOGGED_IN + " Logged in successfully");
-            hasLoggedIn = true;
+            Socket dataSocket;
+            try {
+                dataSocket = serverSocket.accept();
+            } catch (SocketTimeoutException e) {
+                serverContext.getPassivePortPool().recordAcceptTimeout();
+                throw e;
+            }
 
-            statusHeader = username + "@" + connectionKey;
+            // Only the client of this session may connect, other hosts must not steal the transfer
+            if (dataSocket.getInetAddress().getHostAddress().equals(sessionInfo.getHostAddress())) {
+                return dataSocket;
+            }
 
-            System.out.println(String.format("%s: User %s logged in successfully", statusHeader, username));
+            ServerLog.warn(
+                    "%s: Rejected data connection from %s", statusHeader, dataSocket.getInetAddress().getHostAddress()
+            );
 
-        } else {
-            // Logged in unsuccessfully
-            throw new ServerUnrecoverableException("Invalid password");
+            dataSocket.close();
         }
 
     }
 
-    private void saveDataConnectionArguments(ArrayList<String> requestArguments)
+    private void serveDownloadRequest(RequestLine requestArguments)
             throws InvalidRequestException, ServerUnrecoverableException
     {
-        if (requestArguments.size() != 2) {
+        if (requestArguments.size() != 1) {
             throw new InvalidRequestException();
         }
 
-        clientDataAddress = requestArguments.get(0);
-
-        try {
-            clientDataPort = Integer.parseInt(requestArguments.get(1));
-        } catch (Exception e) {
+        if (!hasDataConnectionArguments()) {
             throw new InvalidRequestException();
         }
 
-        sendResponse(FTPResponseCode.DATA_CONNECTION_OPEN_DONE + " Data connection parameters saved");
-    }
+        String dataConnection = describeDataConnection();
 
-    private Socket establishDataConnection() throws Exception {
-        Socket dataSocket = new Socket(clientDataAddress, clientDataPort);
-        return dataSocket;
-    }
+        long start = restartOffset;
+        long end = rangeEnd;
+        int segments = segmentCount;
 
-    private void serveDownloadRequest(ArrayList<String> requestArguments)
-            throws InvalidRequestException, ServerUnrecoverableException
-    {
-        if (requestArguments.size() != 1) {
-            throw new InvalidRequestException();
-        }
+        restartOffset = 0;
+        rangeEnd = -1;
+        segmentCount = 0;
 
-        if (clientDataAddress == null || clientDataPort == -1) {
-            throw new InvalidRequestException();
+        // MODE B or Z since SEGM
+        if (segments > 0 && (blockMode || compressedMode)) {
+            sendResponse(FTPResponseCode.PARAMETER_NOT_IMPLEMENTED + " Segmented download needs stream mode");
+            return;
         }
 
         File fileOut = currentAccessDirectory.resolve(requestArguments.get(0)).toFile();
@@ -495,250 +1153,324 @@ public class FTPServerThread extends Thread {
             return;
         }
 
-        FileInputStream fileRequestedInpStream;
+        // Small hot files are sent from memory, without opening them. Segmented and compressed downloads are
+        // always read from disk
+        ByteBuffer cachedContent = segments == 0 && !compressedMode
+                ? serverContext.getFileContentCache().getContent(fileOut.toPath())
+                : null;
+
+        FileChannel fileRequestedChannel = null;
+
+        if (cachedContent == null) {
+            try {
+                fileRequestedChannel = FileChannel.open(fileOut.toPath(), StandardOpenOption.READ);
+            } catch (Exception e) {
+                sendResponse(FTPResponseCode.REQUEST_FILE_ACTION_FAILED + " Error reading requested file");
+                return;
+            }
+
+        }
+
+        // Large files are sent from mappings shared with the other sessions downloading them
+        MappedFileRegistry.MappedFile mappedFile = cachedContent == null && segments == 0 && !compressedMode
+                ? serverContext.getMappedFileRegistry().open(fileOut.toPath(), fileRequestedChannel)
+                : null;
+
+        long length;
 
         try {
-            fileRequestedInpStream = new FileInputStream(fileOut);
-        } catch (Exception e) {
-            sendResponse(FTPResponseCode.REQUEST_FILE_ACTION_FAILED + " Error reading requested file");
+            long size = cachedContent != null ? cachedContent.remaining()
+                    : mappedFile != null ? mappedFile.getSize()
+                    : fileRequestedChannel.size();
+
+            // Range ends past the end of file are cut to the file size
+            length = (end == -1 ? size : Math.min(end + 1, size)) - start;
+        } catch (IOException e) {
+            length = -1;
+        }
+
+        if (length < 0 || (end != -1 && length == 0)) {
+            closeFileChannel(fileRequestedChannel);
+
+            sendResponse(FTPResponseCode.INVALID_RESTART_OFFSET + " Restart offset beyond end of file");
             return;
         }
 
         try {
-            sendResponse(FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN + " Data connection about to open");
+            sendResponse(dataConnectionOpeningResponse());
         } catch (Exception e) {
-            System.out.println(String.format(
-                    "%s: Error establishing data connection to %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+            closeFileChannel(fileRequestedChannel);
+
+            ServerLog.warn(
+                    "%s: Error establishing data connection to %s",
+                    statusHeader, dataConnection
+            );
 
             return;
         }
 
-        Socket dataSocket = null;
-        DataOutputStream dataSocketOutStream = null;
-        byte[] buffer = new byte[BUFFER_SIZE];
+        Socket[] dataSockets;
 
         try {
-            dataSocket = establishDataConnection();
-            dataSocketOutStream = new DataOutputStream(dataSocket.getOutputStream());
+            dataSockets = segments > 0 ? openDataConnections(segments) : new Socket[] { establishDataConnection() };
         } catch (Exception e) {
-            // Close data socket, if already created. Close file stream
-            try {
-                dataSocketOutStream.close();
-                dataSocket.close();
-
-                fileRequestedInpStream.close();
-            } catch (Exception se) {
-                // Silently ignore the exception
-            }
+            closeFileChannel(fileRequestedChannel);
 
-            System.out.println(String.format(
-                    "%s: Error establishing data connection to %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+            ServerLog.warn(
+                    "%s: Error establishing data connection to %s",
+                    statusHeader, dataConnection
+            );
 
             return;
         }
 
-        int byteRead;
+        TransferResult transferResult = null;
         int errorOccured = 0;
 
-        while (true) {
-            try {
-                byteRead = fileRequestedInpStream.read(buffer, 0, BUFFER_SIZE);
-            } catch (Exception e) {
-                errorOccured = 1;
-                break;
-            }
-
-            if (byteRead == -1) {
-                break;
-            }
-
-            try {
-                dataSocketOutStream.write(buffer, 0, byteRead);
-                dataSocketOutStream.flush();
-            } catch (Exception e) {
-                errorOccured = 2;
-                break;
+        try {
+            if (cachedContent != null) {
+                transferResult = fileTransferEngine.sendCachedFile(
+                        cachedContent, start, length, dataSockets[0], blockMode
+                );
+            } else if (mappedFile != null) {
+                transferResult = fileTransferEngine.sendFileMapped(
+                        mappedFile, start, length, dataSockets[0], blockMode
+                );
+            } else if (segments > 0) {
+                transferResult = fileTransferEngine.sendFileSegments(fileRequestedChannel, start, length, dataSockets);
+            } else if (blockMode) {
+                transferResult = fileTransferEngine.sendFileBlocks(fileRequestedChannel, start, length, dataSockets[0]);
+            } else if (compressedMode) {
+                transferResult = fileTransferEngine.sendFileCompressed(
+                        fileRequestedChannel, start, length, dataSockets[0]
+                );
+            } else {
+                transferResult = fileTransferEngine.sendFile(fileRequestedChannel, start, length, dataSockets[0]);
             }
 
+            sessionInfo.addBytesOut(transferResult.getBytes());
+        } catch (DataTransferException e) {
+            errorOccured = e.getErrorSource();
         }
 
-        try {
-            // Close data socket
-            dataSocketOutStream.close();
-            dataSocket.close();
-
-            // Close file
-            fileRequestedInpStream.close();
-        } catch (Exception e) {
-            // Silently ignore the exception
+        for (Socket dataSocket : dataSockets) {
+            finishDataConnection(dataSocket, errorOccured != 0);
         }
 
-        if (errorOccured == 1) {
-            System.out.println(String.format(
+        closeFileChannel(fileRequestedChannel);
+
+        if (errorOccured == DataTransferException.FILE_ACCESS_ERROR) {
+            ServerLog.warn(
                     "%s: Error reading data from file '%s'",
                     statusHeader, requestArguments.get(0)
-            ));
+            );
 
             sendResponse(FTPResponseCode.DATA_TRANSFER_ERROR + " Error in file access on server");
-        } else if (errorOccured == 2) {
-            System.out.println(String.format(
-                    "%s: Error sending file data to client at %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+        } else if (errorOccured == DataTransferException.TRANSMISSION_ERROR) {
+            ServerLog.warn(
+                    "%s: Error sending file data to client at %s",
+                    statusHeader, dataConnection
+            );
 
             sendResponse(FTPResponseCode.DATA_TRANSFER_ERROR + " File data transmission error");
         } else {
-            System.out.println(String.format(
-                    "%s: File '%s' successfully sent to %s:%s",
-                    statusHeader, requestArguments.get(0), clientDataAddress, clientDataPort
-            ));
+            serverContext.getServerMetrics().recordTransfer(
+                    TransferStatistics.DOWNLOAD, transferResult.getBytes(), transferResult.getElapsedNanos()
+            );
+
+            ServerLog.info(
+                    "%s: File '%s' successfully sent to %s (%s)",
+                    statusHeader, requestArguments.get(0), dataConnection, transferResult
+            );
 
-            sendResponse(FTPResponseCode.DATA_TRANSFER_COMPLETED + " Data transmission completed");
+            sendResponse(dataTransferCompletedResponse());
         }
 
     }
 
-    private void serverUploadRequest(ArrayList<String> requestArguments, boolean overwrite)
+    private void serverUploadRequest(RequestLine requestArguments, boolean overwrite)
             throws InvalidRequestException, ServerUnrecoverableException
     {
         if (requestArguments.size() != 1) {
             throw new InvalidRequestException();
         }
 
-        if (clientDataAddress == null || clientDataPort == -1) {
+        if (!hasDataConnectionArguments()) {
             throw new InvalidRequestException();
         }
 
+        String dataConnection = describeDataConnection();
+
+        long start = restartOffset;
+        boolean rangeRequested = rangeEnd != -1;
+
+        restartOffset = 0;
+        rangeEnd = -1;
+
+        if (rangeRequested) {
+            sendResponse(FTPResponseCode.INVALID_RESTART_OFFSET + " Byte ranges are only supported by RETR");
+            return;
+        }
+
         File fileIn = currentAccessDirectory.resolve(requestArguments.get(0)).toFile();
 
-        // If file does not exist
-        if (fileIn.exists() && !overwrite) {
+        if (UploadCommitter.isReserved(fileIn.toPath())) {
+            sendResponse(FTPResponseCode.ACCESS_DENIED + " Reserved file name");
+            return;
+        }
+
+        // If file does not exist. Resuming an upload always writes into the existing file
+        if (fileIn.exists() && !overwrite && start == 0) {
             sendResponse(FTPResponseCode.REQUEST_FILE_ACTION_FAILED + " File exist");
             return;
         }
 
-        FileOutputStream fileRetrievedInpStream;
+        if (start > 0 && (!fileIn.isFile() || fileIn.length() < start)) {
+            sendResponse(FTPResponseCode.INVALID_RESTART_OFFSET + " Restart offset beyond end of file");
+            return;
+        }
+
+        // A complete file replaced by an interrupted upload would be lost
+        boolean replacing = start == 0 && fileIn.exists();
+
+        // New files are written aside and replace the target once complete, resumed ones are continued in place
+        UploadCommitter.StagedUpload upload;
 
         try {
-            fileRetrievedInpStream = new FileOutputStream(fileIn);
+            upload = serverContext.getUploadCommitter().stage(fileIn.toPath(), start);
+        } catch (UploadInProgressException e) {
+            sendResponse(FTPResponseCode.REQUEST_FILE_ACTION_FAILED + " File is being uploaded by another session");
+            return;
         } catch (Exception e) {
             sendResponse(FTPResponseCode.REQUEST_FILE_ACTION_FAILED + " Error creating new file");
             return;
         }
 
+        FileChannel fileRetrievedChannel = upload.getChannel();
+
         try {
-            sendResponse(FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN + " Data connection about to open");
+            sendResponse(dataConnectionOpeningResponse());
         } catch (Exception e) {
-            System.out.println(String.format(
-                    "%s: Error establishing data connection to %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+            upload.discard();
+
+            ServerLog.warn(
+                    "%s: Error establishing data connection to %s",
+                    statusHeader, dataConnection
+            );
 
             return;
         }
 
         Socket dataSocket = null;
-        DataInputStream dataSocketInpStream = null;
-        byte[] buffer = new byte[BUFFER_SIZE];
 
         try {
             dataSocket = establishDataConnection();
-            dataSocketInpStream = new DataInputStream(dataSocket.getInputStream());
         } catch (Exception e) {
-            // Close data socket, if already created. Close file stream
-            try {
-                dataSocketInpStream.close();
-                dataSocket.close();
+            upload.discard();
 
-                fileRetrievedInpStream.close();
-            } catch (Exception se) {
-                // Silently ignore the exception
-            }
-
-            System.out.println(String.format(
-                    "%s: Error establishing data connection to %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+            ServerLog.warn(
+                    "%s: Error establishing data connection to %s",
+                    statusHeader, dataConnection
+            );
 
             return;
         }
 
-        int byteRead;
+        TransferResult transferResult = null;
         int errorOccured = 0;
 
-        while (true) {
-            try {
-                byteRead = dataSocketInpStream.read(buffer, 0, BUFFER_SIZE);
-            } catch (Exception e) {
-                errorOccured = 2;
-                break;
-            }
-
-            if (byteRead == -1) {
-                break;
-            }
-
-            try {
-                fileRetrievedInpStream.write(buffer, 0, byteRead);
-                fileRetrievedInpStream.flush();
-            } catch (Exception e) {
-                errorOccured = 1;
-                break;
+        try {
+            if (blockMode) {
+                transferResult = fileTransferEngine.receiveFileBlocks(fileRetrievedChannel, start, dataSocket);
+            } else if (compressedMode) {
+                transferResult = fileTransferEngine.receiveFileCompressed(fileRetrievedChannel, start, dataSocket);
+            } else {
+                transferResult = fileTransferEngine.receiveFile(fileRetrievedChannel, start, dataSocket);
             }
 
+            sessionInfo.addBytesIn(transferResult.getBytes());
+        } catch (DataTransferException e) {
+            errorOccured = e.getErrorSource();
         }
 
-        try {
-            // Close data socket
-            dataSocketInpStream.close();
-            dataSocket.close();
-
-            // Close file
-            fileRetrievedInpStream.close();
-        } catch (Exception e) {
-            // Silently ignore the exception
-        }
+        finishDataConnection(dataSocket, errorOccured != 0);
 
-        // If error occurs during file uploading process, then we should delete the data already received
-        if (errorOccured != 0) {
+        // If the file cannot be written, then we should drop the data already received. Data received before
+        // a transmission error is kept for a resumed upload or a new file, so that the client can resume with
+        // REST, but an existing file is never replaced by part of its new content
+        if (errorOccured == DataTransferException.FILE_ACCESS_ERROR
+                || (errorOccured == DataTransferException.TRANSMISSION_ERROR && replacing)) {
+            upload.discard();
+        } else {
             try {
-                fileIn.delete();
-            } catch (Exception e) {
-                //Silently ignore the exception
+                upload.publish();
+            } catch (IOException e) {
+                errorOccured = DataTransferException.FILE_ACCESS_ERROR;
             }
 
         }
 
-        if (errorOccured == 1) {
-            System.out.println(String.format(
+        // The file has been created or replaced
+        invalidateCaches(fileIn);
+
+        if (errorOccured == DataTransferException.FILE_ACCESS_ERROR) {
+            ServerLog.warn(
                     "%s: Error writing data from file '%s'",
                     statusHeader, requestArguments.get(0)
-            ));
+            );
 
             sendResponse(FTPResponseCode.DATA_TRANSFER_ERROR + " Error in file access on server");
-        } else if (errorOccured == 2) {
-            System.out.println(String.format(
-                    "%s: Error receiving transmitted file data at %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+        } else if (errorOccured == DataTransferException.TRANSMISSION_ERROR) {
+            ServerLog.warn(
+                    "%s: Error receiving transmitted file data at %s",
+                    statusHeader, dataConnection
+            );
 
             sendResponse(FTPResponseCode.DATA_TRANSFER_ERROR + " File data transmission error");
         } else {
-            System.out.println(String.format(
-                    "%s: File '%s' successfully uploaded from %s:%s",
-                    statusHeader, requestArguments.get(0), clientDataAddress, clientDataPort
-            ));
+            serverContext.getServerMetrics().recordTransfer(
+                    TransferStatistics.UPLOAD, transferResult.getBytes(), transferResult.getElapsedNanos()
+            );
+
+            ServerLog.info(
+                    "%s: File '%s' successfully uploaded from %s (%s)",
+                    statusHeader, requestArguments.get(0), dataConnection, transferResult
+            );
+
+            sendResponse(dataTransferCompletedResponse());
+        }
+
+    }
+
+    // Null if the file was not opened
+    private void closeFileChannel(FileChannel fileChannel) {
+        if (fileChannel == null) {
+            return;
+        }
+
+        try {
+            fileChannel.close();
+        } catch (Exception e) {
+            // Silently ignore the exception
+        }
+
+    }
+
+    // A file or directory has been created, replaced or deleted. Its cached content, its unused mappings and its
+    // parent's cached listing are now stale
+    private void invalidateCaches(File changedPath) {
+        File parent = changedPath.getAbsoluteFile().getParentFile();
 
-            sendResponse(FTPResponseCode.DATA_TRANSFER_COMPLETED + " Data transmission completed");
+        serverContext.getFileContentCache().invalidate(changedPath.toPath());
+        serverContext.getMappedFileRegistry().invalidate(changedPath.toPath());
+
+        if (parent != null) {
+            serverContext.getDirectoryListingCache().invalidate(parent.toPath());
         }
 
     }
 
-    private void serveDeleteRequest(ArrayList<String> requestArguments)
+    private void serveDeleteRequest(RequestLine requestArguments)
             throws InvalidRequestException, ServerUnrecoverableException
     {
         if (requestArguments.size() != 1) {
@@ -769,10 +1501,12 @@ public class FTPServerThread extends Thread {
             return;
         }
 
+        invalidateCaches(pathToDeleted);
+
         sendResponse(FTPResponseCode.REQUEST_ACTION_DONE + " Done");
     }
 
-    private void serveMakeNewDirectoryRequest(ArrayList<String> requestArguments)
+    private void serveMakeNewDirectoryRequest(RequestLine requestArguments)
             throws InvalidRequestException, ServerUnrecoverableException
     {
         if (requestArguments.size() != 1) {
@@ -781,6 +1515,11 @@ public class FTPServerThread extends Thread {
 
         File pathToCreated = currentAccessDirectory.resolve(requestArguments.get(0)).toFile();
 
+        if (UploadCommitter.isReserved(pathToCreated.toPath())) {
+            sendResponse(FTPResponseCode.ACCESS_DENIED + " Reserved directory name");
+            return;
+        }
+
         if (pathToCreated.exists()) {
             sendResponse(FTPResponseCode.REQUEST_ACTION_FAILED + " Directory already exists");
             return;
@@ -800,10 +1539,12 @@ public class FTPServerThread extends Thread {
             return;
         }
 
+        invalidateCaches(pathToCreated);
+
         sendResponse(FTPResponseCode.REQUEST_ACTION_DONE + " Done");
     }
 
-    private void serveChangeDirectoryRequest(ArrayList<String> requestArguments)
+    private void serveChangeDirectoryRequest(RequestLine requestArguments)
             throws InvalidRequestException, ServerUnrecoverableException
     {
         if (requestArguments.size() > 1) {
@@ -869,31 +1610,14 @@ public class FTPServerThread extends Thread {
         sendResponse(FTPResponseCode.REQUEST_ACTION_DONE + " " + relativePath);
     }
 
-    private String joinArrayListOfString(String delimiter, ArrayList<String> list) {
-        StringBuilder sb = new StringBuilder();
-        boolean notFirst = false;
-
-        for (String s: list) {
-            if (notFirst) {
-                sb.append(delimiter);
-            }
-
-            sb.append(s);
-
-            notFirst = true;
-        }
-
-        return sb.toString();
-    }
-
-    private void serveListDirectoryContentRequest(ArrayList<String> requestArguments)
+    private void serveListDirectoryContentRequest(RequestLine requestArguments)
             throws InvalidRequestException, ServerUnrecoverableException
     {
         if (requestArguments.size() != 0) {
             throw new InvalidRequestException();
         }
 
-        if (clientDataAddress == null || clientDataPort == -1) {
+        if (!hasDataConnectionArguments()) {
             throw new InvalidRequestException();
         }
 
@@ -903,116 +1627,170 @@ public class FTPServerThread extends Thread {
             return;
         }
 
-        try {
-            sendResponse(FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN + " Data connection about to open");
-        } catch (Exception e) {
-            System.out.println(String.format(
-                    "%s: Error establishing data connection to %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+        sendDirectoryListing(currentAccessDirectory, DirectoryLister.NAMES);
+    }
 
-            return;
+    private void serveMachineListDirectoryRequest(RequestLine requestArguments)
+            throws InvalidRequestException, ServerUnrecoverableException
+    {
+        if (requestArguments.size() > 1) {
+            throw new InvalidRequestException();
         }
 
-        Socket dataSocket = null;
-        DataOutputStream dataSocketOutStream = null;
-        byte[] buffer = new byte[BUFFER_SIZE];
+        if (!hasDataConnectionArguments()) {
+            throw new InvalidRequestException();
+        }
 
+        Path directory;
         try {
-            dataSocket = establishDataConnection();
-            dataSocketOutStream = new DataOutputStream(dataSocket.getOutputStream());
+            directory = resolveInRoot(requestArguments.size() == 0 ? "." : requestArguments.get(0));
         } catch (Exception e) {
-            // Close data socket, if already created. Close file stream
-            try {
-                dataSocketOutStream.close();
-                dataSocket.close();
-            } catch (Exception se) {
-                // Silently ignore the exception
-            }
+            sendResponse(FTPResponseCode.REQUEST_ACTION_FAILED + " Path does not exist");
+            return;
+        }
 
-            System.out.println(String.format(
-                    "%s: Error establishing data connection to %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+        if (directory == null) {
+            sendResponse(FTPResponseCode.ACCESS_DENIED + " Path is outside the root directory");
+            return;
+        }
 
+        if (!Files.isDirectory(directory)) {
+            sendResponse(FTPResponseCode.SYNTAX_ERROR + " Path is not a directory");
             return;
         }
 
-        File[] contents = currentAccessDirectory.toFile().listFiles();
+        sendDirectoryListing(directory, DirectoryLister.FACTS);
+    }
 
-        ArrayList<String> fileList = new ArrayList<String>();
-        ArrayList<String> directoryList = new ArrayList<String>();
+    // Facts of one file or directory, sent on the control connection
+    private void serveMachineListPathRequest(RequestLine requestArguments)
+            throws InvalidRequestException, ServerUnrecoverableException
+    {
+        if (requestArguments.size() > 1) {
+            throw new InvalidRequestException();
+        }
 
-        for (File content: contents) {
-            if (content.isDirectory()) {
-                directoryList.add(content.getName() + File.separator);
-            } else {
-                fileList.add(content.getName());
+        Path path;
+        BasicFileAttributes attributes;
+        try {
+            path = resolveInRoot(requestArguments.size() == 0 ? "." : requestArguments.get(0));
+
+            if (path == null) {
+                sendResponse(FTPResponseCode.ACCESS_DENIED + " Path is outside the root directory");
+                return;
             }
 
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (Exception e) {
+            sendResponse(FTPResponseCode.REQUEST_FILE_ACTION_FAILED + " File not exist");
+            return;
         }
 
-        Collections.sort(fileList);
-        Collections.sort(directoryList);
+        // Path as seen by the client, from the server's root directory
+        String name = "/" + rootDirectory.relativize(path).toString().replace(File.separatorChar, '/');
 
-        String fileListStr = joinArrayListOfString("\n", fileList);
-        String directoryListStr = joinArrayListOfString("\n", directoryList);
+        StringBuilder facts = DirectoryLister.formatFacts(
+                new StringBuilder(), attributes.isDirectory() ? "dir" : "file", attributes, name
+        );
 
-        String result = directoryListStr;
-        if (fileList.size() != 0) {
-            if (directoryList.size() != 0) {
-                result += "\n\n";
-            }
+        sendResponse(String.format(
+                "%d-Listing %s\n %s\n%d End",
+                FTPResponseCode.REQUEST_ACTION_DONE, name, facts, FTPResponseCode.REQUEST_ACTION_DONE
+        ));
+    }
 
-            result += fileListStr;
+    // LIST (format DirectoryLister.NAMES) or MLSD (DirectoryLister.FACTS) of a directory, given as a real path
+    private void sendDirectoryListing(Path directory, String format) throws ServerUnrecoverableException {
+        String dataConnection = describeDataConnection();
+
+        try {
+            sendResponse(dataConnectionOpeningResponse());
+        } catch (Exception e) {
+            ServerLog.warn(
+                    "%s: Error establishing data connection to %s",
+                    statusHeader, dataConnection
+            );
+
+            return;
         }
 
-        byte[] resultByteArray = result.getBytes(ENCODING_UTF8);
+        Socket dataSocket = null;
+
+        try {
+            dataSocket = establishDataConnection();
+        } catch (Exception e) {
+            // Close data socket, if already created
+            if (dataSocket != null) {
+                finishDataConnection(dataSocket, true);
+            }
+
+            ServerLog.warn(
+                    "%s: Error establishing data connection to %s",
+                    statusHeader, dataConnection
+            );
+
+            return;
+        }
 
-        int byteReadStart = 0;
-        int byteReadLength;
+        long transferStart = System.nanoTime();
+        long byteSent = 0;
         int errorOccured = 0;
 
-        while (byteReadStart < resultByteArray.length) {
-            if (byteReadStart + BUFFER_SIZE >= resultByteArray.length) {
-                byteReadLength = resultByteArray.length - byteReadStart;
-            } else {
-                byteReadLength = BUFFER_SIZE;
+        try {
+            // LIST outputs of small directories are shared by every session listing the same directory, until the
+            // directory changes. Large directories and MLSD outputs are streamed while the directory is read
+            byte[] cachedListing = null;
+
+            if (format.equals(DirectoryLister.NAMES)) {
+                try {
+                    cachedListing = serverContext.getDirectoryListingCache().getListing(directory);
+                } catch (IOException e) {
+                    throw new DataTransferException(DataTransferException.FILE_ACCESS_ERROR, e);
+                }
+
             }
 
-            try {
-                dataSocketOutStream.write(resultByteArray, byteReadStart, byteReadLength);
-                dataSocketOutStream.flush();
-            } catch (Exception e) {
-                errorOccured = 2;
-                break;
+            if (cachedListing != null) {
+                byteSent = fileTransferEngine.sendBytes(cachedListing, dataSocket, blockMode, compressedMode);
+            } else {
+                byteSent = fileTransferEngine.sendListing(
+                        directory, format, dataSocket, blockMode, compressedMode
+                );
             }
 
-            byteReadStart += byteReadLength;
+        } catch (DataTransferException e) {
+            errorOccured = e.getErrorSource();
         }
 
-        try {
-            // Close data socket
-            dataSocketOutStream.close();
-            dataSocket.close();
-        } catch (Exception e) {
-            // Silently ignore the exception
-        }
+        sessionInfo.addBytesOut(byteSent);
 
-        if (errorOccured == 2) {
-            System.out.println(String.format(
-                    "%s: Error sending list of files and directories to client at %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+        finishDataConnection(dataSocket, errorOccured != 0);
+
+        if (errorOccured == DataTransferException.FILE_ACCESS_ERROR) {
+            ServerLog.warn(
+                    "%s: Error reading directory '%s'",
+                    statusHeader, directory
+            );
+
+            sendResponse(FTPResponseCode.DATA_TRANSFER_ERROR + " Error in file access on server");
+        } else if (errorOccured == DataTransferException.TRANSMISSION_ERROR) {
+            ServerLog.warn(
+                    "%s: Error sending list of files and directories to client at %s",
+                    statusHeader, dataConnection
+            );
 
             sendResponse(FTPResponseCode.DATA_TRANSFER_ERROR + " Data transmission error");
         } else {
-            System.out.println(String.format(
-                    "%s: List of files and directories successfully sent to %s:%s",
-                    statusHeader, clientDataAddress, clientDataPort
-            ));
+            serverContext.getServerMetrics().recordTransfer(
+                    TransferStatistics.LISTING, byteSent, System.nanoTime() - transferStart
+            );
+
+            ServerLog.info(
+                    "%s: List of files and directories successfully sent to %s",
+                    statusHeader, dataConnection
+            );
 
-            sendResponse(FTPResponseCode.DATA_TRANSFER_COMPLETED + " Data transmission completed");
+            sendResponse(dataTransferCompletedResponse());
         }
 
     }
@@ -0,0 +1,253 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Content of small, frequently downloaded files in direct buffers, shared by every session and keyed by the real
+// file path. An entry is only used while the file has the modification time and size it was read with, a
+// changed file is read again, and files changed by this server are dropped at once. Files are admitted on their
+// second download within the last ADMISSION_WINDOW distinct files, so that a one-off sweep through many files
+// does not evict the hot ones, and evicted least recently used first once the cache is over its size limit.
+//
+// Evicted buffers are freed by the garbage collector, once the transfers still sending them are done
+public class FileContentCache {
+    public static final String MAX_BYTES = "fileCacheBytes";
+    public static final String MAX_ENTRY_BYTES = "fileCacheMaxEntryBytes";
+
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+
+    // Number of recently missed files remembered for admission
+    public static final int ADMISSION_WINDOW = 4096;
+
+
+
+    private static class Entry {
+        public ByteBuffer content;
+        public long lastModifiedMillis;
+
+        public Entry(ByteBuffer content, long lastModifiedMillis) {
+            this.content = content;
+            this.lastModifiedMillis = lastModifiedMillis;
+        }
+    }
+
+
+
+    private long maxBytes;
+    private long maxEntryBytes;
+
+    // Access ordered, so that the first entry is the least recently used one. Guarded by itself
+    private LinkedHashMap<Path, Entry> entries;
+    private long cachedBytes;
+
+    // Files missed once, oldest first. Guarded by entries
+    private LinkedHashMap<Path, Boolean> candidates;
+
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong bypasses;
+    private AtomicLong evictions;
+    private AtomicLong invalidations;
+
+
+
+    public FileContentCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, Math.min(maxBytes, Integer.MAX_VALUE));
+
+        entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+        cachedBytes = 0;
+
+        candidates = new LinkedHashMap<Path, Boolean>() {
+            protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+                return size() > ADMISSION_WINDOW;
+            }
+        };
+
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        bypasses = new AtomicLong();
+        evictions = new AtomicLong();
+        invalidations = new AtomicLong();
+    }
+
+    public static FileContentCache fromConfig() {
+        return new FileContentCache(
+                ServerConfig.getLong(MAX_BYTES, DEFAULT_MAX_BYTES),
+                ServerConfig.getLong(MAX_ENTRY_BYTES, DEFAULT_MAX_ENTRY_BYTES)
+        );
+    }
+
+    // Content of the file, read-only and positioned at 0, if it is cached or admitted now. Return null if the
+    // file should be sent from disk: too large, not requested often enough, or unreadable
+    public ByteBuffer getContent(Path file) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+
+        Path key;
+        BasicFileAttributes attributes;
+
+        try {
+            key = file.toRealPath();
+            attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (!attributes.isRegularFile() || attributes.size() > maxEntryBytes) {
+            bypasses.incrementAndGet();
+            return null;
+        }
+
+        long lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+
+            if (entry != null && entry.lastModifiedMillis == lastModifiedMillis
+                    && entry.content.capacity() == attributes.size()) {
+                hits.incrementAndGet();
+                return entry.content.duplicate();
+            }
+
+            misses.incrementAndGet();
+
+            // First miss, or the file changed since it was cached: remember it, it is cached if asked for again
+            if (entry == null && candidates.remove(key) == null) {
+                candidates.put(key, Boolean.TRUE);
+                return null;
+            }
+
+        }
+
+        ByteBuffer content;
+
+        try {
+            content = load(key, attributes.size());
+
+            // A file written while being read may mix old and new data
+            BasicFileAttributes after = Files.readAttributes(key, BasicFileAttributes.class);
+
+            if (after.lastModifiedTime().toMillis() != lastModifiedMillis || after.size() != attributes.size()) {
+                return null;
+            }
+
+        } catch (IOException e) {
+            return null;
+        }
+
+        put(key, new Entry(content, lastModifiedMillis));
+
+        return content.duplicate();
+    }
+
+    // Drop the cached content of a file changed or deleted by this server
+    public void invalidate(Path file) {
+        if (maxBytes <= 0) {
+            return;
+        }
+
+        Path key;
+        try {
+            key = file.toRealPath();
+        } catch (IOException e) {
+            // The file is gone
+            key = file.toAbsolutePath().normalize();
+        }
+
+        Entry entry;
+
+        synchronized (entries) {
+            entry = entries.remove(key);
+
+            if (entry != null) {
+                cachedBytes -= entry.content.capacity();
+            }
+
+        }
+
+        if (entry != null) {
+            invalidations.incrementAndGet();
+        }
+
+    }
+
+    public String describe() {
+        int entryCount;
+        long bytes;
+
+        synchronized (entries) {
+            entryCount = entries.size();
+            bytes = cachedBytes;
+        }
+
+        return String.format(
+                "%-24s %d files, %d/%d bytes, %d hits, %d misses, %d too large, %d evictions, %d invalidations",
+                "File cache", entryCount, bytes, maxBytes, hits.get(), misses.get(), bypasses.get(),
+                evictions.get(), invalidations.get()
+        );
+    }
+
+    private static ByteBuffer load(Path file, long size) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (fileChannel.read(content, content.position()) == -1) {
+                    throw new IOException("File truncated while being cached");
+                }
+
+            }
+
+        }
+
+        content.flip();
+
+        return content.asReadOnlyBuffer();
+    }
+
+    private void put(Path file, Entry entry) {
+        synchronized (entries) {
+            Entry previous = entries.put(file, entry);
+
+            if (previous != null) {
+                cachedBytes -= previous.content.capacity();
+            }
+
+            cachedBytes += entry.content.capacity();
+
+            Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+
+            while (cachedBytes > maxBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+
+                iterator.remove();
+                cachedBytes -= eldest.content.capacity();
+
+                evictions.incrementAndGet();
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,1032 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+
+public class FileTransferEngine {
+    // Maximum number of bytes handed to a single transferTo() (sendfile) call
+    public static final long ZERO_COPY_WINDOW = 8 * 1024 * 1024;
+
+    // Buffer size used when zero-copy is not available
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    // Size of the direct buffer used to batch socket reads before each file write
+    public static final int UPLOAD_BATCH_SIZE = 1024 * 1024;
+
+    // Block mode (MODE B) framing: a descriptor byte and a 16-bit byte count before each block
+    public static final int BLOCK_HEADER_SIZE = 3;
+    public static final int MAX_BLOCK_SIZE = 0xffff;
+
+    public static final int BLOCK_END_OF_RECORD = 0x80;
+    public static final int BLOCK_END_OF_FILE = 0x40;
+    public static final int BLOCK_RESTART_MARKER = 0x10;
+
+    // Output buffer of streamed directory listings. Fits in one block mode block
+    public static final int LISTING_BUFFER_SIZE = 32 * 1024;
+
+    // Segmented download: each data connection starts with the file offset and length of its segment, both
+    // 8-byte big-endian, followed by the segment data
+    public static final int SEGMENT_HEADER_SIZE = 16;
+
+    // transferTo calls in a row sending nothing from a file which is not truncated, before the transfer fails
+    private static final int MAX_ZERO_COPY_STALLS = 16;
+
+    // Threads sending the segments other than the first one, which is sent by the caller
+    private static final ThreadFactory SEGMENT_THREADS = SessionThreads.newDaemonThreadFactory("segment-");
+
+
+
+    private TransferStatistics statistics;
+
+    // Bandwidth limits of the session, null if file data is never limited
+    private BandwidthShaper.Throttle throttle;
+
+    // Allocated on the first upload and reused by the following uploads of the same session
+    private ByteBuffer uploadBatchBuffer;
+
+    private ByteBuffer blockHeaderBuffer;
+
+    // Allocated on the first streamed listing and reused by the following ones
+    private ByteBuffer listingBuffer;
+
+
+
+    public FileTransferEngine(TransferStatistics statistics) {
+        this.statistics = statistics;
+
+        this.blockHeaderBuffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    }
+
+    public void setThrottle(BandwidthShaper.Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    // Send length bytes of the file from position start. Fewer bytes are sent if the file is truncated meanwhile
+    public TransferResult sendFile(FileChannel fileChannel, long start, long length, Socket dataSocket)
+            throws DataTransferException
+    {
+        long startTime = System.nanoTime();
+        long byteSent = 0;
+
+        SocketChannel socketChannel = dataSocket.getChannel();
+
+        if (socketChannel != null) {
+            try {
+                byteSent = sendFileZeroCopy(fileChannel, start, length, socketChannel);
+
+                // Only a file truncated meanwhile may end the download early
+                if (byteSent < length && fileChannel.size() >= start + length) {
+                    throw new IOException("Short transfer: " + byteSent + " of " + length + " bytes sent");
+                }
+
+            } catch (IOException e) {
+                statistics.recordFailure();
+                throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+            }
+
+            return record(TransferStatistics.DOWNLOAD, new TransferResult(
+                    TransferResult.ZERO_COPY, byteSent, System.nanoTime() - startTime
+            ));
+        }
+
+        // Zero-copy is not available (the data socket is not backed by a channel), use the buffered loop
+        try {
+            byteSent = sendFileBuffered(fileChannel, start, length, dataSocket.getOutputStream());
+        } catch (DataTransferException e) {
+            statistics.recordFailure();
+            throw e;
+        } catch (IOException e) {
+            statistics.recordFailure();
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        return record(TransferStatistics.DOWNLOAD, new TransferResult(
+                TransferResult.BUFFERED, byteSent, System.nanoTime() - startTime
+        ));
+    }
+
+    // Send length bytes of the file from position start, split into one segment per data socket, all sent at the
+    // same time. Segments are contiguous and as equal as possible, the last one takes the remainder
+    public TransferResult sendFileSegments(FileChannel fileChannel, long start, long length, Socket[] dataSockets)
+            throws DataTransferException
+    {
+        long startTime = System.nanoTime();
+        int count = dataSockets.length;
+
+        Thread[] threads = new Thread[count];
+        IOException[] errors = new IOException[count];
+
+        // Segments other than the first one on their own threads, then the first one on this thread
+        for (int i = count - 1; i >= 0; --i) {
+            final int index = i;
+            final long segmentStart = start + length / count * i;
+            final long segmentLength = i == count - 1 ? start + length - segmentStart : length / count;
+
+            Runnable sendSegment = () -> {
+                try {
+                    sendSegment(fileChannel, segmentStart, segmentLength, requireChannel(dataSockets[index]));
+                } catch (IOException e) {
+                    errors[index] = e;
+                }
+
+            };
+
+            if (i == 0) {
+                sendSegment.run();
+            } else {
+                threads[i] = SEGMENT_THREADS.newThread(sendSegment);
+                threads[i].start();
+            }
+
+        }
+
+        boolean interrupted = false;
+
+        for (Thread thread : threads) {
+            while (thread != null) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+
+            }
+
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (IOException error : errors) {
+            if (error != null) {
+                statistics.recordFailure();
+                throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, error);
+            }
+
+        }
+
+        return record(TransferStatistics.DOWNLOAD, new TransferResult(
+                TransferResult.SEGMENTED, length, System.nanoTime() - startTime
+        ));
+    }
+
+    // Write the received data to the file from position start. Data already in the file after start is overwritten
+    public TransferResult receiveFile(FileChannel fileChannel, long start, Socket dataSocket)
+            throws DataTransferException
+    {
+        long startTime = System.nanoTime();
+        long byteReceived = 0;
+
+        SocketChannel socketChannel = dataSocket.getChannel();
+
+        try {
+            if (socketChannel != null) {
+                byteReceived = receiveFileDirectBatch(socketChannel, fileChannel, start);
+
+                return record(TransferStatistics.UPLOAD, new TransferResult(
+                        TransferResult.DIRECT_BATCH, byteReceived, System.nanoTime() - startTime
+                ));
+            }
+
+            byteReceived = receiveFileBuffered(dataSocket.getInputStream(), fileChannel, start);
+        } catch (DataTransferException e) {
+            statistics.recordFailure();
+            throw e;
+        } catch (IOException e) {
+            statistics.recordFailure();
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        return record(TransferStatistics.UPLOAD, new TransferResult(
+                TransferResult.BUFFERED, byteReceived, System.nanoTime() - startTime
+        ));
+    }
+
+    // Block mode. The data connection stays open after the end-of-file block, ready for the next transfer
+    public TransferResult sendFileBlocks(FileChannel fileChannel, long start, long length, Socket dataSocket)
+            throws DataTransferException
+    {
+        long startTime = System.nanoTime();
+        long byteSent;
+
+        try {
+            byteSent = sendFileBlocksZeroCopy(fileChannel, start, length, requireChannel(dataSocket));
+        } catch (IOException e) {
+            statistics.recordFailure();
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        return record(TransferStatistics.DOWNLOAD, new TransferResult(
+                TransferResult.BLOCK, byteSent, System.nanoTime() - startTime
+        ));
+    }
+
+    public TransferResult receiveFileBlocks(FileChannel fileChannel, long start, Socket dataSocket)
+            throws DataTransferException
+    {
+        long startTime = System.nanoTime();
+        long byteReceived;
+
+        try {
+            byteReceived = receiveFileBlocksBatched(requireChannel(dataSocket), fileChannel, start);
+        } catch (DataTransferException e) {
+            statistics.recordFailure();
+            throw e;
+        } catch (IOException e) {
+            statistics.recordFailure();
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        return record(TransferStatistics.UPLOAD, new TransferResult(
+                TransferResult.BLOCK, byteReceived, System.nanoTime() - startTime
+        ));
+    }
+
+    // Send length bytes from position start of a file held in memory (see FileContentCache), in stream or block
+    // mode. content is not modified
+    public TransferResult sendCachedFile(ByteBuffer content, long start, long length, Socket dataSocket,
+                                         boolean blockMode) throws DataTransferException
+    {
+        long startTime = System.nanoTime();
+
+        ByteBuffer data = content.duplicate();
+
+        data.limit((int) (start + length));
+        data.position((int) start);
+
+        try {
+            SocketChannel socketChannel = requireChannel(dataSocket);
+
+            if (blockMode) {
+                sendBufferBlocks(data, socketChannel);
+            } else {
+                writeGranted(socketChannel, data);
+            }
+
+        } catch (IOException e) {
+            statistics.recordFailure();
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        return record(TransferStatistics.DOWNLOAD, new TransferResult(
+                TransferResult.CACHED, length, System.nanoTime() - startTime
+        ));
+    }
+
+    // Send length bytes of the file from position start out of its mapped windows (see MappedFileRegistry), in
+    // stream or block mode. Each window is held only while it is being sent. A file truncated meanwhile ends the
+    // transfer with an error, the socket cannot read the pages past its end
+    public TransferResult sendFileMapped(MappedFileRegistry.MappedFile mappedFile, long start, long length,
+                                         Socket dataSocket, boolean blockMode) throws DataTransferException
+    {
+        long startTime = System.nanoTime();
+
+        long position = start;
+        long end = start + length;
+
+        try {
+            SocketChannel socketChannel = requireChannel(dataSocket);
+
+            while (position < end) {
+                MappedFileRegistry.Window window = mappedFile.acquire(position);
+
+                try {
+                    long windowEnd = Math.min(end, window.getEnd());
+                    ByteBuffer data = window.slice(position, windowEnd);
+
+                    if (blockMode) {
+                        sendWindowBlocks(data, socketChannel);
+                    } else {
+                        writeGranted(socketChannel, data);
+                    }
+
+                    position = windowEnd;
+                } finally {
+                    window.release();
+                }
+
+            }
+
+            if (blockMode) {
+                writeBlockHeader(socketChannel, BLOCK_END_OF_FILE, 0);
+            }
+
+        } catch (IOException e) {
+            statistics.recordFailure();
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        return record(TransferStatistics.DOWNLOAD, new TransferResult(
+                TransferResult.MAPPED, position - start, System.nanoTime() - startTime
+        ));
+    }
+
+    // MODE Z: send length bytes of the file from position start as one zlib stream (see DeflateStage). Fewer bytes
+    // are sent if the file is truncated meanwhile. Bandwidth limits apply to the compressed bytes
+    public TransferResult sendFileCompressed(FileChannel fileChannel, long start, long length, Socket dataSocket)
+            throws DataTransferException
+    {
+        long startTime = System.nanoTime();
+        long byteSent;
+
+        DeflateStage deflateStage;
+
+        try {
+            SocketChannel socketChannel = requireChannel(dataSocket);
+
+            deflateStage = new DeflateStage(DeflateStage.LEVEL, buffer -> writeGranted(socketChannel, buffer));
+        } catch (IOException e) {
+            statistics.recordFailure();
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        try {
+            byteSent = sendFileDeflated(fileChannel, start, length, deflateStage);
+        } catch (DataTransferException e) {
+            statistics.recordFailure();
+            throw e;
+        } finally {
+            deflateStage.end();
+        }
+
+        return record(TransferStatistics.DOWNLOAD, new TransferResult(
+                deflateStage.isBypassed() ? TransferResult.DEFLATE_BYPASSED : TransferResult.DEFLATE,
+                byteSent, System.nanoTime() - startTime, deflateStage.getBytesOut()
+        ));
+    }
+
+    // MODE Z: write the inflated zlib stream to the file from position start. The stream must be complete
+    public TransferResult receiveFileCompressed(FileChannel fileChannel, long start, Socket dataSocket)
+            throws DataTransferException
+    {
+        long startTime = System.nanoTime();
+        Inflater inflater = new Inflater();
+
+        long[] byteCounts;
+
+        try {
+            byteCounts = receiveFileInflated(requireChannel(dataSocket), fileChannel, start, inflater);
+        } catch (DataTransferException e) {
+            statistics.recordFailure();
+            throw e;
+        } catch (IOException e) {
+            statistics.recordFailure();
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        } finally {
+            inflater.end();
+        }
+
+        return record(TransferStatistics.UPLOAD, new TransferResult(
+                TransferResult.DEFLATE, byteCounts[0], System.nanoTime() - startTime, byteCounts[1]
+        ));
+    }
+
+    // Send data held in memory, e.g. a cached directory listing. Return the number of bytes sent, before
+    // compression
+    public long sendBytes(byte[] data, Socket dataSocket, boolean blockMode, boolean compressed)
+            throws DataTransferException
+    {
+        try {
+            if (compressed) {
+                sendBytesDeflated(data, requireChannel(dataSocket));
+            } else if (blockMode) {
+                sendBytesBlocks(data, requireChannel(dataSocket));
+            } else {
+                OutputStream socketOutStream = dataSocket.getOutputStream();
+
+                socketOutStream.write(data);
+                socketOutStream.flush();
+            }
+
+        } catch (IOException e) {
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        return data.length;
+    }
+
+    // Stream an unsorted listing, format is DirectoryLister.NAMES or DirectoryLister.FACTS. Return the number of
+    // bytes sent, before compression
+    public long sendListing(Path directory, String format, Socket dataSocket, boolean blockMode, boolean compressed)
+            throws DataTransferException
+    {
+        if (listingBuffer == null) {
+            listingBuffer = ByteBuffer.allocate(LISTING_BUFFER_SIZE);
+        }
+
+        final SocketChannel socketChannel;
+        try {
+            socketChannel = requireChannel(dataSocket);
+        } catch (IOException e) {
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        // Listings are not limited, so the compressed output goes straight to the connection
+        final DeflateStage deflateStage = compressed
+                ? new DeflateStage(DeflateStage.LEVEL, buffer -> writeFully(socketChannel, buffer))
+                : null;
+
+        DirectoryLister.ListingSink sink = buffer -> {
+            try {
+                if (deflateStage != null) {
+                    deflateStage.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                    return;
+                }
+
+                if (blockMode) {
+                    writeBlockHeader(socketChannel, 0, buffer.remaining());
+                }
+
+                writeFully(socketChannel, buffer);
+            } catch (IOException e) {
+                throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+            }
+
+        };
+
+        long byteSent;
+        try {
+            try {
+                byteSent = format.equals(DirectoryLister.FACTS)
+                        ? DirectoryLister.streamFacts(directory, listingBuffer, sink)
+                        : DirectoryLister.streamListing(directory, listingBuffer, sink);
+            } catch (IOException e) {
+                throw new DataTransferException(DataTransferException.FILE_ACCESS_ERROR, e);
+            }
+
+            try {
+                if (deflateStage != null) {
+                    deflateStage.finish();
+                } else if (blockMode) {
+                    writeBlockHeader(socketChannel, BLOCK_END_OF_FILE, 0);
+                }
+
+            } catch (IOException e) {
+                throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+            }
+
+        } finally {
+            if (deflateStage != null) {
+                deflateStage.end();
+            }
+
+        }
+
+        return byteSent;
+    }
+
+    // Send data held in memory as one block mode file
+    private void sendBytesBlocks(byte[] data, SocketChannel socketChannel) throws IOException {
+        int position = 0;
+
+        while (position < data.length) {
+            int blockSize = Math.min(MAX_BLOCK_SIZE, data.length - position);
+
+            writeBlockHeader(socketChannel, 0, blockSize);
+            writeFully(socketChannel, ByteBuffer.wrap(data, position, blockSize));
+
+            position += blockSize;
+        }
+
+        writeBlockHeader(socketChannel, BLOCK_END_OF_FILE, 0);
+    }
+
+    // Send the remaining bytes of data as one block mode file, as fast as the bandwidth limits allow
+    private void sendBufferBlocks(ByteBuffer data, SocketChannel socketChannel) throws IOException {
+        sendWindowBlocks(data, socketChannel);
+        writeBlockHeader(socketChannel, BLOCK_END_OF_FILE, 0);
+    }
+
+    // Send the remaining bytes of data as blocks of a file which goes on, without the end of file block
+    private void sendWindowBlocks(ByteBuffer data, SocketChannel socketChannel) throws IOException {
+        int end = data.limit();
+
+        while (data.position() < end) {
+            int blockSize = (int) grant(Math.min(MAX_BLOCK_SIZE, end - data.position()));
+
+            writeBlockHeader(socketChannel, 0, blockSize);
+
+            data.limit(data.position() + blockSize);
+            writeFully(socketChannel, data);
+            data.limit(end);
+        }
+
+    }
+
+    // Send data held in memory as one zlib stream. Listings are not limited
+    private void sendBytesDeflated(byte[] data, SocketChannel socketChannel) throws IOException {
+        DeflateStage deflateStage = new DeflateStage(DeflateStage.LEVEL, buffer -> writeFully(socketChannel, buffer));
+
+        try {
+            deflateStage.write(data, 0, data.length);
+            deflateStage.finish();
+        } finally {
+            deflateStage.end();
+        }
+
+    }
+
+    private TransferResult record(String direction, TransferResult result) {
+        statistics.record(direction, result);
+        return result;
+    }
+
+    // Number of file data bytes the bandwidth limits allow to move next, at most wanted. Only listings are not
+    // limited
+    private long grant(long wanted) throws InterruptedIOException {
+        return throttle == null ? wanted : throttle.acquire(wanted);
+    }
+
+    private void releaseGrant(long unused) {
+        if (throttle != null && unused > 0) {
+            throttle.release(unused);
+        }
+
+    }
+
+    // Write the whole buffer, as fast as the bandwidth limits allow
+    private void writeGranted(SocketChannel socketChannel, ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+
+        while (buffer.hasRemaining()) {
+            int granted = (int) grant(buffer.remaining());
+
+            buffer.limit(buffer.position() + granted);
+            writeFully(socketChannel, buffer);
+            buffer.limit(limit);
+        }
+
+    }
+
+    private long sendFileZeroCopy(FileChannel fileChannel, long start, long length, SocketChannel socketChannel)
+            throws IOException
+    {
+        long position = start;
+        long end = start + length;
+        int stalls = 0;
+
+        while (position < end) {
+            long window = grant(Math.min(ZERO_COPY_WINDOW, end - position));
+            long byteSent = fileChannel.transferTo(position, window, socketChannel);
+
+            releaseGrant(window - Math.max(byteSent, 0));
+
+            // The file may have been truncated while being sent. Otherwise nothing sent is transient on a blocking
+            // channel, and the transfer is tried again
+            if (byteSent <= 0) {
+                long currentSize = fileChannel.size();
+
+                if (currentSize < end) {
+                    end = currentSize;
+                } else if (++stalls > MAX_ZERO_COPY_STALLS) {
+                    throw new IOException("Short transfer: nothing sent at offset " + position);
+                }
+
+                continue;
+            }
+
+            stalls = 0;
+            position += byteSent;
+        }
+
+        return position - start;
+    }
+
+    private void sendSegment(FileChannel fileChannel, long start, long length, SocketChannel socketChannel)
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+
+        header.putLong(start);
+        header.putLong(length);
+        header.flip();
+
+        writeFully(socketChannel, header);
+
+        // The header has promised length bytes, so a file truncated meanwhile ends the segment with an error
+        if (sendFileZeroCopy(fileChannel, start, length, socketChannel) < length) {
+            throw new IOException("File truncated while being sent");
+        }
+
+    }
+
+    private long sendFileBlocksZeroCopy(FileChannel fileChannel, long start, long length, SocketChannel socketChannel)
+            throws IOException
+    {
+        long position = start;
+        long end = start + length;
+        int stalls = 0;
+
+        while (position < end) {
+            int blockSize = (int) grant(Math.min(MAX_BLOCK_SIZE, end - position));
+            long blockEnd = position + blockSize;
+
+            writeBlockHeader(socketChannel, 0, blockSize);
+
+            // The header has promised blockSize bytes, so a file truncated meanwhile ends the transfer with an error
+            while (position < blockEnd) {
+                long byteSent = fileChannel.transferTo(position, blockEnd - position, socketChannel);
+
+                if (byteSent <= 0) {
+                    if (fileChannel.size() < blockEnd) {
+                        throw new IOException("File truncated while being sent");
+                    }
+
+                    if (++stalls > MAX_ZERO_COPY_STALLS) {
+                        throw new IOException("Short transfer: nothing sent at offset " + position);
+                    }
+
+                    continue;
+                }
+
+                stalls = 0;
+                position += byteSent;
+            }
+
+        }
+
+        writeBlockHeader(socketChannel, BLOCK_END_OF_FILE, 0);
+
+        return position - start;
+    }
+
+    private long receiveFileBlocksBatched(SocketChannel socketChannel, FileChannel fileChannel, long start)
+            throws IOException, DataTransferException
+    {
+        if (uploadBatchBuffer == null) {
+            uploadBatchBuffer = ByteBuffer.allocateDirect(UPLOAD_BATCH_SIZE);
+        }
+
+        ByteBuffer buffer = uploadBatchBuffer;
+        long byteReceived = 0;
+        int descriptor = 0;
+
+        buffer.clear();
+
+        // Blocks are at most 64 KB, so several of them are gathered before each file write
+        while ((descriptor & BLOCK_END_OF_FILE) == 0) {
+            blockHeaderBuffer.clear();
+            readFully(socketChannel, blockHeaderBuffer);
+
+            descriptor = blockHeaderBuffer.get(0) & 0xff;
+            int blockSize = ((blockHeaderBuffer.get(1) & 0xff) << 8) | (blockHeaderBuffer.get(2) & 0xff);
+
+            boolean restartMarker = (descriptor & BLOCK_RESTART_MARKER) != 0;
+
+            // A restart marker carries a marker for the client, not file data, and is not counted against the limit
+            if (throttle != null && !restartMarker) {
+                throttle.acquireFully(blockSize);
+            }
+
+            if (buffer.remaining() < blockSize) {
+                writeBatch(buffer, fileChannel, start + byteReceived - buffer.position());
+            }
+
+            int dataStart = buffer.position();
+
+            buffer.limit(dataStart + blockSize);
+            readFully(socketChannel, buffer);
+            buffer.limit(buffer.capacity());
+
+            if (restartMarker) {
+                buffer.position(dataStart);
+                continue;
+            }
+
+            byteReceived += blockSize;
+        }
+
+        writeBatch(buffer, fileChannel, start + byteReceived - buffer.position());
+
+        return byteReceived;
+    }
+
+    private void writeBlockHeader(SocketChannel socketChannel, int descriptor, int blockSize) throws IOException {
+        blockHeaderBuffer.clear();
+        blockHeaderBuffer.put((byte) descriptor);
+        blockHeaderBuffer.put((byte) (blockSize >> 8));
+        blockHeaderBuffer.put((byte) blockSize);
+        blockHeaderBuffer.flip();
+
+        writeFully(socketChannel, blockHeaderBuffer);
+    }
+
+    // Write the gathered blocks to the file at the given position and empty the buffer
+    private void writeBatch(ByteBuffer buffer, FileChannel fileChannel, long position) throws DataTransferException {
+        buffer.flip();
+
+        try {
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+
+        } catch (IOException e) {
+            throw new DataTransferException(DataTransferException.FILE_ACCESS_ERROR, e);
+        }
+
+        buffer.clear();
+    }
+
+    private static void writeFully(SocketChannel socketChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            socketChannel.write(buffer);
+        }
+
+    }
+
+    private static void readFully(SocketChannel socketChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (socketChannel.read(buffer) == -1) {
+                throw new EOFException("Data connection closed in the middle of a block");
+            }
+
+        }
+
+    }
+
+    // Data sockets opened by the server are always backed by a channel
+    private static SocketChannel requireChannel(Socket dataSocket) throws IOException {
+        SocketChannel socketChannel = dataSocket.getChannel();
+
+        if (socketChannel == null) {
+            throw new IOException("Block mode needs a channel-backed data socket");
+        }
+
+        return socketChannel;
+    }
+
+    private long sendFileBuffered(FileChannel fileChannel, long start, long length, OutputStream socketOutStream)
+            throws DataTransferException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long byteSent = 0;
+        int byteRead;
+
+        while (byteSent < length) {
+            int granted;
+
+            try {
+                granted = (int) grant(Math.min(BUFFER_SIZE, length - byteSent));
+            } catch (InterruptedIOException e) {
+                throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+            }
+
+            buffer.clear();
+            buffer.limit(granted);
+
+            try {
+                byteRead = fileChannel.read(buffer, start + byteSent);
+            } catch (IOException e) {
+                throw new DataTransferException(DataTransferException.FILE_ACCESS_ERROR, e);
+            }
+
+            releaseGrant(granted - Math.max(byteRead, 0));
+
+            if (byteRead == -1) {
+                break;
+            }
+
+            try {
+                socketOutStream.write(buffer.array(), 0, byteRead);
+            } catch (IOException e) {
+                throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+            }
+
+            byteSent += byteRead;
+        }
+
+        try {
+            socketOutStream.flush();
+        } catch (IOException e) {
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        return byteSent;
+    }
+
+    private long receiveFileDirectBatch(SocketChannel socketChannel, FileChannel fileChannel, long start)
+            throws DataTransferException
+    {
+        if (uploadBatchBuffer == null) {
+            uploadBatchBuffer = ByteBuffer.allocateDirect(UPLOAD_BATCH_SIZE);
+        }
+
+        ByteBuffer buffer = uploadBatchBuffer;
+        long byteReceived = 0;
+        boolean endOfStream = false;
+        IOException transmissionError = null;
+
+        while (!endOfStream) {
+            buffer.clear();
+
+            // Fill the whole batch before touching the file, so that each file write moves a large block
+            while (buffer.hasRemaining()) {
+                int byteRead;
+
+                try {
+                    int granted = (int) grant(buffer.remaining());
+
+                    buffer.limit(buffer.position() + granted);
+
+                    try {
+                        byteRead = socketChannel.read(buffer);
+                    } finally {
+                        buffer.limit(buffer.capacity());
+                    }
+
+                    releaseGrant(granted - Math.max(byteRead, 0));
+                } catch (IOException e) {
+                    transmissionError = e;
+                    byteRead = -1;
+                }
+
+                if (byteRead == -1) {
+                    endOfStream = true;
+                    break;
+                }
+
+            }
+
+            int batchSize = buffer.position();
+
+            // Data received before a transmission error is still written, so that the upload can be resumed
+            writeBatch(buffer, fileChannel, start + byteReceived);
+            byteReceived += batchSize;
+        }
+
+        if (transmissionError != null) {
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, transmissionError);
+        }
+
+        return byteReceived;
+    }
+
+    private long sendFileDeflated(FileChannel fileChannel, long start, long length, DeflateStage deflateStage)
+            throws DataTransferException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long byteSent = 0;
+        int byteRead;
+
+        while (byteSent < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, length - byteSent));
+
+            try {
+                byteRead = fileChannel.read(buffer, start + byteSent);
+            } catch (IOException e) {
+                throw new DataTransferException(DataTransferException.FILE_ACCESS_ERROR, e);
+            }
+
+            if (byteRead == -1) {
+                break;
+            }
+
+            try {
+                deflateStage.write(buffer.array(), 0, byteRead);
+            } catch (IOException e) {
+                throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+            }
+
+            byteSent += byteRead;
+        }
+
+        try {
+            deflateStage.finish();
+        } catch (IOException e) {
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+        }
+
+        return byteSent;
+    }
+
+    // Return the number of bytes written to the file and the number of compressed bytes received
+    private long[] receiveFileInflated(SocketChannel socketChannel, FileChannel fileChannel, long start,
+                                       Inflater inflater) throws DataTransferException
+    {
+        ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer output = ByteBuffer.allocate(UPLOAD_BATCH_SIZE);
+
+        long byteReceived = 0;
+        long wireBytes = 0;
+        IOException transmissionError = null;
+
+        while (!inflater.finished()) {
+            try {
+                if (inflater.needsInput()) {
+                    int granted = (int) grant(input.capacity());
+
+                    input.clear();
+                    input.limit(granted);
+
+                    int byteRead = socketChannel.read(input);
+
+                    releaseGrant(granted - Math.max(byteRead, 0));
+
+                    if (byteRead == -1) {
+                        throw new EOFException("Data connection closed before the end of the compressed stream");
+                    }
+
+                    wireBytes += byteRead;
+                    inflater.setInput(input.array(), 0, byteRead);
+                }
+
+                if (inflater.needsDictionary()) {
+                    throw new IOException("Compressed stream needs a preset dictionary");
+                }
+
+                int count = inflater.inflate(output.array(), output.position(), output.remaining());
+
+                output.position(output.position() + count);
+            } catch (IOException e) {
+                transmissionError = e;
+                break;
+            } catch (DataFormatException e) {
+                transmissionError = new IOException("Invalid compressed stream", e);
+                break;
+            }
+
+            if (!output.hasRemaining()) {
+                writeBatch(output, fileChannel, start + byteReceived);
+                byteReceived += output.capacity();
+            }
+
+        }
+
+        // Data inflated before a transmission error is still written, so that the upload can be resumed
+        int batchSize = output.position();
+
+        writeBatch(output, fileChannel, start + byteReceived);
+        byteReceived += batchSize;
+
+        if (transmissionError != null) {
+            throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, transmissionError);
+        }
+
+        return new long[] { byteReceived, wireBytes };
+    }
+
+    private long receiveFileBuffered(InputStream socketInpStream, FileChannel fileChannel, long start)
+            throws DataTransferException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long byteReceived = 0;
+        int byteRead;
+
+        while (true) {
+            int granted;
+
+            try {
+                granted = (int) grant(BUFFER_SIZE);
+                byteRead = socketInpStream.read(buffer.array(), 0, granted);
+            } catch (IOException e) {
+                throw new DataTransferException(DataTransferException.TRANSMISSION_ERROR, e);
+            }
+
+            releaseGrant(granted - Math.max(byteRead, 0));
+
+            if (byteRead == -1) {
+                break;
+            }
+
+            buffer.clear();
+            buffer.limit(byteRead);
+
+            try {
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer, start + byteReceived + buffer.position());
+                }
+
+            } catch (IOException e) {
+                throw new DataTransferException(DataTransferException.FILE_ACCESS_ERROR, e);
+            }
+
+            byteReceived += byteRead;
+        }
+
+        return byteReceived;
+    }
+
+}
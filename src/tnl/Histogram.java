@@ -0,0 +1,137 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+// Distribution of non-negative values. Values below 8 have a bucket each, every larger power-of-two range is
+// split into 8 buckets. Recording is lock-free, so sessions never wait for each other. Percentiles are
+// estimated as the upper bound of their bucket, i.e. at most 12.5% above the real value
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // Exponents SUB_BUCKET_BITS to 62, plus the exact buckets below SUB_BUCKET_COUNT
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+
+
+    private AtomicLongArray buckets;
+
+    private LongAdder count;
+    private LongAdder sum;
+    private AtomicLong max;
+
+
+
+    public Histogram() {
+        buckets = new AtomicLongArray(BUCKET_COUNT);
+
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new AtomicLong();
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(bucketOf(value));
+
+        count.increment();
+        sum.add(value);
+
+        long currentMax = max.get();
+
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // Estimated value below which the given fraction (0 to 1) of the recorded values falls
+    public long getPercentile(double fraction) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+
+        // Buckets are read one by one, so the total may differ slightly from getCount() while recording goes on
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += snapshot[i];
+
+            if (seen >= rank) {
+                // Never above the largest value actually recorded
+                return Math.min(upperBoundOf(i), max.get());
+            }
+
+        }
+
+        return max.get();
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+
+        // The bits following the highest one select the sub-bucket
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    // Largest value counted by a bucket
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+
+        int shift = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        long subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+
+        // Computed so that the last bucket gives Long.MAX_VALUE rather than overflowing
+        return (((SUB_BUCKET_COUNT + subBucket) << shift) - 1) + (1L << shift);
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Closes sessions which have been idle for too long, or have not logged in soon enough. Sessions only record the
+// time of their last request (SessionInfo.touch()). Each session has one timeout in a shared TimerWheel, which
+// checks the session when it may have expired and is pushed back if the session was active in the meantime.
+// A timeout of 0 disables the check.
+//
+// Expired sessions are closed by their own thread, so that a client which does not read its 421 reply cannot
+// hold up the timer thread and every other timeout. A session still open CLOSE_GRACE_MILLIS later has its socket
+// closed without a reply
+public class IdleSessionReaper {
+    public static final String IDLE_TIMEOUT = "idleTimeoutMillis";
+    public static final String LOGIN_TIMEOUT = "loginTimeoutMillis";
+
+    public static final long CLOSE_GRACE_MILLIS = 5000;
+
+
+
+    private TimerWheel timerWheel;
+
+    private long idleTimeoutMillis;
+    private long loginTimeoutMillis;
+
+    private AtomicLong idleSessionsClosed;
+    private AtomicLong loginTimeoutsClosed;
+
+
+
+    public IdleSessionReaper(TimerWheel timerWheel, long idleTimeoutMillis, long loginTimeoutMillis) {
+        this.timerWheel = timerWheel;
+
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.loginTimeoutMillis = loginTimeoutMillis;
+
+        idleSessionsClosed = new AtomicLong();
+        loginTimeoutsClosed = new AtomicLong();
+    }
+
+    public static IdleSessionReaper fromConfig() {
+        return new IdleSessionReaper(
+                TimerWheel.fromConfig(),
+                ServerConfig.getLong(IDLE_TIMEOUT, 5 * 60 * 1000),
+                ServerConfig.getLong(LOGIN_TIMEOUT, 60 * 1000)
+        );
+    }
+
+    // Start watching a new session. Return its timeout, to be cancelled when the session terminates, or null if
+    // both checks are disabled
+    public TimerWheel.Timeout watch(FTPServerThread session) {
+        long delay = delayUntilDeadline(session, System.currentTimeMillis());
+
+        if (delay == Long.MAX_VALUE) {
+            return null;
+        }
+
+        return timerWheel.schedule(timeout -> check(session, timeout), delay);
+    }
+
+    public void close() {
+        timerWheel.close();
+    }
+
+    public String[] describe() {
+        return new String[] {
+                String.format(
+                        "%-24s idle timeout %d s, login timeout %d s, closed %d idle and %d not logged in",
+                        "Session timeouts", idleTimeoutMillis / 1000, loginTimeoutMillis / 1000,
+                        idleSessionsClosed.get(), loginTimeoutsClosed.get()
+                ),
+                timerWheel.describe()
+        };
+    }
+
+    // Run on the wheel thread
+    private void check(FTPServerThread session, TimerWheel.Timeout timeout) {
+        if (session.isTimedOut()) {
+            // Second check, after CLOSE_GRACE_MILLIS
+            if (!session.isTerminated()) {
+                session.abortOnTimeout();
+            }
+
+            return;
+        }
+
+        if (session.isClosing()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (session.isHandlingRequest()) {
+            // A long data transfer is not idleness. Check again once it could have become idle
+            timerWheel.reschedule(timeout, idleTimeoutMillis > 0 ? idleTimeoutMillis : loginTimeoutMillis);
+            return;
+        }
+
+        SessionInfo sessionInfo = session.getSessionInfo();
+
+        if (isLoginExpired(session, now)) {
+            loginTimeoutsClosed.incrementAndGet();
+            closeOnTimeout(session, timeout, "Login timeout");
+            return;
+        }
+
+        if (idleTimeoutMillis > 0 && now - sessionInfo.getLastActivityTime() >= idleTimeoutMillis) {
+            idleSessionsClosed.incrementAndGet();
+            closeOnTimeout(session, timeout, "Idle timeout");
+            return;
+        }
+
+        long delay = delayUntilDeadline(session, now);
+
+        if (delay != Long.MAX_VALUE) {
+            timerWheel.reschedule(timeout, delay);
+        }
+
+    }
+
+    // Ask the session to close, and check that it did once the grace period is over
+    private void closeOnTimeout(FTPServerThread session, TimerWheel.Timeout timeout, String reason) {
+        session.closeOnTimeout(reason);
+
+        if (!session.isTerminated()) {
+            timerWheel.reschedule(timeout, CLOSE_GRACE_MILLIS);
+        }
+
+    }
+
+    private boolean isLoginExpired(FTPServerThread session, long now) {
+        return loginTimeoutMillis > 0 && !session.isLoggedIn()
+                && now - session.getSessionInfo().getConnectTime() >= loginTimeoutMillis;
+    }
+
+    // Time until the first check may fail, Long.MAX_VALUE if none can
+    private long delayUntilDeadline(FTPServerThread session, long now) {
+        SessionInfo sessionInfo = session.getSessionInfo();
+        long delay = Long.MAX_VALUE;
+
+        if (loginTimeoutMillis > 0 && !session.isLoggedIn()) {
+            delay = sessionInfo.getConnectTime() + loginTimeoutMillis - now;
+        }
+
+        if (idleTimeoutMillis > 0) {
+            delay = Math.min(delay, sessionInfo.getLastActivityTime() + idleTimeoutMillis - now);
+        }
+
+        return delay == Long.MAX_VALUE ? delay : Math.max(0, delay);
+    }
+
+}
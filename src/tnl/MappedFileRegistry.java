@@ -0,0 +1,377 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Read-only mappings of large downloaded files, in windows of windowBytes, shared by every session downloading
+// the same file: the data is sent straight from the page cache, with no read per session. A window is mapped on
+// first use and reference counted. Once no transfer uses it, it stays mapped for the next one while the unused
+// windows fit in maxIdleBytes, least recently released unmapped first. Windows are keyed by real path,
+// modification time and size, so a changed file gets new windows and transfers of the old one are not disturbed.
+//
+// Unmapping is immediate through sun.misc.Unsafe.invokeCleaner, looked up by reflection as it only exists from
+// Java 9. Without it, unmapped windows are released by the garbage collector.
+// Files at least minFileBytes large are mapped, 0 disables mapping
+public class MappedFileRegistry {
+    public static final String MIN_FILE_BYTES = "mappedDownloadMinBytes";
+    public static final String WINDOW_BYTES = "mappedWindowBytes";
+    public static final String MAX_IDLE_BYTES = "mappedIdleBytes";
+
+    public static final long DEFAULT_WINDOW_BYTES = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_IDLE_BYTES = 256 * 1024 * 1024;
+
+
+
+    // One file, as opened by one transfer
+    public class MappedFile {
+        private Path file;
+        private long lastModifiedMillis;
+        private long size;
+
+        // Used to map the windows this transfer is the first to need
+        private FileChannel fileChannel;
+
+        private MappedFile(Path file, long lastModifiedMillis, long size, FileChannel fileChannel) {
+            this.file = file;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.size = size;
+            this.fileChannel = fileChannel;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        // Window holding the byte at position, which must be below the size. Release it once done
+        public Window acquire(long position) throws IOException {
+            return MappedFileRegistry.this.acquire(this, position / windowBytes);
+        }
+    }
+
+
+
+    public class Window {
+        private WindowKey key;
+        private MappedByteBuffer buffer;
+        private long offset;
+
+        // Guarded by the registry
+        private int references;
+
+        private Window(WindowKey key, MappedByteBuffer buffer, long offset) {
+            this.key = key;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.references = 0;
+        }
+
+        // File position just after the window
+        public long getEnd() {
+            return offset + buffer.capacity();
+        }
+
+        // File bytes from start to end, both within the window, positioned independently of the other users
+        public ByteBuffer slice(long start, long end) {
+            ByteBuffer data = buffer.duplicate();
+
+            data.limit((int) (end - offset));
+            data.position((int) (start - offset));
+
+            return data;
+        }
+
+        public void release() {
+            MappedFileRegistry.this.release(this);
+        }
+    }
+
+
+
+    private static class WindowKey {
+        private Path file;
+        private long lastModifiedMillis;
+        private long size;
+        private long index;
+
+        private WindowKey(MappedFile mappedFile, long index) {
+            this.file = mappedFile.file;
+            this.lastModifiedMillis = mappedFile.lastModifiedMillis;
+            this.size = mappedFile.size;
+            this.index = index;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof WindowKey)) {
+                return false;
+            }
+
+            WindowKey key = (WindowKey) other;
+
+            return index == key.index && size == key.size && lastModifiedMillis == key.lastModifiedMillis
+                    && file.equals(key.file);
+        }
+
+        public int hashCode() {
+            return file.hashCode() * 31 + Long.hashCode(index);
+        }
+    }
+
+
+
+    // sun.misc.Unsafe instance and its invokeCleaner method, null if not available
+    private static final Object UNSAFE = findUnsafe();
+    private static final Method INVOKE_CLEANER = findInvokeCleaner();
+
+
+
+    private long minFileBytes;
+    private long windowBytes;
+    private long maxIdleBytes;
+
+    // Every mapped window, used or not. Guarded by this
+    private HashMap<WindowKey, Window> windows;
+
+    // Windows no transfer uses, least recently released first. Guarded by this
+    private LinkedHashMap<WindowKey, Window> idleWindows;
+    private long idleBytes;
+
+    private AtomicLong maps;
+    private AtomicLong shares;
+    private AtomicLong unmaps;
+
+
+
+    public MappedFileRegistry(long minFileBytes, long windowBytes, long maxIdleBytes) {
+        this.minFileBytes = minFileBytes;
+        this.windowBytes = Math.max(64 * 1024, Math.min(windowBytes, Integer.MAX_VALUE));
+        this.maxIdleBytes = maxIdleBytes;
+
+        windows = new HashMap<WindowKey, Window>();
+        idleWindows = new LinkedHashMap<WindowKey, Window>();
+        idleBytes = 0;
+
+        maps = new AtomicLong();
+        shares = new AtomicLong();
+        unmaps = new AtomicLong();
+    }
+
+    public static MappedFileRegistry fromConfig() {
+        return new MappedFileRegistry(
+                ServerConfig.getLong(MIN_FILE_BYTES, 0),
+                ServerConfig.getLong(WINDOW_BYTES, DEFAULT_WINDOW_BYTES),
+                ServerConfig.getLong(MAX_IDLE_BYTES, DEFAULT_MAX_IDLE_BYTES)
+        );
+    }
+
+    // The file opened for a download, to be sent from its mapped windows. Return null if it should be sent
+    // otherwise: mapping disabled, file too small, or its attributes unreadable
+    public MappedFile open(Path file, FileChannel fileChannel) {
+        if (minFileBytes <= 0) {
+            return null;
+        }
+
+        try {
+            long size = fileChannel.size();
+
+            if (size < minFileBytes) {
+                return null;
+            }
+
+            Path realFile = file.toRealPath();
+
+            return new MappedFile(realFile, Files.getLastModifiedTime(realFile).toMillis(), size, fileChannel);
+        } catch (IOException e) {
+            return null;
+        }
+
+    }
+
+    // Unmap the unused windows of a file changed or deleted by this server. Windows in use are left to their
+    // transfers, a changed file does not match their key anyway
+    public void invalidate(Path file) {
+        if (minFileBytes <= 0) {
+            return;
+        }
+
+        Path realFile;
+        try {
+            realFile = file.toRealPath();
+        } catch (IOException e) {
+            // The file is gone
+            realFile = file.toAbsolutePath().normalize();
+        }
+
+        synchronized (this) {
+            Iterator<Window> iterator = idleWindows.values().iterator();
+
+            while (iterator.hasNext()) {
+                Window window = iterator.next();
+
+                if (window.key.file.equals(realFile)) {
+                    iterator.remove();
+                    removeIdle(window);
+                }
+
+            }
+
+        }
+
+    }
+
+    // Unmap the unused windows. Windows still in use are left to the garbage collector
+    public synchronized void close() {
+        Iterator<Window> iterator = idleWindows.values().iterator();
+
+        while (iterator.hasNext()) {
+            Window window = iterator.next();
+
+            iterator.remove();
+            removeIdle(window);
+        }
+
+    }
+
+    public synchronized String describe() {
+        return String.format(
+                "%-24s %d windows (%d in use), %d/%d idle bytes, %d maps, %d shared, %d unmaps%s",
+                "Mapped files", windows.size(), windows.size() - idleWindows.size(), idleBytes, maxIdleBytes,
+                maps.get(), shares.get(), unmaps.get(), INVOKE_CLEANER == null ? " (left to the GC)" : ""
+        );
+    }
+
+    private Window acquire(MappedFile mappedFile, long index) throws IOException {
+        WindowKey key = new WindowKey(mappedFile, index);
+
+        synchronized (this) {
+            Window window = windows.get(key);
+
+            if (window != null) {
+                shares.incrementAndGet();
+                return use(window);
+            }
+
+        }
+
+        // Map without the lock, other transfers may meanwhile map the same window
+        long offset = index * windowBytes;
+        MappedByteBuffer buffer = mappedFile.fileChannel.map(
+                FileChannel.MapMode.READ_ONLY, offset, Math.min(windowBytes, mappedFile.size - offset)
+        );
+
+        synchronized (this) {
+            Window window = windows.get(key);
+
+            if (window != null) {
+                unmap(buffer);
+                shares.incrementAndGet();
+                return use(window);
+            }
+
+            window = new Window(key, buffer, offset);
+            windows.put(key, window);
+            maps.incrementAndGet();
+
+            return use(window);
+        }
+
+    }
+
+    // Called with the lock held
+    private Window use(Window window) {
+        if (window.references == 0 && idleWindows.remove(window.key) != null) {
+            idleBytes -= window.buffer.capacity();
+        }
+
+        window.references++;
+
+        return window;
+    }
+
+    private synchronized void release(Window window) {
+        if (--window.references > 0) {
+            return;
+        }
+
+        idleWindows.put(window.key, window);
+        idleBytes += window.buffer.capacity();
+
+        Iterator<Map.Entry<WindowKey, Window>> iterator = idleWindows.entrySet().iterator();
+
+        while (idleBytes > maxIdleBytes && iterator.hasNext()) {
+            Window eldest = iterator.next().getValue();
+
+            iterator.remove();
+            removeIdle(eldest);
+        }
+
+    }
+
+    // Called with the lock held, once the window is out of idleWindows
+    private void removeIdle(Window window) {
+        idleBytes -= window.buffer.capacity();
+        windows.remove(window.key);
+
+        unmap(window.buffer);
+    }
+
+    private void unmap(MappedByteBuffer buffer) {
+        unmaps.incrementAndGet();
+
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            // Left to the garbage collector
+        }
+
+    }
+
+    private static Object findUnsafe() {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+
+            field.setAccessible(true);
+
+            return field.get(null);
+        } catch (Exception e) {
+            return null;
+        }
+
+    }
+
+    private static Method findInvokeCleaner() {
+        if (UNSAFE == null) {
+            return null;
+        }
+
+        try {
+            return UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,428 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+
+
+// A control connection served by a ControlSelectorLoop. Request lines are parsed incrementally and handed to
+// the FTPServerThread session. Blocking requests (data transfers and file system calls, which may be slow) run on
+// the transfer workers, and reading is suspended until they finish, so that the requests of one session are still
+// handled in order and a slow disk does not stall the other connections of the loop.
+//
+// Responses wait in a queue until the client reads them. Once MAX_QUEUED_OUTPUT bytes are queued, requests are
+// no longer read or handled until the queue is empty, so that a client which does not read cannot make it grow
+public class NioControlConnection {
+    private class ResponseOutputStream extends OutputStream {
+        public void write(int b) {
+            synchronized (NioControlConnection.this) {
+                pendingOutput.write(b);
+            }
+
+        }
+
+        public void write(byte[] b, int off, int len) {
+            synchronized (NioControlConnection.this) {
+                pendingOutput.write(b, off, len);
+            }
+
+        }
+
+        public void flush() {
+            flushOutput();
+        }
+
+        public void close() {
+            flushOutput();
+            closeAfterFlush();
+        }
+    }
+
+
+
+    private static final byte LINE_FEED = '\n';
+
+    // Parsed request lines kept for reuse, enough for the usual bursts of pipelined requests
+    private static final int MAX_FREE_REQUESTS = 8;
+
+    // Responses queued, beyond which requests wait for the client to read them
+    private static final int MAX_QUEUED_OUTPUT = 64 * 1024;
+
+
+
+    private SocketChannel channel;
+    private ControlSelectorLoop loop;
+    private SelectionKey key;
+
+    private FTPServerThread session;
+
+    // Holds the bytes of an incomplete request line. Borrowed from the pool only while a line is incomplete
+    private ByteBuffer lineBuffer;
+    private ArrayDeque<RequestLine> pendingRequests;
+    private ArrayDeque<RequestLine> freeRequests;
+
+    // Only accessed by the loop thread
+    private boolean busy;
+    private boolean outputFull;
+    private boolean closed;
+
+    // Guarded by this
+    private ByteArrayOutputStream pendingOutput;
+    private ArrayDeque<ByteBuffer> outputQueue;
+    private long queuedBytes;
+    private boolean closeRequested;
+
+    private ResponseOutputStream responseOutputStream;
+
+
+
+    public NioControlConnection(SocketChannel channel, ControlSelectorLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+
+        this.pendingRequests = new ArrayDeque<RequestLine>();
+        this.freeRequests = new ArrayDeque<RequestLine>();
+
+        this.pendingOutput = new ByteArrayOutputStream(128);
+        this.outputQueue = new ArrayDeque<ByteBuffer>();
+
+        this.responseOutputStream = new ResponseOutputStream();
+
+        busy = false;
+        outputFull = false;
+        closed = false;
+
+        queuedBytes = 0;
+        closeRequested = false;
+    }
+
+    public OutputStream getResponseOutputStream() {
+        return responseOutputStream;
+    }
+
+    public void attachSession(FTPServerThread session) {
+        this.session = session;
+    }
+
+    // Called by the loop thread
+    public void register(Selector selector) {
+        try {
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+
+        // The session may have been closed before being registered
+        boolean closeNeeded = false;
+
+        synchronized (this) {
+            if (!outputQueue.isEmpty()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (closeRequested) {
+                closeNeeded = true;
+            }
+
+        }
+
+        if (closeNeeded) {
+            closeNow();
+        }
+
+    }
+
+    // Called by the loop thread
+    public void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+
+        int byteRead;
+
+        try {
+            byteRead = channel.read(readBuffer);
+        } catch (IOException e) {
+            byteRead = -1;
+        }
+
+        if (byteRead == -1) {
+            // Input stream error or client disconnected. Cannot recoverable. Terminate
+            session.terminate(true);
+            return;
+        }
+
+        readBuffer.flip();
+
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+
+            if (lineBuffer == null) {
+                lineBuffer = loop.getLineBufferPool().acquire();
+            }
+
+            if (b == LINE_FEED) {
+                pendingRequests.offer(parseLine());
+                continue;
+            }
+
+            if (!lineBuffer.hasRemaining()) {
+                // Request line too long, this cannot be a valid request
+                releaseLineBuffer();
+                dropPendingRequests();
+                session.terminate(true);
+
+                return;
+            }
+
+            lineBuffer.put(b);
+        }
+
+        if (lineBuffer != null && lineBuffer.position() == 0) {
+            releaseLineBuffer();
+        }
+
+        handlePendingRequests();
+    }
+
+    // Called by the loop thread
+    public void onWritable() {
+        boolean closeNeeded;
+
+        synchronized (this) {
+            if (!writeOutputQueue()) {
+                return;
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeNeeded = closeRequested;
+        }
+
+        // Outside of the lock, as closing the session takes the session's lock
+        if (closeNeeded) {
+            closeNow();
+            return;
+        }
+
+        if (outputFull) {
+            // The client has read every response, handle its next requests
+            outputFull = false;
+            resumeReading();
+        }
+
+    }
+
+    // Called by the loop thread
+    public void closeNow() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Silently ignore the exception
+        }
+
+        releaseLineBuffer();
+
+        // No-op if the session has already announced its termination
+        session.terminate(true);
+    }
+
+    private RequestLine parseLine() {
+        lineBuffer.flip();
+
+        RequestLine request = freeRequests.isEmpty() ? new RequestLine() : freeRequests.poll();
+        request.parse(lineBuffer.array(), lineBuffer.arrayOffset(), lineBuffer.limit());
+
+        lineBuffer.clear();
+
+        return request;
+    }
+
+    private void recycle(RequestLine request) {
+        if (freeRequests.size() < MAX_FREE_REQUESTS) {
+            freeRequests.offer(request);
+        }
+
+    }
+
+    private void dropPendingRequests() {
+        while (!pendingRequests.isEmpty()) {
+            recycle(pendingRequests.poll());
+        }
+
+    }
+
+    private void releaseLineBuffer() {
+        if (lineBuffer != null) {
+            loop.getLineBufferPool().release(lineBuffer);
+            lineBuffer = null;
+        }
+
+    }
+
+    private void handlePendingRequests() {
+        while (!busy && !closed && !pendingRequests.isEmpty()) {
+            if (isOutputFull()) {
+                // Stop reading until the client has read the responses (see onWritable())
+                outputFull = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+
+            final RequestLine request = pendingRequests.poll();
+
+            if (!FTPServerThread.isBlockingRequest(request)) {
+                boolean sessionOpen = session.processRequest(request);
+
+                recycle(request);
+                onRequestHandled(sessionOpen);
+                continue;
+            }
+
+            // Stop reading until the request is handled
+            busy = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+            loop.getTransferWorkers().execute(() -> {
+                final boolean sessionOpen = session.processRequest(request);
+
+                loop.execute(() -> {
+                    busy = false;
+
+                    recycle(request);
+                    onRequestHandled(sessionOpen);
+                    resumeReading();
+                });
+            });
+        }
+
+    }
+
+    // Read and handle requests again, unless still waiting for a blocking request or for the client to read
+    private void resumeReading() {
+        if (busy || outputFull || closed || !key.isValid()) {
+            return;
+        }
+
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        handlePendingRequests();
+    }
+
+    private synchronized boolean isOutputFull() {
+        return queuedBytes >= MAX_QUEUED_OUTPUT;
+    }
+
+    private void onRequestHandled(boolean sessionOpen) {
+        if (!sessionOpen) {
+            dropPendingRequests();
+            return;
+        }
+
+        // Client has logged out or console user wants to close this connection
+        if (session.isClosing()) {
+            dropPendingRequests();
+            session.terminate(false);
+        }
+
+    }
+
+    // Called by any thread writing responses of the session
+    private void flushOutput() {
+        synchronized (this) {
+            if (pendingOutput.size() == 0) {
+                return;
+            }
+
+            outputQueue.offer(ByteBuffer.wrap(pendingOutput.toByteArray()));
+            queuedBytes += pendingOutput.size();
+            pendingOutput.reset();
+
+            if (key == null) {
+                // Not registered yet. The queue will be written once the selector is ready
+                return;
+            }
+
+            if (!writeOutputQueue()) {
+                loop.execute(() -> {
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+
+                });
+            }
+
+        }
+
+    }
+
+    // Called by any thread once the session has no more responses to send
+    private void closeAfterFlush() {
+        synchronized (this) {
+            closeRequested = true;
+
+            if (queuedBytes >= MAX_QUEUED_OUTPUT) {
+                // The client is not reading, it would keep the connection open. Drop the responses
+                outputQueue.clear();
+                queuedBytes = 0;
+            }
+
+            if (key == null || !outputQueue.isEmpty()) {
+                return;
+            }
+
+        }
+
+        loop.execute(() -> closeNow());
+    }
+
+    // Write as much as possible without blocking. Return true if the queue is now empty. Caller holds the lock
+    private boolean writeOutputQueue() {
+        try {
+            while (!outputQueue.isEmpty()) {
+                ByteBuffer head = outputQueue.peek();
+
+                queuedBytes -= channel.write(head);
+
+                if (head.hasRemaining()) {
+                    return false;
+                }
+
+                outputQueue.poll();
+            }
+
+        } catch (ClosedChannelException e) {
+            outputQueue.clear();
+            queuedBytes = 0;
+        } catch (IOException e) {
+            // Client is gone. Drop the responses and let the loop close the connection
+            outputQueue.clear();
+            queuedBytes = 0;
+            closeRequested = true;
+
+            loop.execute(() -> closeNow());
+        }
+
+        return true;
+    }
+
+}
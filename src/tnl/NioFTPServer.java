@@ -0,0 +1,97 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+// Event-driven FTP server. Control connections are shared by a few ControlSelectorLoop threads instead of
+// having one thread each. Only requests needing a data connection are handed to a pool of transfer workers
+public class NioFTPServer extends FTPServer {
+    public static final int DEFAULT_SELECTOR_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    // A whole request line and its carriage return
+    private static final int LINE_BUFFER_SIZE = RequestLine.MAX_LENGTH + 1;
+    private static final int MAX_POOLED_LINE_BUFFERS = 1024;
+
+
+
+    private ControlSelectorLoop[] selectorLoops;
+    private AtomicInteger nextSelectorLoop;
+
+    private ExecutorService transferWorkers;
+
+
+
+    public NioFTPServer(int port, String serverDirectory, int selectorCount) throws Exception {
+        this(port, serverDirectory, selectorCount, SessionThreads.PLATFORM);
+    }
+
+    // threadMode selects the threads used by the transfer workers, see SessionThreads
+    public NioFTPServer(int port, String serverDirectory, int selectorCount, String threadMode) throws Exception {
+        super(openServerSocket(port), serverDirectory, threadMode);
+
+        transferWorkers = Executors.newCachedThreadPool(sessionThreadFactory);
+
+        ByteBufferPool lineBufferPool = new ByteBufferPool(LINE_BUFFER_SIZE, MAX_POOLED_LINE_BUFFERS);
+
+        selectorLoops = new ControlSelectorLoop[selectorCount];
+        nextSelectorLoop = new AtomicInteger();
+
+        for (int i = 0; i < selectorCount; ++i) {
+            selectorLoops[i] = new ControlSelectorLoop("selector-" + i, lineBufferPool, transferWorkers);
+            selectorLoops[i].start();
+        }
+
+    }
+
+    private static ServerSocket openServerSocket(int port) throws IOException {
+        // Accepted sockets of a channel-backed server socket have a channel, which can be registered to a selector
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port));
+
+        return serverSocketChannel.socket();
+    }
+
+    public void run() {
+        super.run();
+
+        // All sessions have been closed. Stop the loops once they have sent the last responses
+        for (ControlSelectorLoop selectorLoop : selectorLoops) {
+            selectorLoop.close();
+        }
+
+        transferWorkers.shutdown();
+    }
+
+    protected void startConnection(Socket socket, SessionInfo sessionInfo) throws Exception {
+        int index = (nextSelectorLoop.getAndIncrement() & Integer.MAX_VALUE) % selectorLoops.length;
+        ControlSelectorLoop selectorLoop = selectorLoops[index];
+
+        // Replies are small writes, do not hold them back for the client's delayed acknowledgement
+        socket.setTcpNoDelay(true);
+
+        NioControlConnection connection = new NioControlConnection(socket.getChannel(), selectorLoop);
+        FTPServerThread session = new FTPServerThread(
+                connection.getResponseOutputStream(), socket.getLocalAddress(), sessionInfo, serverContext, this
+        );
+
+        connection.attachSession(session);
+        sessionRegistry.add(sessionInfo, session);
+
+        selectorLoop.register(connection);
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Listening sockets for passive mode data connections (PASV/EPSV). Every port of the configured range is bound
+// once at startup, so that allocating a port is a queue poll and releasing it a queue offer
+public class PassivePortPool {
+    public static final String PORT_MIN = "passivePortMin";
+    public static final String PORT_MAX = "passivePortMax";
+
+    public static final int DEFAULT_PORT_MIN = 50000;
+    public static final int DEFAULT_PORT_MAX = 50099;
+
+    private static final int BACKLOG = 4;
+
+
+
+    private ArrayList<ServerSocketChannel> allPorts;
+    private ConcurrentLinkedQueue<ServerSocketChannel> freePorts;
+
+    private AtomicInteger portsInUse;
+    private AtomicInteger peakPortsInUse;
+    private AtomicLong allocations;
+    private AtomicLong allocationFailures;
+    private AtomicLong acceptTimeouts;
+
+
+
+    public PassivePortPool(int portMin, int portMax) {
+        allPorts = new ArrayList<ServerSocketChannel>();
+        freePorts = new ConcurrentLinkedQueue<ServerSocketChannel>();
+
+        portsInUse = new AtomicInteger();
+        peakPortsInUse = new AtomicInteger();
+        allocations = new AtomicLong();
+        allocationFailures = new AtomicLong();
+        acceptTimeouts = new AtomicLong();
+
+        for (int port = portMin; port <= portMax; ++port) {
+            try {
+                ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+                serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
+
+                allPorts.add(serverSocketChannel);
+                freePorts.offer(serverSocketChannel);
+            } catch (IOException e) {
+                // Port used by another program. Skip it
+                ServerLog.warn("Passive port %d is not available", port);
+            }
+
+        }
+
+    }
+
+    public static PassivePortPool fromConfig() {
+        return new PassivePortPool(
+                ServerConfig.getInt(PORT_MIN, DEFAULT_PORT_MIN),
+                ServerConfig.getInt(PORT_MAX, DEFAULT_PORT_MAX)
+        );
+    }
+
+    // Return null if every port is in use
+    public ServerSocketChannel allocate() {
+        ServerSocketChannel serverSocketChannel = freePorts.poll();
+
+        if (serverSocketChannel == null) {
+            allocationFailures.incrementAndGet();
+            return null;
+        }
+
+        allocations.incrementAndGet();
+
+        int inUse = portsInUse.incrementAndGet();
+        peakPortsInUse.accumulateAndGet(inUse, Math::max);
+
+        return serverSocketChannel;
+    }
+
+    public void release(ServerSocketChannel serverSocketChannel) {
+        // Drop connections queued after the previous owner stopped accepting, so that they never reach the next one
+        try {
+            serverSocketChannel.configureBlocking(false);
+
+            SocketChannel staleChannel;
+            while ((staleChannel = serverSocketChannel.accept()) != null) {
+                staleChannel.close();
+            }
+
+            serverSocketChannel.configureBlocking(true);
+        } catch (IOException e) {
+            // Silently ignore the exception
+        }
+
+        portsInUse.decrementAndGet();
+        freePorts.offer(serverSocketChannel);
+    }
+
+    // Client did not connect to an allocated port in time
+    public void recordAcceptTimeout() {
+        acceptTimeouts.incrementAndGet();
+    }
+
+    public void close() {
+        for (ServerSocketChannel serverSocketChannel : allPorts) {
+            try {
+                serverSocketChannel.close();
+            } catch (IOException e) {
+                // Silently ignore the exception
+            }
+
+        }
+
+    }
+
+    public String describe() {
+        int totalPorts = allPorts.size();
+        int inUse = portsInUse.get();
+
+        return String.format(
+                "%-24s %d/%d ports in use (%.0f%%), peak %d, %d allocations, %d failed (pool exhausted), "
+                        + "%d accept timeouts",
+                "Passive ports", inUse, totalPorts, totalPorts == 0 ? 0.0 : 100.0 * inUse / totalPorts,
+                peakPortsInUse.get(), allocations.get(), allocationFailures.get(), acceptTimeouts.get()
+        );
+    }
+
+}
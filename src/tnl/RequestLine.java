@@ -0,0 +1,221 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.nio.charset.StandardCharsets;
+
+
+
+// One request line, parsed in place and reused for the following requests of the session. The command code is
+// packed into a long (see packCode) and arguments are kept as offsets into the line, so that parsing allocates
+// nothing. An argument becomes a String only when a handler asks for it.
+//
+// Syntax: CODE [argument ...], arguments separated by spaces, "quoted arguments" may contain spaces. The code
+// is not case sensitive
+public class RequestLine {
+    // Longest request line accepted, without the line end
+    public static final int MAX_LENGTH = 4096;
+
+    // Codes are at most 8 characters long, one byte each in the packed code
+    public static final int MAX_CODE_LENGTH = 8;
+
+    public static final int MAX_ARGUMENTS = 16;
+
+    // Packed code of a line which cannot be a request
+    public static final long INVALID_CODE = 0;
+
+
+
+    private byte[] bytes;
+    private int length;
+
+    private long code;
+
+    private int argumentCount;
+    private int[] argumentStarts;
+    private int[] argumentEnds;
+
+    // Arguments already decoded since the last parse
+    private String[] arguments;
+
+
+
+    public RequestLine() {
+        bytes = new byte[128];
+        length = 0;
+
+        code = INVALID_CODE;
+
+        argumentCount = 0;
+        argumentStarts = new int[MAX_ARGUMENTS];
+        argumentEnds = new int[MAX_ARGUMENTS];
+
+        arguments = new String[MAX_ARGUMENTS];
+    }
+
+    // Copy a line (without its line feed, a trailing carriage return is dropped) and parse it. Return false if it
+    // cannot be a request, getCode() then returns INVALID_CODE
+    public boolean parse(byte[] source, int offset, int count) {
+        if (count > 0 && source[offset + count - 1] == '\r') {
+            --count;
+        }
+
+        if (count > bytes.length) {
+            // Request lines are short, so this happens at most a few times per session
+            bytes = new byte[Math.max(count, Math.min(bytes.length * 2, MAX_LENGTH))];
+        }
+
+        System.arraycopy(source, offset, bytes, 0, count);
+        length = count;
+
+        code = INVALID_CODE;
+        argumentCount = 0;
+
+        for (int i = 0; i < MAX_ARGUMENTS; ++i) {
+            arguments[i] = null;
+        }
+
+        return parseCode() && parseArguments();
+    }
+
+    public long getCode() {
+        return code;
+    }
+
+    // Number of arguments
+    public int size() {
+        return argumentCount;
+    }
+
+    public String get(int index) {
+        if (index < 0 || index >= argumentCount) {
+            throw new IndexOutOfBoundsException("Argument " + index + " of " + argumentCount);
+        }
+
+        if (arguments[index] == null) {
+            arguments[index] = new String(
+                    bytes, argumentStarts[index], argumentEnds[index] - argumentStarts[index], StandardCharsets.UTF_8
+            );
+        }
+
+        return arguments[index];
+    }
+
+    // The whole line, for logging
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // "RETR" -> 'R' << 24 | 'E' << 16 | 'T' << 8 | 'R'. INVALID_CODE if the code is empty or too long
+    public static long packCode(String code) {
+        if (code.length() == 0 || code.length() > MAX_CODE_LENGTH) {
+            return INVALID_CODE;
+        }
+
+        long packed = 0;
+
+        for (int i = 0; i < code.length(); ++i) {
+            packed = (packed << 8) | upperCase((byte) code.charAt(i));
+        }
+
+        return packed;
+    }
+
+    private boolean parseCode() {
+        long packed = 0;
+        int index = 0;
+
+        while (index < length && bytes[index] != ' ') {
+            if (index == MAX_CODE_LENGTH) {
+                return false;
+            }
+
+            packed = (packed << 8) | upperCase(bytes[index]);
+            ++index;
+        }
+
+        if (index == 0) {
+            return false;
+        }
+
+        code = packed;
+        return true;
+    }
+
+    private boolean parseArguments() {
+        int index = 0;
+        int end = length;
+
+        while (index < length && bytes[index] != ' ') {
+            ++index;
+        }
+
+        // Surrounding white space, including control characters, is ignored
+        while (index < end && (bytes[index] & 0xff) <= ' ') {
+            ++index;
+        }
+
+        while (end > index && (bytes[end - 1] & 0xff) <= ' ') {
+            --end;
+        }
+
+        while (index < end) {
+            if (argumentCount == MAX_ARGUMENTS) {
+                code = INVALID_CODE;
+                return false;
+            }
+
+            int start;
+
+            if (bytes[index] == '"') {
+                start = ++index;
+
+                while (index < end && bytes[index] != '"') {
+                    ++index;
+                }
+
+                if (index == end) {
+                    // Unterminated quote
+                    code = INVALID_CODE;
+                    return false;
+                }
+
+                argumentStarts[argumentCount] = start;
+                argumentEnds[argumentCount] = index;
+
+                ++index;
+            } else {
+                start = index;
+
+                while (index < end && bytes[index] != ' ') {
+                    ++index;
+                }
+
+                argumentStarts[argumentCount] = start;
+                argumentEnds[argumentCount] = index;
+            }
+
+            ++argumentCount;
+
+            while (index < end && bytes[index] == ' ') {
+                ++index;
+            }
+
+        }
+
+        return true;
+    }
+
+    private static long upperCase(byte b) {
+        if (b >= 'a' && b <= 'z') {
+            return b - ('a' - 'A');
+        }
+
+        return b & 0xff;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+
+// Reads request lines of a blocking control connection into a RequestLine, through one reused buffer. Reads
+// block without a timeout: an idle session is ended by IdleSessionReaper closing its socket, which makes the
+// blocked read fail
+public class RequestLineReader {
+    private InputStream inputStream;
+
+    private byte[] buffer;
+
+    // Received bytes are buffer[start, end). Bytes before scanned are known not to be a line feed
+    private int start;
+    private int scanned;
+    private int end;
+
+
+
+    public RequestLineReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+
+        // A whole line and its line end always fit
+        this.buffer = new byte[RequestLine.MAX_LENGTH + 2];
+
+        start = 0;
+        scanned = 0;
+        end = 0;
+    }
+
+    // Read the next line into request. Return false at the end of the stream. Throw an IOException if the line
+    // is longer than RequestLine.MAX_LENGTH, or if the socket is closed meanwhile
+    public boolean readLine(RequestLine request) throws IOException {
+        while (true) {
+            while (scanned < end) {
+                if (buffer[scanned] == '\n') {
+                    request.parse(buffer, start, scanned - start);
+
+                    start = ++scanned;
+                    return true;
+                }
+
+                ++scanned;
+            }
+
+            if (start > 0) {
+                // Move the incomplete line to the front of the buffer
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+
+                scanned -= start;
+                end -= start;
+                start = 0;
+            }
+
+            if (end == buffer.length) {
+                throw new IOException("Request line too long");
+            }
+
+            int count = inputStream.read(buffer, end, buffer.length - end);
+
+            if (count == -1) {
+                return false;
+            }
+
+            end += count;
+        }
+
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+// Tuning options given as system properties at startup, e.g. java -Dftpserver.maxSessions=1000 ...
+public class ServerConfig {
+    public static final String PREFIX = "ftpserver.";
+
+
+
+    public static int getInt(String name, int defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            ServerLog.warn("Invalid value '%s' for %s%s, using %d", value, PREFIX, name, defaultValue);
+            return defaultValue;
+        }
+
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            ServerLog.warn("Invalid value '%s' for %s%s, using %d", value, PREFIX, name, defaultValue);
+            return defaultValue;
+        }
+
+    }
+
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+
+        return value.trim();
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+
+        return Boolean.parseBoolean(value.trim());
+    }
+
+}
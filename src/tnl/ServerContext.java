@@ -0,0 +1,106 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.nio.file.Path;
+
+
+
+// Server-wide state shared by every session of one FTPServer
+public class ServerContext {
+    private Path serverDirectory;
+
+    private TransferStatistics transferStatistics;
+    private ServerMetrics serverMetrics;
+    private AdmissionController admissionController;
+    private CredentialStore credentialStore;
+    private IdleSessionReaper idleSessionReaper;
+    private BandwidthShaper bandwidthShaper;
+    private UploadCommitter uploadCommitter;
+    private PassivePortPool passivePortPool;
+    private DirectoryListingCache directoryListingCache;
+    private FileContentCache fileContentCache;
+    private MappedFileRegistry mappedFileRegistry;
+
+
+
+    public ServerContext(Path serverDirectory) {
+        this.serverDirectory = serverDirectory;
+
+        this.transferStatistics = new TransferStatistics();
+        this.serverMetrics = new ServerMetrics();
+        this.admissionController = AdmissionController.fromConfig();
+        this.credentialStore = CredentialStore.fromConfig();
+        this.idleSessionReaper = IdleSessionReaper.fromConfig();
+        this.bandwidthShaper = BandwidthShaper.fromConfig();
+        this.uploadCommitter = UploadCommitter.fromConfig(serverDirectory);
+        this.uploadCommitter.sweep();
+        this.passivePortPool = PassivePortPool.fromConfig();
+        this.directoryListingCache = DirectoryListingCache.fromConfig();
+        this.fileContentCache = FileContentCache.fromConfig();
+        this.mappedFileRegistry = MappedFileRegistry.fromConfig();
+    }
+
+    public Path getServerDirectory() {
+        return serverDirectory;
+    }
+
+    public TransferStatistics getTransferStatistics() {
+        return transferStatistics;
+    }
+
+    public ServerMetrics getServerMetrics() {
+        return serverMetrics;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    public CredentialStore getCredentialStore() {
+        return credentialStore;
+    }
+
+    public IdleSessionReaper getIdleSessionReaper() {
+        return idleSessionReaper;
+    }
+
+    public BandwidthShaper getBandwidthShaper() {
+        return bandwidthShaper;
+    }
+
+    public UploadCommitter getUploadCommitter() {
+        return uploadCommitter;
+    }
+
+    public PassivePortPool getPassivePortPool() {
+        return passivePortPool;
+    }
+
+    public DirectoryListingCache getDirectoryListingCache() {
+        return directoryListingCache;
+    }
+
+    public FileContentCache getFileContentCache() {
+        return fileContentCache;
+    }
+
+    public MappedFileRegistry getMappedFileRegistry() {
+        return mappedFileRegistry;
+    }
+
+    // Release the resources held for the whole server's lifetime
+    public void close() {
+        passivePortPool.close();
+        directoryListingCache.close();
+        serverMetrics.unregister();
+        idleSessionReaper.close();
+        uploadCommitter.close();
+        mappedFileRegistry.close();
+    }
+
+}
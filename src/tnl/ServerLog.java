@@ -0,0 +1,421 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+
+// Server log. Sessions only put their messages into a bounded lock-free ring buffer, one background thread
+// formats and writes them, to standard output or to a rotated log file. Messages arriving while the buffer is
+// full are dropped and counted, so a slow console or disk never blocks a session
+public class ServerLog {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+
+    public static final String LEVEL = "logLevel";
+    public static final String FILE = "logFile";
+    public static final String MAX_FILE_BYTES = "logMaxBytes";
+    public static final String FILE_COUNT = "logFiles";
+    public static final String BUFFER_SIZE = "logBufferSize";
+
+
+
+    // One message. Formatting is left to the writer thread
+    private static class Slot {
+        // Position in the ring this slot is ready for: equal to the position when free, position + 1 when filled
+        public volatile long sequence;
+
+        public int level;
+        public long time;
+        public String header;
+        public String format;
+        public Object[] args;
+    }
+
+
+
+    private static final String[] LEVEL_NAMES = new String[] { "DEBUG", "INFO ", "WARN ", "ERROR" };
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    // Messages logged before the ring buffer exists: warnings about the settings of the log itself, read while this
+    // class is initialised. Written once the ring is ready
+    private static ArrayList<Slot> earlyMessages = new ArrayList<Slot>();
+
+    private static final int level = parseLevel(System.getProperty(ServerConfig.PREFIX + LEVEL), INFO);
+
+    private static final String logFile = System.getProperty(ServerConfig.PREFIX + FILE);
+    private static final long maxFileBytes = ServerConfig.getLong(MAX_FILE_BYTES, 10 * 1024 * 1024);
+    private static final int fileCount = Math.max(1, ServerConfig.getInt(FILE_COUNT, 5));
+
+    private static final Slot[] slots = newSlots(ServerConfig.getInt(BUFFER_SIZE, 64 * 1024));
+    private static final int mask = slots.length - 1;
+
+    // Next position to fill, shared by every producer
+    private static final AtomicLong tail = new AtomicLong();
+
+    // Next position to write, only used by the writer thread
+    private static long head = 0;
+
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long reportedDropped = 0;
+
+    private static Writer fileWriter;
+    private static long fileBytes;
+
+    private static final StringBuilder line = new StringBuilder(256);
+
+    private static Thread writerThread;
+
+    // Set by the writer thread before it parks on an empty buffer, for the next producer to unpark it
+    private static volatile boolean writerParked = false;
+
+    static {
+        for (Slot slot : earlyMessages) {
+            if (slot.level >= level) {
+                offer(slot.level, slot.header, slot.format, slot.args);
+            }
+
+        }
+
+        earlyMessages = null;
+
+        writerThread = SessionThreads.newDaemonThreadFactory("log-writer-").newThread(() -> writeLoop());
+        writerThread.start();
+
+        // Write what is still buffered when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (line) {
+                drain();
+                flush();
+            }
+
+        }, "log-shutdown"));
+    }
+
+
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    // "<header>: <message>", e.g. a request or a response of a session
+    public static void log(int messageLevel, String header, String message) {
+        if (messageLevel >= level) {
+            offer(messageLevel, header, message, null);
+        }
+
+    }
+
+    public static void debug(String format, Object... args) {
+        if (DEBUG >= level) {
+            offer(DEBUG, null, format, args);
+        }
+
+    }
+
+    public static void info(String format, Object... args) {
+        if (INFO >= level) {
+            offer(INFO, null, format, args);
+        }
+
+    }
+
+    public static void warn(String format, Object... args) {
+        if (WARN >= level) {
+            offer(WARN, null, format, args);
+        }
+
+    }
+
+    public static void error(String format, Object... args) {
+        if (ERROR >= level) {
+            offer(ERROR, null, format, args);
+        }
+
+    }
+
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static void offer(int messageLevel, String header, String format, Object[] args) {
+        if (slots == null) {
+            // Only seen by the thread initialising this class, the others wait for it
+            Slot slot = new Slot();
+
+            slot.level = messageLevel;
+            slot.header = header;
+            slot.format = format;
+            slot.args = args;
+
+            earlyMessages.add(slot);
+            return;
+        }
+
+        long position = tail.get();
+        Slot slot;
+
+        while (true) {
+            slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+
+                position = tail.get();
+            } else if (difference < 0) {
+                // The writer has not freed this slot yet: the buffer is full
+                dropped.incrementAndGet();
+                return;
+            } else {
+                // Taken by another producer meanwhile
+                position = tail.get();
+            }
+
+        }
+
+        slot.level = messageLevel;
+        slot.time = System.currentTimeMillis();
+        slot.header = header;
+        slot.format = format;
+        slot.args = args;
+
+        // Publish the slot to the writer
+        slot.sequence = position + 1;
+
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            int written;
+
+            synchronized (line) {
+                written = drain();
+
+                if (written == 0) {
+                    flush();
+                }
+
+            }
+
+            if (written == 0) {
+                waitForMessage();
+            }
+
+        }
+
+    }
+
+    // Park until a producer publishes the next message. A message published before writerParked is seen set is
+    // found by the check that follows, so none is left waiting. Returning early only costs an empty drain()
+    private static void waitForMessage() {
+        writerParked = true;
+
+        if (slots[(int) head & mask].sequence != head + 1) {
+            LockSupport.park();
+        }
+
+        writerParked = false;
+    }
+
+    // Write every published message. Caller holds the line lock. Return the number of messages written
+    private static int drain() {
+        int written = 0;
+
+        while (true) {
+            Slot slot = slots[(int) head & mask];
+
+            if (slot.sequence != head + 1) {
+                break;
+            }
+
+            write(format(slot));
+
+            slot.header = null;
+            slot.format = null;
+            slot.args = null;
+
+            // Free the slot for the producer coming one lap later
+            slot.sequence = head + slots.length;
+            ++head;
+            ++written;
+        }
+
+        long droppedNow = dropped.get();
+
+        if (droppedNow != reportedDropped) {
+            line.setLength(0);
+            line.append(LocalDateTime.now().format(TIME_FORMAT)).append(' ').append(LEVEL_NAMES[WARN]).append(' ')
+                    .append(droppedNow - reportedDropped).append(" log messages dropped, log buffer full");
+
+            write(line);
+            reportedDropped = droppedNow;
+        }
+
+        return written;
+    }
+
+    private static CharSequence format(Slot slot) {
+        line.setLength(0);
+
+        TIME_FORMAT.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(slot.time), ZoneId.systemDefault()), line);
+        line.append(' ').append(LEVEL_NAMES[slot.level]).append(' ');
+
+        if (slot.header != null) {
+            line.append(slot.header).append(": ").append(slot.format);
+        } else if (slot.args == null || slot.args.length == 0) {
+            line.append(slot.format);
+        } else {
+            try {
+                line.append(String.format(slot.format, slot.args));
+            } catch (Exception e) {
+                line.append(slot.format);
+            }
+
+        }
+
+        return line;
+    }
+
+    private static void write(CharSequence text) {
+        if (logFile == null || logFile.trim().equals("")) {
+            // Looked up every time, so that System.setOut() is followed
+            System.out.append(text).append(System.lineSeparator());
+            return;
+        }
+
+        try {
+            if (fileWriter == null) {
+                openLogFile();
+            }
+
+            fileWriter.append(text).append(System.lineSeparator());
+
+            // Close enough for rotation, the text is mostly ASCII
+            fileBytes += text.length() + System.lineSeparator().length();
+
+            if (fileBytes >= maxFileBytes) {
+                rotate();
+            }
+
+        } catch (IOException e) {
+            // Nowhere else to report it. The next message tries to reopen the file
+            closeLogFile();
+        }
+
+    }
+
+    private static void flush() {
+        try {
+            if (fileWriter != null) {
+                fileWriter.flush();
+            } else {
+                System.out.flush();
+            }
+
+        } catch (IOException e) {
+            closeLogFile();
+        }
+
+    }
+
+    private static void openLogFile() throws IOException {
+        File file = new File(logFile);
+
+        fileWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8
+        ), 64 * 1024);
+        fileBytes = file.length();
+    }
+
+    // logFile -> logFile.1 -> ... -> logFile.<fileCount - 1>, the oldest file is deleted
+    private static void rotate() throws IOException {
+        closeLogFile();
+
+        new File(logFile + "." + (fileCount - 1)).delete();
+
+        for (int i = fileCount - 2; i >= 1; --i) {
+            new File(logFile + "." + i).renameTo(new File(logFile + "." + (i + 1)));
+        }
+
+        if (fileCount > 1) {
+            new File(logFile).renameTo(new File(logFile + ".1"));
+        } else {
+            new File(logFile).delete();
+        }
+
+        openLogFile();
+    }
+
+    private static void closeLogFile() {
+        if (fileWriter == null) {
+            return;
+        }
+
+        try {
+            fileWriter.close();
+        } catch (IOException e) {
+            // Silently ignore the exception
+        }
+
+        fileWriter = null;
+    }
+
+    private static Slot[] newSlots(int requestedSize) {
+        // A power of two, so that positions are mapped to slots with a mask
+        int size = Integer.highestOneBit(Math.max(2, Math.min(requestedSize, 1 << 24)));
+
+        Slot[] result = new Slot[size];
+
+        for (int i = 0; i < size; ++i) {
+            result[i] = new Slot();
+            result[i].sequence = i;
+        }
+
+        return result;
+    }
+
+    private static int parseLevel(String value, int defaultLevel) {
+        if (value == null || value.trim().equals("")) {
+            return defaultLevel;
+        }
+
+        for (int i = 0; i < LEVEL_NAMES.length; ++i) {
+            if (LEVEL_NAMES[i].trim().equalsIgnoreCase(value.trim())) {
+                return i;
+            }
+
+        }
+
+        warn("Invalid value '%s' for %s%s, using INFO", value, ServerConfig.PREFIX, LEVEL);
+        return defaultLevel;
+    }
+
+}
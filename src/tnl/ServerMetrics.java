@@ -0,0 +1,201 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+
+// Per-command latencies, per-transfer bytes and throughput, data connection setup times and failed replies
+// of one server. Every recording is lock-free. Shown by the console and exported through JMX
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static class TransferMetrics {
+        public final Histogram bytes = new Histogram();
+        public final Histogram throughput = new Histogram();
+    }
+
+
+
+    // Keyed by command code. Only valid codes are recorded, so the map stays small
+    private ConcurrentSkipListMap<String, Histogram> commandLatencies;
+
+    // Keyed by TransferStatistics direction
+    private ConcurrentSkipListMap<String, TransferMetrics> transfers;
+
+    private Histogram dataConnectionSetup;
+
+    // Keyed by the 4xx/5xx reply code
+    private ConcurrentSkipListMap<String, LongAdder> failures;
+
+    private ObjectName objectName;
+
+
+
+    public ServerMetrics() {
+        commandLatencies = new ConcurrentSkipListMap<String, Histogram>();
+        transfers = new ConcurrentSkipListMap<String, TransferMetrics>();
+        dataConnectionSetup = new Histogram();
+        failures = new ConcurrentSkipListMap<String, LongAdder>();
+    }
+
+    public void recordCommand(String code, long elapsedNanos) {
+        commandLatencies.computeIfAbsent(code, key -> new Histogram()).record(elapsedNanos / 1000);
+    }
+
+    public void recordDataConnectionSetup(long elapsedNanos) {
+        dataConnectionSetup.record(elapsedNanos / 1000);
+    }
+
+    public void recordTransfer(String direction, long bytes, long elapsedNanos) {
+        TransferMetrics metrics = transfers.computeIfAbsent(direction, key -> new TransferMetrics());
+
+        metrics.bytes.record(bytes);
+
+        // Transfers finishing within the timer resolution have no meaningful throughput
+        if (elapsedNanos > 0) {
+            metrics.throughput.record((long) ((bytes / 1024.0) / (elapsedNanos / 1e9)));
+        }
+
+    }
+
+    // Count the reply if it reports a failure, i.e. starts with a 4xx or 5xx code
+    public void recordResponse(String response) {
+        if (response.length() < 3 || (response.charAt(0) != '4' && response.charAt(0) != '5')) {
+            return;
+        }
+
+        failures.computeIfAbsent(response.substring(0, 3), key -> new LongAdder()).increment();
+    }
+
+    // Export through the platform MBean server. A server without JMX still works, only without the export
+    public void register(int port) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("tnl:type=ServerMetrics,port=" + port);
+
+            mBeanServer.registerMBean(this, name);
+            objectName = name;
+        } catch (Exception e) {
+            ServerLog.warn("Cannot register server metrics MBean: %s", e.getMessage());
+        }
+
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            // Silently ignore the exception
+        }
+
+        objectName = null;
+    }
+
+    public String[] describe() {
+        ArrayList<String> lines = new ArrayList<String>();
+
+        for (Map.Entry<String, Histogram> entry : commandLatencies.entrySet()) {
+            Histogram latency = entry.getValue();
+
+            lines.add(String.format(
+                    "%-24s %8d requests %10d us p50 %10d us p99 %10d us max",
+                    "Command " + entry.getKey(), latency.getCount(),
+                    latency.getPercentile(0.5), latency.getPercentile(0.99), latency.getMax()
+            ));
+        }
+
+        lines.add(String.format(
+                "%-24s %8d setups   %10d us p50 %10d us p99 %10d us max",
+                "Data connection", dataConnectionSetup.getCount(),
+                dataConnectionSetup.getPercentile(0.5), dataConnectionSetup.getPercentile(0.99),
+                dataConnectionSetup.getMax()
+        ));
+
+        for (Map.Entry<String, TransferMetrics> entry : transfers.entrySet()) {
+            TransferMetrics metrics = entry.getValue();
+
+            lines.add(String.format(
+                    "%-24s %8d transfers %12d bytes p50 %10d KB/s p50 %10d KB/s max",
+                    "Transfer " + entry.getKey(), metrics.bytes.getCount(), metrics.bytes.getPercentile(0.5),
+                    metrics.throughput.getPercentile(0.5), metrics.throughput.getMax()
+            ));
+        }
+
+        for (Map.Entry<String, LongAdder> entry : failures.entrySet()) {
+            lines.add(String.format("%-24s %8d replies", "Failed " + entry.getKey(), entry.getValue().sum()));
+        }
+
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public Map<String, Long> getCommandCounts() {
+        return collect(commandLatencies, latency -> latency.getCount());
+    }
+
+    public Map<String, Long> getCommandLatencyMedianMicros() {
+        return collect(commandLatencies, latency -> latency.getPercentile(0.5));
+    }
+
+    public Map<String, Long> getCommandLatency99thPercentileMicros() {
+        return collect(commandLatencies, latency -> latency.getPercentile(0.99));
+    }
+
+    public Map<String, Long> getCommandLatencyMaxMicros() {
+        return collect(commandLatencies, latency -> latency.getMax());
+    }
+
+    public long getDataConnectionSetupCount() {
+        return dataConnectionSetup.getCount();
+    }
+
+    public long getDataConnectionSetupMedianMicros() {
+        return dataConnectionSetup.getPercentile(0.5);
+    }
+
+    public long getDataConnectionSetup99thPercentileMicros() {
+        return dataConnectionSetup.getPercentile(0.99);
+    }
+
+    public Map<String, Long> getTransferCounts() {
+        return collect(transfers, metrics -> metrics.bytes.getCount());
+    }
+
+    public Map<String, Long> getTransferBytes() {
+        return collect(transfers, metrics -> metrics.bytes.getSum());
+    }
+
+    public Map<String, Long> getTransferThroughputMedianKBps() {
+        return collect(transfers, metrics -> metrics.throughput.getPercentile(0.5));
+    }
+
+    public Map<String, Long> getFailuresByResponseCode() {
+        return collect(failures, counter -> counter.sum());
+    }
+
+    private static <T> Map<String, Long> collect(Map<String, T> source, ToLongFunction<T> value) {
+        TreeMap<String, Long> result = new TreeMap<String, Long>();
+
+        for (Map.Entry<String, T> entry : source.entrySet()) {
+            result.put(entry.getKey(), value.applyAsLong(entry.getValue()));
+        }
+
+        return result;
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.Map;
+
+
+
+// JMX view of ServerMetrics, registered as tnl:type=ServerMetrics,port=<server port>. Maps are keyed by command
+// code, transfer direction or response code. Latencies are in microseconds, throughputs in KB/s
+public interface ServerMetricsMXBean {
+    public Map<String, Long> getCommandCounts();
+
+    public Map<String, Long> getCommandLatencyMedianMicros();
+
+    public Map<String, Long> getCommandLatency99thPercentileMicros();
+
+    public Map<String, Long> getCommandLatencyMaxMicros();
+
+    public long getDataConnectionSetupCount();
+
+    public long getDataConnectionSetupMedianMicros();
+
+    public long getDataConnectionSetup99thPercentileMicros();
+
+    public Map<String, Long> getTransferCounts();
+
+    public Map<String, Long> getTransferBytes();
+
+    public Map<String, Long> getTransferThroughputMedianKBps();
+
+    public Map<String, Long> getFailuresByResponseCode();
+}
@@ -0,0 +1,132 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Identity and live counters of one session. The counters are only updated by the thread serving the
+// session, so they are never contended. Other threads (e.g. the console) only read them
+public class SessionInfo {
+    private long sessionId;
+    private String hostAddress;
+    private String connectionKey;
+    private long connectTime;
+
+    // Time of the start or end of the last request
+    private volatile long lastActivityTime;
+
+    private volatile String username;
+
+    private AtomicLong bytesIn;
+    private AtomicLong bytesOut;
+    private AtomicLong commandsServed;
+
+    private FTPServerThread session;
+
+    // Set once the admission slot of the session has been given back
+    private AtomicBoolean slotReleased;
+
+
+
+    public SessionInfo(long sessionId, String hostAddress, String connectionKey) {
+        this.sessionId = sessionId;
+        this.hostAddress = hostAddress;
+        this.connectionKey = connectionKey;
+        this.connectTime = System.currentTimeMillis();
+        this.lastActivityTime = connectTime;
+
+        this.username = null;
+
+        this.bytesIn = new AtomicLong();
+        this.bytesOut = new AtomicLong();
+        this.commandsServed = new AtomicLong();
+
+        this.slotReleased = new AtomicBoolean(false);
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public String getHostAddress() {
+        return hostAddress;
+    }
+
+    public String getConnectionKey() {
+        return connectionKey;
+    }
+
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    public void touch() {
+        lastActivityTime = System.currentTimeMillis();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public FTPServerThread getSession() {
+        return session;
+    }
+
+    public void attachSession(FTPServerThread session) {
+        this.session = session;
+    }
+
+    // Return true to the first caller only, which must release the admission slot of the session
+    public boolean markSlotReleased() {
+        return slotReleased.compareAndSet(false, true);
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.addAndGet(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.addAndGet(bytes);
+    }
+
+    public void incrementCommandsServed() {
+        commandsServed.incrementAndGet();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getCommandsServed() {
+        return commandsServed.get();
+    }
+
+    public String describe(long now) {
+        return String.format(
+                "%6d  %-24s %-12s %8ds %6ds idle %8d cmds %14d in %14d out",
+                sessionId, connectionKey, username == null ? "-" : username,
+                (now - connectTime) / 1000, (now - lastActivityTime) / 1000, getCommandsServed(), getBytesIn(),
+                getBytesOut()
+        );
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Sessions currently connected, keyed by a numeric session id. Safe to use from the accept thread, the
+// session threads and the console at the same time
+public class SessionRegistry {
+    private AtomicLong nextSessionId;
+    private ConcurrentHashMap<Long, SessionInfo> sessions;
+
+
+
+    public SessionRegistry() {
+        nextSessionId = new AtomicLong(1);
+        sessions = new ConcurrentHashMap<Long, SessionInfo>();
+    }
+
+    public SessionInfo newSessionInfo(String hostAddress, String connectionKey) {
+        return new SessionInfo(nextSessionId.getAndIncrement(), hostAddress, connectionKey);
+    }
+
+    public void add(SessionInfo sessionInfo, FTPServerThread session) {
+        sessionInfo.attachSession(session);
+        sessions.put(sessionInfo.getSessionId(), sessionInfo);
+    }
+
+    public SessionInfo get(long sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    public SessionInfo remove(long sessionId) {
+        return sessions.remove(sessionId);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    // Sessions sorted by id. Sessions added or removed while the snapshot is taken may or may not be included
+    public ArrayList<SessionInfo> snapshot() {
+        ArrayList<SessionInfo> result = new ArrayList<SessionInfo>(sessions.values());
+
+        Collections.sort(result, Comparator.comparingLong(SessionInfo::getSessionId));
+
+        return result;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Thread factories for sessions and data transfers. Virtual threads need Java 21 or later, they are
+// looked up by reflection so that the server still builds and runs with older JDKs in platform mode
+public class SessionThreads {
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+
+
+    private static class PlatformThreadFactory implements ThreadFactory {
+        private String namePrefix;
+        private boolean daemon;
+        private AtomicLong nextId = new AtomicLong();
+
+        public PlatformThreadFactory(String namePrefix, boolean daemon) {
+            this.namePrefix = namePrefix;
+            this.daemon = daemon;
+        }
+
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, namePrefix + nextId.getAndIncrement());
+            thread.setDaemon(daemon);
+
+            return thread;
+        }
+    }
+
+
+
+    public static ThreadFactory newThreadFactory(String mode, String namePrefix) {
+        if (mode.equals(PLATFORM)) {
+            return new PlatformThreadFactory(namePrefix, false);
+        }
+
+        if (mode.equals(VIRTUAL)) {
+            ThreadFactory virtualThreadFactory = newVirtualThreadFactory(namePrefix);
+
+            if (virtualThreadFactory == null) {
+                throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+            }
+
+            return virtualThreadFactory;
+        }
+
+        throw new IllegalArgumentException("Unknown thread mode: " + mode);
+    }
+
+    // Platform daemon threads for the server's housekeeping tasks, which must not keep the JVM alive
+    public static ThreadFactory newDaemonThreadFactory(String namePrefix) {
+        return new PlatformThreadFactory(namePrefix, true);
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return newVirtualThreadFactory("probe-") != null;
+    }
+
+    // Equivalent to Thread.ofVirtual().name(namePrefix, 0).factory(). Return null if not available
+    private static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, namePrefix, 0L);
+
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+
+    }
+
+}
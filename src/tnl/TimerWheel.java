@@ -0,0 +1,246 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+
+
+// Hashed timer wheel: a timeout is hashed into one of WHEEL_SIZE slots by the tick it expires at, and one
+// thread advances the wheel a tick at a time, expiring the due timeouts of each slot. Scheduling and cancelling
+// cost the same whatever the number of timeouts, and the precision is one tick. The thread wakes up once per
+// tick while timeouts are pending, and sleeps otherwise.
+//
+// Tasks run on the wheel thread, one after another, so they must be short
+public class TimerWheel {
+    public static final String TICK_MILLIS = "timerTickMillis";
+
+
+
+    public interface Task {
+        // timeout may be rescheduled by the task
+        public void run(Timeout timeout);
+    }
+
+
+
+    public class Timeout {
+        private Task task;
+
+        private long deadlineTick;
+
+        // Doubly linked list of the slot, when scheduled. Guarded by the wheel
+        private boolean scheduled;
+        private Timeout previous;
+        private Timeout next;
+
+        private boolean cancelled;
+
+        private Timeout(Task task) {
+            this.task = task;
+        }
+
+        // Remove the timeout for good, a later reschedule has no effect
+        public void cancel() {
+            TimerWheel.this.cancel(this);
+        }
+    }
+
+
+
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+
+
+    private long tickNanos;
+    private long startNanos;
+
+    // Heads of the slot lists. Everything below is guarded by this
+    private Timeout[] slots;
+    private int pending;
+    private long processedTick;
+    private long expired;
+    private boolean running;
+
+
+
+    public TimerWheel(long tickMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.startNanos = System.nanoTime();
+
+        slots = new Timeout[WHEEL_SIZE];
+        pending = 0;
+        processedTick = 0;
+        expired = 0;
+        running = true;
+
+        SessionThreads.newDaemonThreadFactory("timer-wheel-").newThread(() -> runWheel()).start();
+    }
+
+    public static TimerWheel fromConfig() {
+        return new TimerWheel(ServerConfig.getLong(TICK_MILLIS, 1000));
+    }
+
+    // Run task on the wheel thread once delayMillis have passed, rounded up to the next tick
+    public synchronized Timeout schedule(Task task, long delayMillis) {
+        Timeout timeout = new Timeout(task);
+
+        insert(timeout, delayMillis);
+
+        return timeout;
+    }
+
+    // Move a timeout to a new deadline, whether it has expired or not. No effect if it has been cancelled
+    public synchronized void reschedule(Timeout timeout, long delayMillis) {
+        if (timeout.cancelled) {
+            return;
+        }
+
+        remove(timeout);
+        insert(timeout, delayMillis);
+    }
+
+    public synchronized void close() {
+        running = false;
+        notifyAll();
+    }
+
+    public synchronized String describe() {
+        return String.format(
+                "%-24s %d pending, %d expired, tick %d ms",
+                "Timer wheel", pending, expired, TimeUnit.NANOSECONDS.toMillis(tickNanos)
+        );
+    }
+
+    private synchronized void cancel(Timeout timeout) {
+        timeout.cancelled = true;
+
+        remove(timeout);
+    }
+
+    private void insert(Timeout timeout, long delayMillis) {
+        long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+        int slot;
+
+        timeout.deadlineTick = currentTick() + ticks;
+        slot = (int) (timeout.deadlineTick & MASK);
+
+        timeout.scheduled = true;
+        timeout.previous = null;
+        timeout.next = slots[slot];
+
+        if (slots[slot] != null) {
+            slots[slot].previous = timeout;
+        }
+
+        slots[slot] = timeout;
+
+        if (pending++ == 0) {
+            // Wake up the thread sleeping on an empty wheel
+            notifyAll();
+        }
+
+    }
+
+    private void remove(Timeout timeout) {
+        if (!timeout.scheduled) {
+            return;
+        }
+
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[(int) (timeout.deadlineTick & MASK)] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+
+        timeout.scheduled = false;
+        timeout.previous = null;
+        timeout.next = null;
+
+        --pending;
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    private void runWheel() {
+        ArrayList<Timeout> dueTimeouts = new ArrayList<Timeout>();
+
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (running && pending == 0) {
+                        wait();
+                    }
+
+                    if (!running) {
+                        return;
+                    }
+
+                    long tick = currentTick();
+
+                    if (tick == processedTick) {
+                        TimeUnit.NANOSECONDS.timedWait(this, startNanos + (tick + 1) * tickNanos - System.nanoTime());
+                        continue;
+                    }
+
+                    collectDueTimeouts(tick, dueTimeouts);
+                    processedTick = tick;
+                }
+
+                // Tasks run without the lock, so that they can schedule and cancel timeouts
+                for (Timeout timeout : dueTimeouts) {
+                    try {
+                        timeout.task.run(timeout);
+                    } catch (RuntimeException e) {
+                        ServerLog.error("Timer task failed: %s", e);
+                    }
+
+                }
+
+                dueTimeouts.clear();
+            }
+
+        } catch (InterruptedException e) {
+            // Stop the wheel
+        }
+
+    }
+
+    // Slots of the ticks passed since the last run. Each slot is visited at most once, even after a long sleep
+    private void collectDueTimeouts(long tick, ArrayList<Timeout> dueTimeouts) {
+        long first = Math.max(processedTick + 1, tick - MASK);
+
+        for (long slotTick = first; slotTick <= tick; ++slotTick) {
+            Timeout timeout = slots[(int) (slotTick & MASK)];
+
+            while (timeout != null) {
+                Timeout next = timeout.next;
+
+                // Timeouts more than a turn of the wheel away stay in the slot
+                if (timeout.deadlineTick <= tick) {
+                    remove(timeout);
+                    dueTimeouts.add(timeout);
+
+                    ++expired;
+                }
+
+                timeout = next;
+            }
+
+        }
+
+    }
+
+}
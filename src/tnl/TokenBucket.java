@@ -0,0 +1,187 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+// Byte rate limit of one level of BandwidthShaper. Tokens (bytes) accumulate at the given rate up to a quarter
+// of a second's worth, and are handed out in grants of at most one batch, 50 ms worth, so that a transfer asks
+// a few dozen times per second whatever its speed. A rate of 0 means unlimited, the bucket then only counts.
+// The rate can be changed at any time, waiting transfers pick it up at once. A change keeps the tokens left
+public class TokenBucket {
+    private static final long MIN_BATCH = 4 * 1024;
+    private static final long MAX_BATCH = 1024 * 1024;
+
+
+
+    private String name;
+
+    private volatile long bytesPerSecond;
+
+    // Guarded by this
+    private long capacity;
+    private long batchSize;
+    private double tokens;
+    private long lastRefillNanos;
+
+    private LongAdder grantedBytes;
+    private LongAdder waitNanos;
+
+    // Granted bytes and time at the last describe(), for the utilization since then
+    private long lastDescribedBytes;
+    private long lastDescribedNanos;
+
+
+
+    public TokenBucket(String name, long bytesPerSecond) {
+        this.name = name;
+
+        grantedBytes = new LongAdder();
+        waitNanos = new LongAdder();
+
+        lastDescribedBytes = 0;
+        lastDescribedNanos = System.nanoTime();
+
+        setRate(bytesPerSecond);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        long now = System.nanoTime();
+        boolean wasLimited = this.bytesPerSecond > 0;
+
+        if (wasLimited) {
+            // Tokens earned at the old rate until now
+            refill(now);
+        }
+
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+
+        batchSize = Math.min(MAX_BATCH, Math.max(MIN_BATCH, this.bytesPerSecond / 20));
+        capacity = Math.max(batchSize, this.bytesPerSecond / 4);
+
+        if (wasLimited) {
+            // Keep what is left, so that changing the rate does not hand out a free burst
+            tokens = Math.min(capacity, tokens);
+        } else {
+            // A new limit starts full, so that it does not stall the transfers already running
+            tokens = capacity;
+        }
+
+        lastRefillNanos = now;
+
+        notifyAll();
+    }
+
+    // Wait until some of wanted bytes may be transferred. Return how many, at least 1 and at most one batch
+    public long acquire(long wanted) throws InterruptedIOException {
+        if (bytesPerSecond == 0) {
+            grantedBytes.add(wanted);
+            return wanted;
+        }
+
+        long startTime = System.nanoTime();
+        long granted;
+
+        synchronized (this) {
+            while (true) {
+                long rate = bytesPerSecond;
+
+                if (rate == 0) {
+                    // Limit removed while waiting
+                    granted = wanted;
+                    break;
+                }
+
+                granted = Math.min(wanted, batchSize);
+                refill(System.nanoTime());
+
+                if (tokens >= granted) {
+                    tokens -= granted;
+                    break;
+                }
+
+                long sleepNanos = (long) ((granted - tokens) * 1e9 / rate);
+
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(sleepNanos, 1000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for bandwidth");
+                }
+
+            }
+
+        }
+
+        grantedBytes.add(granted);
+        waitNanos.add(System.nanoTime() - startTime);
+
+        return granted;
+    }
+
+    // Give back the part of a grant which was not transferred
+    public void release(long unused) {
+        if (unused <= 0) {
+            return;
+        }
+
+        grantedBytes.add(-unused);
+
+        if (bytesPerSecond == 0) {
+            return;
+        }
+
+        synchronized (this) {
+            tokens = Math.min(capacity, tokens + unused);
+            notifyAll();
+        }
+
+    }
+
+    public long getGrantedBytes() {
+        return grantedBytes.sum();
+    }
+
+    // Name, limit, bytes transferred, time transfers waited for it, and use of the limit since the last call
+    public synchronized String describe() {
+        long now = System.nanoTime();
+        long bytes = grantedBytes.sum();
+        long rate = bytesPerSecond;
+        double elapsedSeconds = (now - lastDescribedNanos) / 1e9;
+
+        String utilization = rate == 0 || elapsedSeconds <= 0
+                ? "-"
+                : String.format("%.0f%%", 100.0 * (bytes - lastDescribedBytes) / (rate * elapsedSeconds));
+
+        lastDescribedBytes = bytes;
+        lastDescribedNanos = now;
+
+        return String.format(
+                "%-24s %10s %16d bytes %10d ms waited %6s used",
+                name, rate == 0 ? "unlimited" : rate / 1024 + " KB/s", bytes,
+                TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()), utilization
+        );
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        lastRefillNanos = now;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+public class TransferResult {
+    public static final String ZERO_COPY = "zero-copy";
+    public static final String DIRECT_BATCH = "direct-batch";
+    public static final String BUFFERED = "buffered";
+    public static final String BLOCK = "block";
+    public static final String SEGMENTED = "segmented";
+    public static final String CACHED = "cached";
+    public static final String MAPPED = "mapped";
+    public static final String DEFLATE = "deflate";
+    public static final String DEFLATE_BYPASSED = "deflate-bypassed";
+
+
+
+    private String mode;
+    private long bytes;
+    private long elapsedNanos;
+
+    // Bytes which went through the data connection, fewer than bytes if the transfer was compressed
+    private long wireBytes;
+
+
+
+    public TransferResult(String mode, long bytes, long elapsedNanos) {
+        this(mode, bytes, elapsedNanos, bytes);
+    }
+
+    public TransferResult(String mode, long bytes, long elapsedNanos, long wireBytes) {
+        this.mode = mode;
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+        this.wireBytes = wireBytes;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // Throughput in MB/s. Transfers finishing within the timer resolution are reported as 0
+    public double getThroughput() {
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+
+        return (bytes / (1024.0 * 1024.0)) / (elapsedNanos / 1e9);
+    }
+
+    public String toString() {
+        if (wireBytes != bytes) {
+            return String.format(
+                    "%d bytes (%d on the wire), %s, %.2f MB/s", bytes, wireBytes, mode, getThroughput()
+            );
+        }
+
+        return String.format("%d bytes, %s, %.2f MB/s", bytes, mode, getThroughput());
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+public class TransferStatistics {
+    public static final String DOWNLOAD = "Download";
+    public static final String UPLOAD = "Upload";
+    public static final String LISTING = "Listing";
+
+
+
+    private static class Counter {
+        public final AtomicLong transfers = new AtomicLong();
+        public final AtomicLong bytes = new AtomicLong();
+        public final AtomicLong nanos = new AtomicLong();
+
+        public void record(TransferResult result) {
+            transfers.incrementAndGet();
+            bytes.addAndGet(result.getBytes());
+            nanos.addAndGet(result.getElapsedNanos());
+        }
+
+        public String describe(String name) {
+            long totalNanos = nanos.get();
+            double throughput = 0;
+
+            if (totalNanos > 0) {
+                throughput = (bytes.get() / (1024.0 * 1024.0)) / (totalNanos / 1e9);
+            }
+
+            return String.format(
+                    "%-24s %8d transfers %16d bytes %10.2f MB/s",
+                    name, transfers.get(), bytes.get(), throughput
+            );
+        }
+    }
+
+
+
+    // Counters keyed by "<direction> <mode>", e.g. "Download zero-copy"
+    private ConcurrentSkipListMap<String, Counter> counters;
+
+    private AtomicLong failedTransfers;
+
+
+
+    public TransferStatistics() {
+        counters = new ConcurrentSkipListMap<String, Counter>();
+
+        failedTransfers = new AtomicLong();
+    }
+
+    public void record(String direction, TransferResult result) {
+        counters.computeIfAbsent(direction + " " + result.getMode(), key -> new Counter()).record(result);
+    }
+
+    public void recordFailure() {
+        failedTransfers.incrementAndGet();
+    }
+
+    public String[] describe() {
+        ArrayList<String> lines = new ArrayList<String>();
+
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            lines.add(entry.getValue().describe(entry.getKey()));
+        }
+
+        lines.add(String.format("%-24s %8d transfers", "Failed", failedTransfers.get()));
+
+        return lines.toArray(new String[lines.size()]);
+    }
+
+}
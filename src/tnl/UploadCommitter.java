@@ -0,0 +1,451 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+// Uploads are written to a staging file, and renamed over their target once complete, so that readers see the
+// old file or the new one, never a part of it, and a crash leaves the target untouched.
+// A resumed upload (REST) continues the target in place: it is incomplete already, and copying it on every
+// resume would cost as much as the upload.
+//
+// Durability (uploadDurability):
+// - none: no flush, the rename is atomic but the file may be lost or empty after a power failure
+// - sync: the file is flushed to disk before the rename, and its directory after it, before the reply
+// - group: as sync, but the directory flushes of the uploads finishing within groupCommitMillis of each other
+//   are done together by one thread, once per directory. File data is flushed by each upload in parallel,
+//   which the file system journal merges anyway
+//
+// Staging files are kept in one directory at the top of the served tree, so that the renames stay on its file
+// system (a directory mounted inside the tree gets a copy instead). Its name is reserved: it is hidden from
+// listings and cannot be uploaded to or created (isReserved()). Staging files left by a crash are deleted when
+// the server starts, before any upload (sweep())
+//
+// A file takes one upload at a time: a second upload to it is refused until the first is published or discarded,
+// so that two uploads cannot silently overwrite each other
+public class UploadCommitter {
+    public static final String DURABILITY = "uploadDurability";
+    public static final String GROUP_COMMIT_MILLIS = "groupCommitMillis";
+
+    public static final String NONE = "none";
+    public static final String SYNC = "sync";
+    public static final String GROUP = "group";
+
+    public static final String STAGING_DIRECTORY = ".ftpserver-staging";
+
+    // Staging files are named <number>.upload
+    public static final String STAGING_SUFFIX = ".upload";
+
+
+
+    // One upload, between stage() and publish() or discard()
+    public class StagedUpload {
+        private Path target;
+
+        // Same as target if the upload is written in place
+        private Path stagingPath;
+
+        private FileChannel channel;
+
+        // Key of the target in uploadTargets, released once the upload is published or discarded
+        private Path targetKey;
+
+        private StagedUpload(Path target, Path stagingPath, FileChannel channel, Path targetKey) {
+            this.target = target;
+            this.stagingPath = stagingPath;
+            this.channel = channel;
+            this.targetKey = targetKey;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        // Make the data written so far the content of the target. Return once it is as durable as configured.
+        // An exception means that the target was left as it was
+        public void publish() throws IOException {
+            boolean inPlace = stagingPath.equals(target);
+
+            try {
+                try {
+                    if (!durability.equals(NONE)) {
+                        channel.force(true);
+                    }
+
+                } finally {
+                    channel.close();
+                }
+
+                if (inPlace) {
+                    return;
+                }
+
+                try {
+                    Files.move(stagingPath, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(stagingPath, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+
+            } catch (IOException e) {
+                if (!inPlace) {
+                    Files.deleteIfExists(stagingPath);
+                    discarded.incrementAndGet();
+                }
+
+                throw e;
+            } finally {
+                uploadTargets.remove(targetKey);
+            }
+
+            published.incrementAndGet();
+
+            // The target is replaced already, only the rename may not survive a power failure
+            try {
+                if (durability.equals(SYNC)) {
+                    syncDirectory(target.toAbsolutePath().getParent());
+                } else if (durability.equals(GROUP)) {
+                    groupSync(target.toAbsolutePath().getParent());
+                }
+
+            } catch (IOException e) {
+                ServerLog.warn("Cannot flush the directory of uploaded file %s: %s", target, e.getMessage());
+            }
+
+        }
+
+        // Drop the upload, the target is left as it was. An upload written in place keeps its data
+        public void discard() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Silently ignore the exception
+            }
+
+            uploadTargets.remove(targetKey);
+
+            if (stagingPath.equals(target)) {
+                return;
+            }
+
+            try {
+                Files.deleteIfExists(stagingPath);
+            } catch (IOException e) {
+                ServerLog.warn("Cannot delete upload staging file %s: %s", stagingPath, e.getMessage());
+            }
+
+            discarded.incrementAndGet();
+        }
+    }
+
+
+
+    // Directories to flush together, and the waiting uploads' outcome
+    private static class Batch {
+        private HashSet<Path> directories = new HashSet<Path>();
+        private boolean done = false;
+        private IOException failure = null;
+    }
+
+
+
+    private String durability;
+    private long groupCommitMillis;
+
+    private Path stagingDirectory;
+
+    private AtomicLong stagingCounter;
+
+    // Absolute targets of the uploads between stage() and publish() or discard()
+    private Set<Path> uploadTargets;
+
+    // Guarded by this
+    private Batch openBatch;
+    private boolean running;
+
+    private AtomicLong published;
+    private AtomicLong discarded;
+    private AtomicLong directorySyncs;
+    private AtomicLong batches;
+
+
+
+    public UploadCommitter(Path root, String durability, long groupCommitMillis) {
+        if (!durability.equals(NONE) && !durability.equals(SYNC) && !durability.equals(GROUP)) {
+            throw new IllegalArgumentException("Unknown upload durability: " + durability);
+        }
+
+        this.durability = durability;
+        this.groupCommitMillis = Math.max(0, groupCommitMillis);
+
+        this.stagingDirectory = root.resolve(STAGING_DIRECTORY);
+
+        stagingCounter = new AtomicLong();
+        uploadTargets = ConcurrentHashMap.newKeySet();
+
+        openBatch = new Batch();
+        running = true;
+
+        published = new AtomicLong();
+        discarded = new AtomicLong();
+        directorySyncs = new AtomicLong();
+        batches = new AtomicLong();
+
+        if (durability.equals(GROUP)) {
+            SessionThreads.newDaemonThreadFactory("group-commit-").newThread(() -> runCommits()).start();
+        }
+
+    }
+
+    public static UploadCommitter fromConfig(Path root) {
+        return new UploadCommitter(
+                root,
+                ServerConfig.getString(DURABILITY, NONE).toLowerCase(),
+                ServerConfig.getLong(GROUP_COMMIT_MILLIS, 2)
+        );
+    }
+
+    // Whether path goes through the staging directory, at any level, which sessions must not create or write to
+    public static boolean isReserved(Path path) {
+        for (Path name : path.normalize()) {
+            if (name.toString().equals(STAGING_DIRECTORY)) {
+                return true;
+            }
+
+        }
+
+        return false;
+    }
+
+    // Create the staging directory, or delete the staging files left in it by uploads interrupted by a crash.
+    // Must run before any upload is staged, as the staging file names start again from 1. Return the number of
+    // files deleted
+    public long sweep() {
+        long deleted = 0;
+
+        try {
+            Files.createDirectories(stagingDirectory);
+        } catch (IOException e) {
+            ServerLog.warn("Cannot create upload staging directory %s: %s", stagingDirectory, e.getMessage());
+            return 0;
+        }
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(stagingDirectory, "*" + STAGING_SUFFIX)) {
+            for (Path entry : entries) {
+                try {
+                    Files.delete(entry);
+                    ++deleted;
+                } catch (IOException e) {
+                    ServerLog.warn("Cannot delete upload staging file %s: %s", entry, e.getMessage());
+                }
+
+            }
+
+        } catch (IOException e) {
+            ServerLog.warn("Cannot sweep upload staging directory %s: %s", stagingDirectory, e.getMessage());
+        }
+
+        if (deleted > 0) {
+            ServerLog.info("Deleted %d upload staging files left by an interrupted run", deleted);
+        }
+
+        return deleted;
+    }
+
+    // Open the file an upload to target is written to. Data before start is the target's own, which must
+    // already have at least start bytes. Throw UploadInProgressException if the target is being uploaded already
+    public StagedUpload stage(Path target, long start) throws IOException {
+        Path targetKey = target.toAbsolutePath().normalize();
+
+        if (!uploadTargets.add(targetKey)) {
+            throw new UploadInProgressException(target);
+        }
+
+        try {
+            return open(target, start, targetKey);
+        } catch (IOException e) {
+            uploadTargets.remove(targetKey);
+            throw e;
+        }
+
+    }
+
+    public synchronized void close() {
+        running = false;
+        notifyAll();
+    }
+
+    public String describe() {
+        long batchCount = batches.get();
+
+        return String.format(
+                "%-24s durability %s, %d published, %d discarded, %d directory syncs%s",
+                "Uploads", durability, published.get(), discarded.get(), directorySyncs.get(),
+                batchCount == 0 ? "" : String.format(
+                        " in %d batches (%.1f uploads per batch)", batchCount, (double) published.get() / batchCount
+                )
+        );
+    }
+
+    private StagedUpload open(Path target, long start, Path targetKey) throws IOException {
+        if (start > 0) {
+            FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE);
+
+            try {
+                // Data after the restart offset is sent again by the client
+                channel.truncate(start);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+
+            return new StagedUpload(target, target, channel, targetKey);
+        }
+
+        while (true) {
+            Path stagingPath = stagingDirectory.resolve(stagingCounter.incrementAndGet() + STAGING_SUFFIX);
+
+            try {
+                FileChannel channel = FileChannel.open(
+                        stagingPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE
+                );
+
+                return new StagedUpload(target, stagingPath, channel, targetKey);
+            } catch (FileAlreadyExistsException e) {
+                // Left by an earlier run, which the sweep could not delete
+            }
+
+        }
+
+    }
+
+    // Wait until directory is flushed by the commit thread, together with those of the other uploads
+    private synchronized void groupSync(Path directory) throws IOException {
+        if (!running) {
+            // The commit thread has stopped, or is about to
+            syncDirectory(directory);
+            return;
+        }
+
+        Batch batch = openBatch;
+
+        batch.directories.add(directory);
+        notifyAll();
+
+        boolean interrupted = false;
+
+        while (!batch.done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (batch.failure != null) {
+            throw new IOException("Group commit failed", batch.failure);
+        }
+
+    }
+
+    private void runCommits() {
+        while (true) {
+            Batch batch;
+
+            synchronized (this) {
+                while (running && openBatch.directories.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                }
+
+                if (!running && openBatch.directories.isEmpty()) {
+                    return;
+                }
+
+            }
+
+            // Let the uploads finishing meanwhile join the batch
+            if (groupCommitMillis > 0) {
+                try {
+                    Thread.sleep(groupCommitMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+            }
+
+            synchronized (this) {
+                batch = openBatch;
+                openBatch = new Batch();
+            }
+
+            IOException failure = null;
+
+            for (Path directory : batch.directories) {
+                try {
+                    syncDirectory(directory);
+                } catch (IOException e) {
+                    failure = e;
+                }
+
+            }
+
+            batches.incrementAndGet();
+
+            synchronized (this) {
+                batch.done = true;
+                batch.failure = failure;
+                notifyAll();
+            }
+
+        }
+
+    }
+
+    // Flush the directory entries, so that a rename survives a power failure. Skipped where directories cannot
+    // be opened (Windows)
+    private void syncDirectory(Path directory) throws IOException {
+        FileChannel channel;
+
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+
+        try {
+            channel.force(true);
+            directorySyncs.incrementAndGet();
+        } finally {
+            channel.close();
+        }
+
+    }
+
+}
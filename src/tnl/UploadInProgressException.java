@@ -0,0 +1,20 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+
+
+// Another session is already uploading to the same file
+public class UploadInProgressException extends IOException {
+    public UploadInProgressException(Path target) {
+        super("Upload already in progress: " + target);
+    }
+
+}
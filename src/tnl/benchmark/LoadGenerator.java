@@ -0,0 +1,507 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl.benchmark;
+
+import tnl.FTPServer;
+import tnl.Histogram;
+import tnl.NioFTPServer;
+import tnl.SessionThreads;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+
+
+// End-to-end load and soak test. Starts a server on loopback against a temporary directory, then runs simulated
+// clients over real sockets, each repeating a weighted random mix of commands until the time is up. Reports
+// per-command throughput and p50/p99/p999 latency, and samples threads, file descriptors and sessions over time.
+// Exits with status 1 if any command failed, so that it can be used as a regression gate.
+//
+// Usage: LoadGenerator [clients] [seconds] [mix] [fileSizeKB]
+// mix is a list of command weights, default "LOGIN=1,CWD=2,LIST=2,RETR=4,STORE=1". LOGIN logs out and opens
+// a new session (USER/PASS), CWD goes to a subdirectory or back to the root, transfers use PORT.
+// -Dload.server=thread|virtual|nio selects the server, -Dload.sampleSeconds the sampling interval (default 5).
+// Clients and server share the JVM, so every session costs at least two file descriptors
+public class LoadGenerator {
+    private static final int DEFAULT_CLIENTS = 50;
+    private static final int DEFAULT_SECONDS = 30;
+    private static final String DEFAULT_MIX = "LOGIN=1,CWD=2,LIST=2,RETR=4,STORE=1";
+    private static final int DEFAULT_FILE_SIZE_KB = 64;
+
+    private static final String USERNAME = "user1";
+    private static final String PASSWORD = "user1";
+
+    private static final String DOWNLOAD_FILE = "download.bin";
+    private static final String SUBDIRECTORY = "subdirectory";
+
+    private static final int CLIENT_TIMEOUT = 30000;
+
+
+
+    // Latencies in microseconds and failures of one command
+    private static class CommandStatistics {
+        public final Histogram latency = new Histogram();
+        public final LongAdder failures = new LongAdder();
+    }
+
+
+
+    // One simulated client session, using active mode (PORT) data connections
+    private static class Client {
+        private Socket socket;
+        private BufferedReader reader;
+        private OutputStream writer;
+
+        private ServerSocket dataServer;
+
+        private boolean inSubdirectory;
+
+        // Command in progress, charged with the failure if anything goes wrong
+        public String command;
+
+        private byte[] readBuffer;
+
+        public Client(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(CLIENT_TIMEOUT);
+
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = socket.getOutputStream();
+
+            dataServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            dataServer.setSoTimeout(CLIENT_TIMEOUT);
+
+            readBuffer = new byte[64 * 1024];
+        }
+
+        public void login() throws IOException {
+            long startTime = begin("USER");
+
+            send("USER " + USERNAME);
+            expect(startTime, '3');
+
+            startTime = begin("PASS");
+
+            send("PASS " + PASSWORD);
+            expect(startTime, '2');
+        }
+
+        public void changeDirectory() throws IOException {
+            long startTime = begin("CWD");
+
+            send(inSubdirectory ? "CWD" : "CWD " + SUBDIRECTORY);
+            expect(startTime, '2');
+
+            inSubdirectory = !inSubdirectory;
+        }
+
+        public void list() throws IOException {
+            openPort();
+
+            long startTime = begin("LIST");
+
+            send("LIST");
+            expect(startTime, '1');
+            receive();
+            expect(startTime, '2');
+        }
+
+        public void download() throws IOException {
+            openPort();
+
+            long startTime = begin("RETR");
+
+            send("RETR " + DOWNLOAD_FILE);
+            expect(startTime, '1');
+            receive();
+            expect(startTime, '2');
+        }
+
+        public void upload(int clientId, byte[] data) throws IOException {
+            openPort();
+
+            long startTime = begin("STORE");
+
+            send("STORE upload-" + clientId + ".bin");
+            expect(startTime, '1');
+
+            try (Socket dataSocket = dataServer.accept()) {
+                dataSocket.getOutputStream().write(data);
+            }
+
+            expect(startTime, '2');
+        }
+
+        public void close() {
+            try {
+                send("QUIT");
+            } catch (IOException e) {
+                // Silently ignore the exception
+            }
+
+            abort();
+        }
+
+        public void abort() {
+            try {
+                socket.close();
+                dataServer.close();
+            } catch (IOException e) {
+                // Silently ignore the exception
+            }
+
+        }
+
+        private void openPort() throws IOException {
+            long startTime = begin("PORT");
+
+            send("PORT 127.0.0.1 " + dataServer.getLocalPort());
+            expect(startTime, '2');
+        }
+
+        private void receive() throws IOException {
+            try (Socket dataSocket = dataServer.accept()) {
+                InputStream inputStream = dataSocket.getInputStream();
+
+                while (inputStream.read(readBuffer) != -1) {
+                    // Discard
+                }
+
+            }
+
+        }
+
+        private void send(String request) throws IOException {
+            writer.write((request + "\r\n").getBytes(StandardCharsets.UTF_8));
+            writer.flush();
+        }
+
+        private long begin(String command) {
+            this.command = command;
+
+            return System.nanoTime();
+        }
+
+        // Read one reply of the current command, failing unless it is of class expectedClass. Final replies (any
+        // class but 1xx) record the latency since startTime
+        private void expect(long startTime, char expectedClass) throws IOException {
+            String reply = reader.readLine();
+
+            if (reply == null || reply.length() == 0 || reply.charAt(0) != expectedClass) {
+                throw new IOException(command + ": unexpected reply " + reply);
+            }
+
+            if (expectedClass != '1') {
+                statisticsOf(command).latency.record((System.nanoTime() - startTime) / 1000);
+            }
+
+        }
+
+    }
+
+
+
+    private static PrintStream report = System.out;
+
+    private static ConcurrentSkipListMap<String, CommandStatistics> statistics =
+            new ConcurrentSkipListMap<String, CommandStatistics>();
+
+    private static volatile boolean running = true;
+
+
+
+    public static void main(String[] argv) throws Exception {
+        int clientCount = argv.length > 0 ? Integer.parseInt(argv[0]) : DEFAULT_CLIENTS;
+        int seconds = argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_SECONDS;
+        String mix = argv.length > 2 ? argv[2] : DEFAULT_MIX;
+        int fileSize = (argv.length > 3 ? Integer.parseInt(argv[3]) : DEFAULT_FILE_SIZE_KB) * 1024;
+
+        String serverMode = System.getProperty("load.server", "thread");
+        int sampleSeconds = Integer.getInteger("load.sampleSeconds", 5);
+
+        // Per-transfer log lines would measure the console, not the server
+        if (System.getProperty("ftpserver.logLevel") == null) {
+            System.setProperty("ftpserver.logLevel", "WARN");
+        }
+
+        // Every client logs in from the loopback address, all at once before the first login is cached
+        if (System.getProperty("ftpserver.loginBurst") == null) {
+            System.setProperty("ftpserver.loginBurst", String.valueOf(Math.max(clientCount, 10)));
+        }
+
+        String[] commands = parseMix(mix);
+
+        Path serverDirectory = Files.createTempDirectory("ftpserver-load");
+        createFiles(serverDirectory, fileSize);
+
+        int port = findFreePort();
+        FTPServer ftpServer = startServer(serverMode, port, serverDirectory);
+
+        report.println(String.format(
+                "%d clients, %d seconds, mix %s, %d KB files, %s server",
+                clientCount, seconds, mix, fileSize / 1024, serverMode
+        ));
+        report.println();
+        report.println(String.format(
+                "%8s %12s %10s %10s %10s %10s", "Time (s)", "Commands", "Commands/s", "Threads", "FDs", "Sessions"
+        ));
+
+        byte[] uploadData = new byte[fileSize];
+        ThreadLocalRandom.current().nextBytes(uploadData);
+
+        ArrayList<Thread> clients = new ArrayList<Thread>();
+
+        for (int i = 0; i < clientCount; ++i) {
+            int clientId = i;
+
+            Thread client = new Thread(() -> runClient(clientId, port, commands, uploadData), "load-client-" + i);
+            client.setDaemon(true);
+            client.start();
+
+            clients.add(client);
+        }
+
+        long startTime = System.nanoTime();
+        long endTime = startTime + seconds * 1000000000L;
+        long previousCommands = 0;
+        long previousTime = startTime;
+
+        while (System.nanoTime() < endTime) {
+            Thread.sleep(Math.max(1, Math.min(sampleSeconds * 1000L, (endTime - System.nanoTime()) / 1000000)));
+
+            long now = System.nanoTime();
+            long commandCount = totalCommands();
+            long fileDescriptors = openFileDescriptors();
+
+            report.println(String.format(
+                    "%8.1f %12d %10.0f %10d %10s %10d",
+                    (now - startTime) / 1e9,
+                    commandCount,
+                    (commandCount - previousCommands) / ((now - previousTime) / 1e9),
+                    ManagementFactory.getThreadMXBean().getThreadCount(),
+                    fileDescriptors < 0 ? "n/a" : String.valueOf(fileDescriptors),
+                    ftpServer.getCurrentConnectionCount()
+            ));
+
+            previousCommands = commandCount;
+            previousTime = now;
+        }
+
+        running = false;
+
+        for (Thread client : clients) {
+            client.join(CLIENT_TIMEOUT);
+        }
+
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+
+        ftpServer.closeAll();
+        ftpServer.join();
+
+        long failures = printSummary(elapsedSeconds);
+
+        deleteRecursively(serverDirectory);
+
+        System.exit(failures > 0 ? 1 : 0);
+    }
+
+    private static void runClient(int clientId, int port, String[] commands, byte[] uploadData) {
+        Client client = null;
+
+        while (running) {
+            try {
+                if (client == null) {
+                    client = new Client(port);
+                    client.login();
+                }
+
+                String command = commands[ThreadLocalRandom.current().nextInt(commands.length)];
+
+                if (command.equals("LOGIN")) {
+                    client.close();
+                    client = null;
+                } else if (command.equals("CWD")) {
+                    client.changeDirectory();
+                } else if (command.equals("LIST")) {
+                    client.list();
+                } else if (command.equals("RETR")) {
+                    client.download();
+                } else if (command.equals("STORE")) {
+                    client.upload(clientId, uploadData);
+                }
+
+            } catch (Exception e) {
+                // Start again with a new session. Failing to connect at all is charged to CONNECT
+                statisticsOf(client == null || client.command == null ? "CONNECT" : client.command).failures.increment();
+
+                if (client != null) {
+                    client.abort();
+                    client = null;
+                }
+
+            }
+
+        }
+
+        if (client != null) {
+            client.close();
+        }
+
+    }
+
+    private static FTPServer startServer(String serverMode, int port, Path serverDirectory) throws Exception {
+        FTPServer ftpServer;
+
+        if (serverMode.equals("nio")) {
+            ftpServer = new NioFTPServer(port, serverDirectory.toString(), Runtime.getRuntime().availableProcessors());
+        } else if (serverMode.equals("virtual")) {
+            ftpServer = new FTPServer(port, serverDirectory.toString(), SessionThreads.VIRTUAL);
+        } else {
+            ftpServer = new FTPServer(port, serverDirectory.toString(), SessionThreads.PLATFORM);
+        }
+
+        ftpServer.start();
+
+        return ftpServer;
+    }
+
+    // "LIST=2,RETR=4" -> { "LIST", "LIST", "RETR", "RETR", "RETR", "RETR" }
+    private static String[] parseMix(String mix) {
+        ArrayList<String> commands = new ArrayList<String>();
+
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            String command = parts[0].trim().toUpperCase();
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+
+            if (!command.matches("LOGIN|CWD|LIST|RETR|STORE")) {
+                throw new IllegalArgumentException("Unknown command in mix: " + command);
+            }
+
+            for (int i = 0; i < weight; ++i) {
+                commands.add(command);
+            }
+
+        }
+
+        if (commands.size() == 0) {
+            throw new IllegalArgumentException("Empty mix");
+        }
+
+        return commands.toArray(new String[commands.size()]);
+    }
+
+    private static void createFiles(Path serverDirectory, int fileSize) throws IOException {
+        byte[] data = new byte[fileSize];
+        ThreadLocalRandom.current().nextBytes(data);
+
+        Path subdirectory = Files.createDirectory(serverDirectory.resolve(SUBDIRECTORY));
+
+        for (Path directory : new Path[] { serverDirectory, subdirectory }) {
+            Files.write(directory.resolve(DOWNLOAD_FILE), data);
+
+            // Something to list
+            for (int i = 0; i < 100; ++i) {
+                Files.createFile(directory.resolve(String.format("file-%03d.txt", i)));
+            }
+
+        }
+
+    }
+
+    private static CommandStatistics statisticsOf(String command) {
+        return statistics.computeIfAbsent(command, key -> new CommandStatistics());
+    }
+
+    private static long totalCommands() {
+        long total = 0;
+
+        for (CommandStatistics commandStatistics : statistics.values()) {
+            total += commandStatistics.latency.getCount();
+        }
+
+        return total;
+    }
+
+    // Return the total number of failures
+    private static long printSummary(double elapsedSeconds) {
+        long failures = 0;
+
+        report.println();
+        report.println(String.format(
+                "%-8s %10s %10s %10s %10s %10s %10s %8s",
+                "Command", "Count", "Per second", "p50 (us)", "p99 (us)", "p999 (us)", "Max (us)", "Failures"
+        ));
+
+        for (Map.Entry<String, CommandStatistics> entry : statistics.entrySet()) {
+            Histogram latency = entry.getValue().latency;
+            long commandFailures = entry.getValue().failures.sum();
+
+            report.println(String.format(
+                    "%-8s %10d %10.0f %10d %10d %10d %10d %8d",
+                    entry.getKey(),
+                    latency.getCount(),
+                    latency.getCount() / elapsedSeconds,
+                    latency.getPercentile(0.5),
+                    latency.getPercentile(0.99),
+                    latency.getPercentile(0.999),
+                    latency.getMax(),
+                    commandFailures
+            ));
+
+            failures += commandFailures;
+        }
+
+        report.println();
+        report.println(String.format(
+                "%d commands in %.1f seconds (%.0f/s), %d failures",
+                totalCommands(), elapsedSeconds, totalCommands() / elapsedSeconds, failures
+        ));
+
+        return failures;
+    }
+
+    // Number of open file descriptors of this process, or -1 if not available (non-Unix systems)
+    private static long openFileDescriptors() {
+        OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+
+        if (operatingSystem instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) operatingSystem).getOpenFileDescriptorCount();
+        }
+
+        return -1;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(entry -> entry.toFile().delete());
+        }
+
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl.benchmark;
+
+import tnl.FileTransferEngine;
+import tnl.MappedFileRegistry;
+import tnl.TransferStatistics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+
+// The same file downloaded by several sessions at once over loopback, through the three stream mode download
+// paths of FileTransferEngine: buffered (plain socket), zero-copy (transferTo through a socket channel), and
+// mapped (windows shared through a MappedFileRegistry). Each session has its own connection, engine and file
+// channel, as real sessions do. One operation is one download by every session, the throughput is the total.
+// A background thread per connection reads and discards everything sent.
+//
+// The file is in the page cache from the first iteration on, so this measures the per-session copy and system
+// call cost, not the disk.
+//
+// Usage: MappedDownloadBenchmark [fileSizeMB] [maxSessions]
+public class MappedDownloadBenchmark {
+    private static final int DEFAULT_FILE_SIZE_MB = 64;
+    private static final int DEFAULT_MAX_SESSIONS = 16;
+
+
+
+    private interface Download {
+        public long run(int session) throws Exception;
+    }
+
+
+
+    public static void main(String[] argv) throws Exception {
+        long fileSize = (argv.length > 0 ? Long.parseLong(argv[0]) : DEFAULT_FILE_SIZE_MB) * 1024 * 1024;
+        int maxSessions = argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_MAX_SESSIONS;
+
+        Path file = createFile(fileSize);
+
+        // Every file is mapped, and all of its windows stay mapped between downloads
+        MappedFileRegistry registry = new MappedFileRegistry(
+                1, MappedFileRegistry.DEFAULT_WINDOW_BYTES, fileSize + MappedFileRegistry.DEFAULT_WINDOW_BYTES
+        );
+
+        MicroBenchmark.printHeader(String.format(
+                "Concurrent downloads of one file, %d MB file", fileSize / (1024 * 1024)
+        ));
+
+        try (ServerSocket drainServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            startDrain(drainServer);
+
+            for (int sessions = 1; sessions <= maxSessions; sessions *= 4) {
+                FileChannel[] fileChannels = new FileChannel[sessions];
+                FileTransferEngine[] engines = new FileTransferEngine[sessions];
+                Socket[] plainSockets = new Socket[sessions];
+                Socket[] channelSockets = new Socket[sessions];
+
+                ExecutorService executor = Executors.newFixedThreadPool(sessions);
+
+                try {
+                    for (int i = 0; i < sessions; ++i) {
+                        fileChannels[i] = FileChannel.open(file, StandardOpenOption.READ);
+                        engines[i] = new FileTransferEngine(new TransferStatistics());
+                        plainSockets[i] = new Socket(InetAddress.getLoopbackAddress(), drainServer.getLocalPort());
+                        channelSockets[i] = SocketChannel.open(drainServer.getLocalSocketAddress()).socket();
+                    }
+
+                    run(String.format("Buffered, %d sessions", sessions), executor, sessions, fileSize, (session) ->
+                            engines[session].sendFile(fileChannels[session], 0, fileSize, plainSockets[session]).getBytes()
+                    );
+
+                    run(String.format("Zero-copy, %d sessions", sessions), executor, sessions, fileSize, (session) ->
+                            engines[session].sendFile(fileChannels[session], 0, fileSize, channelSockets[session]).getBytes()
+                    );
+
+                    run(String.format("Mapped, %d sessions", sessions), executor, sessions, fileSize, (session) ->
+                            engines[session].sendFileMapped(
+                                    registry.open(file, fileChannels[session]), 0, fileSize, channelSockets[session],
+                                    false
+                            ).getBytes()
+                    );
+                } finally {
+                    executor.shutdown();
+
+                    for (int i = 0; i < sessions; ++i) {
+                        closeQuietly(fileChannels[i]);
+                        closeQuietly(plainSockets[i]);
+                        closeQuietly(channelSockets[i]);
+                    }
+
+                }
+
+            }
+
+        } finally {
+            System.out.println();
+            System.out.println(registry.describe());
+
+            registry.close();
+            Files.delete(file);
+        }
+
+    }
+
+    // One operation: every session downloads the file at the same time
+    private static void run(String name, ExecutorService executor, int sessions, long fileSize, Download download)
+            throws Exception
+    {
+        MicroBenchmark.run(name, 1, fileSize * sessions, () -> {
+            ArrayList<Future<Long>> results = new ArrayList<Future<Long>>();
+
+            for (int i = 0; i < sessions; ++i) {
+                final int session = i;
+                results.add(executor.submit(() -> download.run(session)));
+            }
+
+            long total = 0;
+
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+
+            return total;
+        });
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Silently ignore the exception
+        }
+
+    }
+
+    private static Path createFile(long fileSize) throws IOException {
+        Path file = Files.createTempFile("ftpserver-mapped-bench", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+
+        ThreadLocalRandom.current().nextBytes(chunk);
+
+        try (RandomAccessFile output = new RandomAccessFile(file.toFile(), "rw")) {
+            for (long written = 0; written < fileSize; written += chunk.length) {
+                output.write(chunk, 0, (int) Math.min(chunk.length, fileSize - written));
+            }
+
+        }
+
+        return file;
+    }
+
+    // Accept every connection and discard what it receives
+    private static void startDrain(ServerSocket drainServer) {
+        Thread drainThread = new Thread(() -> {
+            while (true) {
+                Socket socket;
+
+                try {
+                    socket = drainServer.accept();
+                } catch (IOException e) {
+                    return;
+                }
+
+                Thread reader = new Thread(() -> {
+                    byte[] buffer = new byte[1024 * 1024];
+
+                    try (InputStream inputStream = socket.getInputStream()) {
+                        while (inputStream.read(buffer) != -1) {
+                            // Discard
+                        }
+
+                    } catch (IOException e) {
+                        // Connection closed
+                    }
+
+                }, "mapped-bench-drain");
+
+                reader.setDaemon(true);
+                reader.start();
+            }
+
+        }, "mapped-bench-accept");
+
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+}
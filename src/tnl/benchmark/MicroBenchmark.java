@@ -0,0 +1,128 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl.benchmark;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+
+
+// Minimal harness for the benchmarks of this package whose operations are whole transfers: warm-up iterations,
+// then timed iterations, each running the task a fixed number of times. Reports time and heap allocation per
+// operation. Results are summed into a volatile field, but nothing else guards against dead code elimination or
+// constant folding, and everything runs in one JVM, so it is not fit for short operations: microbenchmarks of
+// single methods are in the benchmarks module, under JMH
+public class MicroBenchmark {
+    public interface Task {
+        // Run one operation. The result is consumed by the harness
+        public long run() throws Exception;
+    }
+
+
+
+    public static final int DEFAULT_WARMUP_ITERATIONS = 5;
+    public static final int DEFAULT_ITERATIONS = 10;
+
+
+
+    public static volatile long sink;
+
+    private static PrintStream report = System.out;
+
+    private static int warmupIterations = Integer.getInteger("benchmark.warmup", DEFAULT_WARMUP_ITERATIONS);
+    private static int iterations = Integer.getInteger("benchmark.iterations", DEFAULT_ITERATIONS);
+
+
+
+    public static void printHeader(String title) {
+        report.println(title);
+        report.println();
+        report.println(String.format(
+                "%-44s %14s %14s %14s %14s",
+                "Benchmark", "ns/op (mean)", "ns/op (best)", "ops/s", "bytes/op"
+        ));
+    }
+
+    // operationsPerIteration calls of task make one iteration
+    public static void run(String name, int operationsPerIteration, Task task) throws Exception {
+        run(name, operationsPerIteration, 0, task);
+    }
+
+    // Same, also reporting the throughput when each operation processes bytesPerOperation bytes
+    public static void run(String name, int operationsPerIteration, long bytesPerOperation, Task task)
+            throws Exception
+    {
+        for (int i = 0; i < warmupIterations; ++i) {
+            runIteration(operationsPerIteration, task);
+        }
+
+        long totalNanos = 0;
+        long bestNanos = Long.MAX_VALUE;
+
+        long allocatedBefore = allocatedBytes();
+
+        for (int i = 0; i < iterations; ++i) {
+            long nanos = runIteration(operationsPerIteration, task);
+
+            totalNanos += nanos;
+            bestNanos = Math.min(bestNanos, nanos);
+        }
+
+        long allocatedAfter = allocatedBytes();
+
+        long operations = (long) iterations * operationsPerIteration;
+        double meanNanos = (double) totalNanos / operations;
+
+        String line = String.format(
+                "%-44s %14.1f %14.1f %14.0f %14s",
+                name,
+                meanNanos,
+                (double) bestNanos / operationsPerIteration,
+                meanNanos > 0 ? 1e9 / meanNanos : 0,
+                allocatedBefore < 0 ? "n/a" : String.format("%.1f", (allocatedAfter - allocatedBefore) / (double) operations)
+        );
+
+        if (bytesPerOperation > 0 && meanNanos > 0) {
+            line += String.format("  %.1f MB/s", (bytesPerOperation / (1024.0 * 1024.0)) / (meanNanos / 1e9));
+        }
+
+        report.println(line);
+    }
+
+    private static long runIteration(int operationsPerIteration, Task task) throws Exception {
+        long result = 0;
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < operationsPerIteration; ++i) {
+            result += task.run();
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+
+        sink = result;
+
+        return elapsed;
+    }
+
+    // Bytes allocated so far by the current thread, or -1 if the JVM cannot tell
+    private static long allocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+
+            if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+                return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+
+        }
+
+        return -1;
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl.benchmark;
+
+import tnl.FTPServer;
+import tnl.FileTransferEngine;
+import tnl.SessionThreads;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+
+
+// Segmented download (SEGM) over loopback: one file downloaded through 1, 2, 4 ... streams, each stream written
+// into place in the local copy with positional writes, as a real client would put the file back together.
+// Every copy is checked against the original.
+//
+// Loopback has no latency, so a single stream is only limited by the CPU. On a long fat pipe each stream is
+// limited to its TCP window / round trip time instead: -Dbenchmark.streamMBps paces every stream to that rate
+// on the client side, and TCP flow control holds the server back just as a real window would.
+//
+// Usage: SegmentedDownloadBenchmark [fileSizeMB] [maxStreams]
+// -Dbenchmark.iterations changes the number of downloads per stream count, the best one is reported
+public class SegmentedDownloadBenchmark {
+    private static final int DEFAULT_FILE_SIZE_MB = 256;
+    private static final int DEFAULT_MAX_STREAMS = 8;
+
+    private static final String USERNAME = "user1";
+    private static final String PASSWORD = "user1";
+
+    private static final String FILE_NAME = "large.bin";
+
+    private static final int CLIENT_TIMEOUT = 60000;
+
+
+
+    private static PrintStream report = System.out;
+
+    private static BufferedReader reader;
+    private static OutputStream writer;
+
+
+
+    public static void main(String[] argv) throws Exception {
+        int fileSize = (argv.length > 0 ? Integer.parseInt(argv[0]) : DEFAULT_FILE_SIZE_MB) * 1024 * 1024;
+        int maxStreams = argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_MAX_STREAMS;
+        int iterations = Integer.getInteger("benchmark.iterations", 3);
+        int streamRate = Integer.getInteger("benchmark.streamMBps", 0);
+
+        // Per-transfer log lines would measure the console, not the server
+        if (System.getProperty("ftpserver.logLevel") == null) {
+            System.setProperty("ftpserver.logLevel", "WARN");
+        }
+
+        Path serverDirectory = Files.createTempDirectory("ftpserver-segments");
+        Path source = serverDirectory.resolve(FILE_NAME);
+        Path copy = Files.createTempFile("ftpserver-segments", ".bin");
+
+        createFile(source, fileSize);
+        long expectedChecksum = checksum(source);
+
+        int port = findFreePort();
+        FTPServer ftpServer = new FTPServer(port, serverDirectory.toString(), SessionThreads.PLATFORM);
+        ftpServer.start();
+
+        report.println(String.format(
+                "Segmented download of %d MB over loopback, best of %d, %s per stream",
+                fileSize / (1024 * 1024), iterations, streamRate == 0 ? "unlimited" : streamRate + " MB/s"
+        ));
+        report.println();
+        report.println(String.format("%8s %12s %12s %8s", "Streams", "Time (ms)", "MB/s", "Speedup"));
+
+        try (Socket control = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            control.setSoTimeout(CLIENT_TIMEOUT);
+
+            reader = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.UTF_8));
+            writer = control.getOutputStream();
+
+            send("USER " + USERNAME);
+            expect('3');
+            send("PASS " + PASSWORD);
+            expect('2');
+
+            double baseline = 0;
+
+            for (int streams = 1; streams <= maxStreams; streams *= 2) {
+                long best = Long.MAX_VALUE;
+
+                for (int i = 0; i < iterations; ++i) {
+                    Files.deleteIfExists(copy);
+
+                    best = Math.min(best, download(streams, streamRate, copy));
+
+                    if (checksum(copy) != expectedChecksum) {
+                        throw new IOException("Downloaded copy differs from the original with " + streams + " streams");
+                    }
+
+                }
+
+                double throughput = (fileSize / (1024.0 * 1024.0)) / (best / 1e9);
+
+                if (streams == 1) {
+                    baseline = throughput;
+                }
+
+                report.println(String.format(
+                        "%8d %12.1f %12.1f %7.2fx", streams, best / 1e6, throughput, throughput / baseline
+                ));
+            }
+
+            send("QUIT");
+        } finally {
+            ftpServer.closeAll();
+
+            Files.deleteIfExists(copy);
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(serverDirectory);
+        }
+
+    }
+
+    // Download the whole file over the given number of streams. Return the elapsed time in nanoseconds
+    private static long download(int streams, int streamRate, Path copy) throws Exception {
+        long startTime = System.nanoTime();
+
+        send("SEGM " + streams);
+        expect('2');
+
+        send("EPSV");
+        String reply = expect('2');
+        int dataPort = Integer.parseInt(reply.substring(reply.indexOf("|||") + 3, reply.lastIndexOf('|')));
+
+        send("RETR " + FILE_NAME);
+        expect('1');
+
+        Thread[] threads = new Thread[streams];
+        Exception[] errors = new Exception[streams];
+
+        try (FileChannel output = FileChannel.open(copy, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < streams; ++i) {
+                final int index = i;
+
+                SocketChannel dataChannel = SocketChannel.open(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), dataPort)
+                );
+
+                threads[i] = new Thread(() -> {
+                    try (SocketChannel channel = dataChannel) {
+                        receiveSegment(channel, output, streamRate);
+                    } catch (Exception e) {
+                        errors[index] = e;
+                    }
+
+                });
+                threads[i].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+        }
+
+        expect('2');
+
+        for (Exception error : errors) {
+            if (error != null) {
+                throw error;
+            }
+
+        }
+
+        return System.nanoTime() - startTime;
+    }
+
+    // Read the segment header, then write the segment at its place in the copy, at most streamRate MB/s if not 0
+    private static void receiveSegment(SocketChannel channel, FileChannel output, int streamRate)
+            throws IOException, InterruptedException
+    {
+        ByteBuffer header = ByteBuffer.allocate(FileTransferEngine.SEGMENT_HEADER_SIZE);
+
+        while (header.hasRemaining()) {
+            if (channel.read(header) == -1) {
+                throw new IOException("Data connection closed before the segment header");
+            }
+
+        }
+
+        header.flip();
+
+        long start = header.getLong();
+        long end = start + header.getLong();
+        long position = start;
+
+        long startTime = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(streamRate == 0 ? 1024 * 1024 : 64 * 1024);
+
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+            if (channel.read(buffer) == -1) {
+                throw new IOException("Data connection closed in the middle of a segment");
+            }
+
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                position += output.write(buffer, position);
+            }
+
+            if (streamRate > 0) {
+                // Wait until the bytes received so far are due at the stream rate
+                long dueNanos = (long) ((position - start) / (streamRate * 1024.0 * 1024.0) * 1e9);
+                long aheadNanos = dueNanos - (System.nanoTime() - startTime);
+
+                if (aheadNanos > 0) {
+                    Thread.sleep(aheadNanos / 1000000, (int) (aheadNanos % 1000000));
+                }
+
+            }
+
+        }
+
+    }
+
+    private static void send(String request) throws IOException {
+        writer.write((request + "\r\n").getBytes(StandardCharsets.UTF_8));
+        writer.flush();
+    }
+
+    // Read a reply and check its first digit. Return the reply
+    private static String expect(char digit) throws IOException {
+        String reply = reader.readLine();
+
+        if (reply == null || reply.length() == 0 || reply.charAt(0) != digit) {
+            throw new IOException("Unexpected reply: " + reply);
+        }
+
+        return reply;
+    }
+
+    private static void createFile(Path path, int size) throws IOException {
+        byte[] chunk = new byte[1024 * 1024];
+
+        // Different data everywhere, so that a segment written at the wrong place cannot go unnoticed
+        try (OutputStream outputStream = Files.newOutputStream(path)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                ThreadLocalRandom.current().nextBytes(chunk);
+                outputStream.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+
+        }
+
+    }
+
+    private static long checksum(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+            }
+
+        }
+
+        return crc.getValue();
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+
+    }
+
+}
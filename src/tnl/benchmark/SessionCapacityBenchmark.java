@@ -0,0 +1,209 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl.benchmark;
+
+import tnl.FTPServer;
+import tnl.SessionThreads;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+
+
+// Compare platform and virtual session threads: memory per idle logged-in session, and the number of
+// concurrent sessions reached before the first failure.
+//
+// Usage: SessionCapacityBenchmark [idleSessions] [maxSessions]
+// Clients and server run in the same JVM, so every session costs two file descriptors. Raise `ulimit -n`
+// before looking for the session limit
+public class SessionCapacityBenchmark {
+    private static final int DEFAULT_IDLE_SESSIONS = 1000;
+    private static final int DEFAULT_MAX_SESSIONS = 20000;
+
+    private static final int CLIENT_TIMEOUT = 10000;
+    private static final int SHUTDOWN_TIMEOUT = 20000;
+
+
+
+    private static PrintStream report = System.out;
+
+
+
+    public static void main(String[] argv) throws Exception {
+        int idleSessions = argv.length > 0 ? Integer.parseInt(argv[0]) : DEFAULT_IDLE_SESSIONS;
+        int maxSessions = argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_MAX_SESSIONS;
+
+        Path serverDirectory = Files.createTempDirectory("ftpserver-bench");
+
+        report.println(String.format("Idle sessions: %d, maximum sessions probed: %d", idleSessions, maxSessions));
+        report.println();
+        report.println(String.format(
+                "%-10s %14s %14s %16s %14s  %s",
+                "Mode", "Heap/session", "RSS/session", "Threads/session", "Max sessions", "Stopped by"
+        ));
+
+        for (String mode : new String[] { SessionThreads.PLATFORM, SessionThreads.VIRTUAL }) {
+            if (mode.equals(SessionThreads.VIRTUAL) && !SessionThreads.isVirtualThreadSupported()) {
+                report.println(String.format("%-10s (virtual threads require Java 21 or later, skipped)", mode));
+                continue;
+            }
+
+            runMode(mode, serverDirectory, idleSessions, maxSessions);
+        }
+
+        Files.delete(serverDirectory);
+    }
+
+    private static void runMode(String mode, Path serverDirectory, int idleSessions, int maxSessions) throws Exception {
+        int port = findFreePort();
+
+        // The server logs every request to standard output
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        FTPServer ftpServer = new FTPServer(port, serverDirectory.toString(), mode);
+        ftpServer.start();
+
+        ArrayList<Socket> clients = new ArrayList<Socket>();
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetSize();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        String stoppedBy = "limit reached";
+
+        try {
+            openSessions(clients, port, idleSessions);
+        } catch (Throwable e) {
+            stoppedBy = e.toString();
+        }
+
+        long heapAfter = usedHeap();
+        long rssAfter = residentSetSize();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        int measuredSessions = Math.max(1, clients.size());
+
+        // Keep opening sessions until something fails
+        if (clients.size() == idleSessions) {
+            try {
+                openSessions(clients, port, maxSessions - clients.size());
+            } catch (Throwable e) {
+                stoppedBy = e.toString();
+            }
+
+        }
+
+        int maxConcurrentSessions = clients.size();
+
+        // Sessions notice the close request on their next read timeout
+        ftpServer.closeAll();
+        ftpServer.join();
+
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        while (ftpServer.getCurrentConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        for (Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Silently ignore the exception
+            }
+
+        }
+
+        System.setOut(report);
+
+        report.println(String.format(
+                "%-10s %11.1f KB %11.1f KB %16.2f %14d  %s",
+                mode,
+                (heapAfter - heapBefore) / 1024.0 / measuredSessions,
+                rssBefore < 0 ? Double.NaN : (rssAfter - rssBefore) / 1024.0 / measuredSessions,
+                (threadsAfter - threadsBefore) / (double) measuredSessions,
+                maxConcurrentSessions,
+                stoppedBy
+        ));
+
+        clients.clear();
+        usedHeap();
+    }
+
+    private static void openSessions(ArrayList<Socket> clients, int port, int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            Socket client = new Socket();
+            clients.add(client);
+
+            client.connect(new InetSocketAddress("127.0.0.1", port), CLIENT_TIMEOUT);
+            client.setSoTimeout(CLIENT_TIMEOUT);
+
+            OutputStream outputStream = client.getOutputStream();
+            outputStream.write("USER usernopass\r\n".getBytes("UTF-8"));
+            outputStream.flush();
+
+            // Wait for "230 Logged in successfully", so that the session is really established
+            InputStream inputStream = client.getInputStream();
+            int b;
+
+            while ((b = inputStream.read()) != '\n') {
+                if (b == -1) {
+                    throw new IOException("Session closed by server");
+                }
+
+            }
+
+        }
+
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Resident set size in bytes, or -1 if not available (non-Linux systems)
+    private static long residentSetSize() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.trim().split("\\s+");
+                    return Long.parseLong(parts[1]) * 1024;
+                }
+
+            }
+
+        } catch (Exception e) {
+            // Not available
+        }
+
+        return -1;
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+
+    }
+
+}
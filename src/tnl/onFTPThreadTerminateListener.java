@@ -9,6 +9,6 @@ package tnl;
 
 
 public interface onFTPThreadTerminateListener {
-    public void onConnectionAutoTerminated(String connectionKey);
-    public void onConnectionTerminated(String connectionKey);
+    public void onConnectionAutoTerminated(long sessionId);
+    public void onConnectionTerminated(long sessionId);
 }
\ No newline at end of file